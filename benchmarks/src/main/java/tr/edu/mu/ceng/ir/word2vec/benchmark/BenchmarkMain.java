@@ -0,0 +1,43 @@
+package tr.edu.mu.ceng.ir.word2vec.benchmark;
+
+import org.openjdk.jmh.Main;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Runs the JMH command line with JSON results by default, written to
+ * results/word2vec-VERSION-dl4j-VERSION-TIME.json so that runs of different versions can be compared side by side.
+ * Any JMH option may be given, -rf and -rff replace the defaults.
+ */
+public class BenchmarkMain {
+
+    public static void main(String... args) throws Exception {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        if (!arguments.contains("-rf") && !arguments.contains("-rff")) {
+            Properties versions = versions();
+            File file = new File("results", "word2vec-" + versions.getProperty("word2vec.version", "unknown")
+                    + "-dl4j-" + versions.getProperty("dl4j.version", "unknown")
+                    + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json");
+            file.getAbsoluteFile().getParentFile().mkdirs();
+            arguments.addAll(0, Arrays.asList("-rf", "json", "-rff", file.getPath()));
+        }
+        Main.main(arguments.toArray(new String[0]));
+    }
+
+    private static Properties versions() throws IOException {
+        Properties properties = new Properties();
+        try (InputStream input = BenchmarkMain.class.getClassLoader().getResourceAsStream("benchmark.properties")) {
+            if (input != null)
+                properties.load(input);
+        }
+        return properties;
+    }
+}
@@ -0,0 +1,86 @@
+package tr.edu.mu.ceng.ir.word2vec.benchmark;
+
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.deeplearning4j.models.word2vec.Word2Vec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import tr.edu.mu.ceng.ir.word2vec.HnswModelUtils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of {@code wordsNearest} for a single word and for an analogy (a - b + c), with the brute force
+ * BasicModelUtils of DL4J or the HNSW index. Query words cycle through the most frequent words of the vocabulary.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueryBenchmark {
+
+    private static final int QUERY_WORDS = 1000;
+    private static final int TOP_N = 10;
+
+    @Param({"1000000", "10000000"})
+    public long corpusWords;
+
+    @Param({"basic", "hnsw"})
+    public String modelUtils;
+
+    private Word2Vec vec;
+    private String[] words;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        String word(String[] words) {
+            next = (next + 1) % words.length;
+            return words[next];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void model() throws IOException {
+        SyntheticCorpus corpus = SyntheticCorpus.of(corpusWords);
+        vec = corpus.model("SkipGram", true, 0);
+        if ("hnsw".equals(modelUtils)) {
+            HnswModelUtils<VocabWord> hnsw = new HnswModelUtils<>();
+            hnsw.init(vec.getLookupTable());
+            hnsw.buildIndex();
+            vec.setModelUtils(hnsw);
+        }
+
+        words = new String[Math.min(QUERY_WORDS, vec.getVocab().numWords())];
+        for (int i = 0; i < words.length; i++)
+            words[i] = vec.getVocab().elementAtIndex(i).getLabel();
+    }
+
+    @Benchmark
+    public Collection<String> nearest(Cursor cursor) {
+        return vec.wordsNearest(cursor.word(words), TOP_N);
+    }
+
+    @Benchmark
+    public Collection<String> analogy(Cursor cursor) {
+        List<String> positive = Arrays.asList(cursor.word(words), cursor.word(words));
+        List<String> negative = Arrays.asList(cursor.word(words));
+        return vec.wordsNearest(positive, negative, TOP_N);
+    }
+}
@@ -0,0 +1,94 @@
+package tr.edu.mu.ceng.ir.word2vec.benchmark;
+
+import org.deeplearning4j.models.embeddings.loader.WordVectorSerializer;
+import org.deeplearning4j.models.word2vec.Word2Vec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import tr.edu.mu.ceng.ir.word2vec.Word2VecExample;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Saving and loading a model with syn0, syn1 and the vocabulary of the corpus, in the uncompressed text format of
+ * {@link Word2VecExample} and in the zip format of {@link WordVectorSerializer}. The weights are not trained, which
+ * does not change the size or the cost of either format.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+
+    @Param({"1000000", "10000000"})
+    public long corpusWords;
+
+    private Word2VecExample example;
+    private Path folder;
+    private String textModel;
+    private String zipModel;
+
+    @Setup(Level.Trial)
+    public void model() throws IOException {
+        SyntheticCorpus corpus = SyntheticCorpus.of(corpusWords);
+        example = new Word2VecExample();
+        example.setVectors(corpus.model("SkipGram", true, 0));
+
+        folder = Files.createTempDirectory("word2vec-serialization");
+        textModel = folder.resolve("text").toString();
+        zipModel = folder.resolve("model.zip").toString();
+        example.writeUnCompressed(textModel);
+        WordVectorSerializer.writeWord2VecModel(example.getVectors(), zipModel);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        try (Stream<Path> paths = Files.walk(folder)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public void writeUnCompressed() throws IOException {
+        example.writeUnCompressed(textModel);
+    }
+
+    @Benchmark
+    public Word2Vec readUnCompressed() throws IOException {
+        Word2Vec model = example.getVectors();
+        try {
+            example.readUnCompressed(textModel);
+            return example.getVectors();
+        } finally {
+            example.setVectors(model);
+        }
+    }
+
+    @Benchmark
+    public void writeZip() throws IOException {
+        WordVectorSerializer.writeWord2VecModel(example.getVectors(), zipModel);
+    }
+
+    @Benchmark
+    public Word2Vec readZip() {
+        return WordVectorSerializer.readWord2VecModel(zipModel, true);
+    }
+}
@@ -0,0 +1,148 @@
+package tr.edu.mu.ceng.ir.word2vec.benchmark;
+
+import org.deeplearning4j.models.embeddings.learning.impl.elements.CBOW;
+import org.deeplearning4j.models.embeddings.learning.impl.elements.SkipGram;
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.deeplearning4j.models.word2vec.Word2Vec;
+import org.deeplearning4j.models.word2vec.wordstore.inmemory.AbstractCache;
+import org.deeplearning4j.text.sentenceiterator.FileSentenceIterator;
+import org.deeplearning4j.text.sentenceiterator.SentenceIterator;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.TokenizerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tr.edu.mu.ceng.ir.word2vec.FastTokenizerFactory;
+import tr.edu.mu.ceng.ir.word2vec.VocabularyBuilder;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Generated text with Zipf distributed word frequencies, so that the vocabulary, the Huffman tree and the
+ * subsampling behave as on natural text. A corpus of a given size is always the same and is generated once into
+ * word2vec.benchmark.folder (the temporary folder by default), so every fork and every version under test reads
+ * the same sentences.
+ */
+public class SyntheticCorpus {
+
+    private static Logger logger = LoggerFactory.getLogger(SyntheticCorpus.class);
+
+    static final int DISTINCT_WORDS = 50000;
+    static final int MIN_WORD_FREQUENCY = 5;
+    static final int LAYER_SIZE = 100;
+    private static final long SEED = 42;
+
+    private final File file;
+    private final AbstractCache<VocabWord> vocabulary;
+
+    private SyntheticCorpus(File file) throws IOException {
+        this.file = file;
+        this.vocabulary = new VocabularyBuilder(MIN_WORD_FREQUENCY, Runtime.getRuntime().availableProcessors(), 0)
+                .build(sentences(), tokenizerFactory(), Collections.<String>emptyList());
+    }
+
+    /**
+     * The corpus of about {@code words} words, generated on the first call.
+     */
+    public static SyntheticCorpus of(long words) throws IOException {
+        File folder = new File(System.getProperty("word2vec.benchmark.folder",
+                new File(System.getProperty("java.io.tmpdir"), "word2vec-benchmark").getPath()));
+        File file = new File(folder, "corpus-" + words + ".txt");
+        if (!file.exists())
+            generate(file, words);
+        return new SyntheticCorpus(file);
+    }
+
+    private static void generate(File file, long words) throws IOException {
+        logger.debug("=====Generating a synthetic corpus of " + words + " words to " + file + " =====");
+        Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+
+        // cumulative Zipf weights, rank r is drawn with probability proportional to 1 / r
+        double[] cumulative = new double[DISTINCT_WORDS];
+        String[] labels = new String[DISTINCT_WORDS];
+        double sum = 0;
+        for (int rank = 0; rank < DISTINCT_WORDS; rank++) {
+            sum += 1.0 / (rank + 1);
+            cumulative[rank] = sum;
+            labels[rank] = word(rank);
+        }
+
+        Random random = new Random(SEED);
+        File temporary = new File(file.getPath() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temporary.toPath(), StandardCharsets.UTF_8)) {
+            long written = 0;
+            StringBuilder sentence = new StringBuilder();
+            while (written < words) {
+                int length = 5 + random.nextInt(26);
+                sentence.setLength(0);
+                for (int i = 0; i < length; i++) {
+                    int rank = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+                    if (i > 0)
+                        sentence.append(' ');
+                    sentence.append(labels[rank < 0 ? -rank - 1 : rank]);
+                }
+                writer.write(sentence.toString());
+                writer.newLine();
+                written += length;
+            }
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // rank 0 is "a", 25 is "z", 26 is "ba", ... so that every word is a plain lowercase token
+    private static String word(int rank) {
+        StringBuilder builder = new StringBuilder();
+        do {
+            builder.append((char) ('a' + rank % 26));
+            rank /= 26;
+        } while (rank > 0);
+        return builder.reverse().toString();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Vocabulary of the corpus with its Huffman tree, shared by the models built from it.
+     */
+    public AbstractCache<VocabWord> getVocabulary() {
+        return vocabulary;
+    }
+
+    public SentenceIterator sentences() {
+        return new FileSentenceIterator(file);
+    }
+
+    public TokenizerFactory tokenizerFactory() {
+        return new FastTokenizerFactory(Collections.<String>emptyList(), true);
+    }
+
+    /**
+     * An untrained model over the corpus vocabulary with freshly initialised weights, ready to {@code fit()} with
+     * {@code algorithm} ("SkipGram" or "CBOW") and hierarchical softmax or {@code negative} samples.
+     */
+    public Word2Vec model(String algorithm, boolean hierarchicSoftmax, int negative) {
+        Word2Vec vec = new Word2Vec.Builder()
+                .layerSize(LAYER_SIZE)
+                .windowSize(5)
+                .minWordFrequency(MIN_WORD_FREQUENCY)
+                .useHierarchicSoftmax(hierarchicSoftmax)
+                .negativeSample(negative)
+                .seed(SEED)
+                .vocabCache(vocabulary)
+                .resetModel(false)
+                .iterate(sentences())
+                .tokenizerFactory(tokenizerFactory())
+                .elementsLearningAlgorithm("CBOW".equals(algorithm) ? new CBOW<VocabWord>() : new SkipGram<VocabWord>())
+                .build();
+        vec.getLookupTable().resetWeights(true);
+        return vec;
+    }
+}
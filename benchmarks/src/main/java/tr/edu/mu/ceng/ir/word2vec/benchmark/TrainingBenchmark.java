@@ -0,0 +1,69 @@
+package tr.edu.mu.ceng.ir.word2vec.benchmark;
+
+import org.deeplearning4j.models.word2vec.Word2Vec;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One epoch of {@code fit()} over a prebuilt vocabulary, as the train action runs it. The primary score is fits per
+ * second; the {@code words} counter is the training speed in vocabulary words per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TrainingBenchmark {
+
+    @Param({"1000000", "10000000"})
+    public long corpusWords;
+
+    @Param({"SkipGram", "CBOW"})
+    public String algorithm;
+
+    // hs = hierarchical softmax, negative = 5 negative samples
+    @Param({"hs", "negative"})
+    public String objective;
+
+    private SyntheticCorpus corpus;
+    private Word2Vec vec;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long words;
+    }
+
+    @Setup(Level.Trial)
+    public void corpus() throws IOException {
+        corpus = SyntheticCorpus.of(corpusWords);
+    }
+
+    @Setup(Level.Invocation)
+    public void model() {
+        boolean hierarchicSoftmax = "hs".equals(objective);
+        vec = corpus.model(algorithm, hierarchicSoftmax, hierarchicSoftmax ? 0 : 5);
+    }
+
+    @Benchmark
+    public Word2Vec fit(Counters counters) {
+        vec.fit();
+        counters.words += corpus.getVocabulary().totalWordOccurrences();
+        return vec;
+    }
+}
@@ -0,0 +1,3 @@
+# builds the project and its JMH benchmarks and runs them, JMH options are passed on, e.g. -p corpusWords=1000000
+# results are written as JSON to results/, add -Ddl4j.version=... -Dnd4j.version=... to the second mvn to try a bump
+mvn -q install -Dassembly.skipAssembly=true && mvn -q -f benchmarks package && java -jar benchmarks/target/benchmarks.jar $@
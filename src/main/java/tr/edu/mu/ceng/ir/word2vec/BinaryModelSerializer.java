@@ -0,0 +1,466 @@
+package tr.edu.mu.ceng.ir.word2vec;
+
+import org.deeplearning4j.models.embeddings.inmemory.InMemoryLookupTable;
+import org.deeplearning4j.models.embeddings.loader.VectorsConfiguration;
+import org.deeplearning4j.models.sequencevectors.SequenceVectors;
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.deeplearning4j.models.word2vec.Word2Vec;
+import org.deeplearning4j.models.word2vec.wordstore.VocabCache;
+import org.deeplearning4j.models.word2vec.wordstore.inmemory.AbstractCache;
+import org.deeplearning4j.text.tokenization.tokenizer.TokenPreProcess;
+import org.deeplearning4j.text.tokenization.tokenizer.preprocessor.CommonPreprocessor;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.DefaultTokenizerFactory;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.TokenizerFactory;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Binary on-disk layout for a full Word2Vec model, written into a single {@value #MODEL_FILE} file:
+ * a header (with the vectors configuration), the vocabulary with frequencies and huffman codes/points,
+ * followed by syn0, syn1 and syn1Neg as contiguous little-endian float32 matrices aligned to
+ * {@value #ALIGNMENT} bytes. Matrices are memory-mapped on load, so syn0 is usable without parsing or copying.
+ * An ND4J buffer has to be a single mapping, which Java limits to 2GB: larger matrices, and the matrices of a
+ * read-only file, are copied into memory block by block instead, with a warning. {@link #open} maps syn0 of any
+ * size in several regions, for queries only.
+ */
+public class BinaryModelSerializer {
+
+    public static final String MODEL_FILE = "model.bin";
+
+    static final int MAGIC = 0x57325642; // "W2VB"
+    static final int VERSION = 1;
+    static final int ALIGNMENT = 64;
+
+    private static final int IO_BUFFER_SIZE = 1 << 22;
+    private static final int ROWS_PER_BLOCK = 4096;
+
+    private static Logger logger = LoggerFactory.getLogger(BinaryModelSerializer.class);
+
+    private BinaryModelSerializer() {
+    }
+
+    public static boolean exists(String folder) {
+        return Files.exists(Paths.get(folder, MODEL_FILE));
+    }
+
+    public static void write(Word2Vec vec, String targetFolder) throws IOException {
+        Path folder = Paths.get(targetFolder);
+        if (!Files.exists(folder))
+            Files.createDirectory(folder);
+
+        long start = System.currentTimeMillis();
+        writeFile(vec, folder.resolve(MODEL_FILE), false);
+        logger.debug("Binary model written to " + folder.resolve(MODEL_FILE) + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Writes the model to {@code file} and returns the offsets of syn0, syn1 and syn1Neg in it (0 when absent).
+     * With {@code force} the file is synced to disk before returning.
+     */
+    static long[] writeFile(SequenceVectors<VocabWord> vec, Path file, boolean force) throws IOException {
+        InMemoryLookupTable<VocabWord> table = (InMemoryLookupTable<VocabWord>) vec.getLookupTable();
+        VocabCache<VocabWord> vocab = vec.getVocab();
+        INDArray[] matrices = matrices(table);
+        long[] offsets = new long[matrices.length];
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+            byte[] config = vec.getConfiguration().toJson().getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(MAGIC).putInt(VERSION);
+            buffer.putInt(vocab.numWords()).putInt(table.layerSize());
+            buffer.putLong(vocab.totalWordOccurrences()).putLong(vocab.totalNumberOfDocs());
+            for (INDArray matrix : matrices) {
+                buffer.putLong(matrix == null ? 0 : matrix.rows());
+            }
+            buffer.putInt(config.length);
+            putBytes(channel, buffer, config);
+
+            for (int i = 0; i < vocab.numWords(); i++) {
+                VocabWord word = vocab.elementAtIndex(i);
+                byte[] label = word.getLabel().getBytes(StandardCharsets.UTF_8);
+                List<Byte> codes = word.getCodes();
+                List<Integer> points = word.getPoints();
+                int codeLength = codes == null ? 0 : Math.min(codes.size(), word.getCodeLength());
+
+                ensure(channel, buffer, 4);
+                buffer.putInt(label.length);
+                putBytes(channel, buffer, label);
+                ensure(channel, buffer, 20 + codeLength * 5);
+                buffer.putLong((long) word.getElementFrequency());
+                buffer.putLong(word.getSequencesCount());
+                buffer.putInt(codeLength);
+                for (int c = 0; c < codeLength; c++)
+                    buffer.put(codes.get(c));
+                for (int c = 0; c < codeLength; c++)
+                    buffer.putInt(points.get(c));
+            }
+
+            long position = flush(channel, buffer);
+            for (int m = 0; m < matrices.length; m++) {
+                if (matrices[m] == null)
+                    continue;
+                position = align(position);
+                offsets[m] = position;
+                channel.position(position);
+                writeMatrix(channel, buffer, matrices[m]);
+                position = channel.position();
+            }
+            if (force)
+                channel.force(false);
+        }
+        return offsets;
+    }
+
+    /**
+     * Rewrites only the matrices of a model file produced by {@link #writeFile} for the same vocabulary and layer
+     * size, leaving the header and vocabulary in place, and forces them to disk.
+     */
+    static void overwriteMatrices(SequenceVectors<VocabWord> vec, Path file, long[] offsets) throws IOException {
+        INDArray[] matrices = matrices((InMemoryLookupTable<VocabWord>) vec.getLookupTable());
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            for (int m = 0; m < matrices.length; m++) {
+                if (matrices[m] == null)
+                    continue;
+                if (offsets[m] == 0)
+                    throw new IOException("No room for matrix " + m + " in " + file);
+                channel.position(offsets[m]);
+                writeMatrix(channel, buffer, matrices[m]);
+            }
+            channel.force(false);
+        }
+    }
+
+    private static INDArray[] matrices(InMemoryLookupTable<VocabWord> table) {
+        return new INDArray[]{table.getSyn0(), table.getSyn1(), table.getSyn1Neg()};
+    }
+
+    public static Word2Vec read(String sourceFolder) throws IOException {
+        Path file = Paths.get(sourceFolder, MODEL_FILE);
+        long start = System.currentTimeMillis();
+
+        // private (copy-on-write) mappings need a channel opened for writing, the file itself is never modified
+        boolean mappable = Files.isWritable(file);
+        try (FileChannel channel = mappable ? FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.flip();
+
+            Header header = readHeader(channel, buffer, file);
+            AbstractCache<VocabWord> vocab = readVocabulary(channel, buffer, header, true);
+
+            long position = channel.position() - buffer.remaining();
+            INDArray[] matrices = new INDArray[3];
+            List<ByteBuffer> mappedRegions = new ArrayList<>();
+            for (int m = 0; m < matrices.length; m++) {
+                if (header.rows[m] == 0)
+                    continue;
+                position = align(position);
+                matrices[m] = mapMatrix(channel, mappable, position, header.rows[m], header.layerSize, mappedRegions);
+                position += header.rows[m] * header.layerSize * 4L;
+            }
+
+            Word2Vec vec = assemble(header.configuration, vocab, matrices[0], matrices[1], matrices[2],
+                    mappedRegions);
+            logger.debug("Binary model " + file + " opened in " + (System.currentTimeMillis() - start) + " ms");
+            return vec;
+        }
+    }
+
+    /**
+     * Opens the model for queries only: the vocabulary is read without its Huffman codes and points, syn0 is
+     * mapped read-only and paged in by the operating system as rows are used, and syn1/syn1Neg are not touched.
+     */
+    public static ServingWord2Vec open(String sourceFolder) throws IOException {
+        Path file = Paths.get(sourceFolder, MODEL_FILE);
+        long start = System.currentTimeMillis();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.flip();
+
+            Header header = readHeader(channel, buffer, file);
+            AbstractCache<VocabWord> vocab = readVocabulary(channel, buffer, header, false);
+            long position = align(channel.position() - buffer.remaining());
+            if (position + header.rows[0] * header.layerSize * 4L > channel.size())
+                throw new IOException("Unexpected end of binary model");
+
+            MappedLookupTable table = MappedLookupTable.map(channel, position, vocab, header.configuration,
+                    header.layerSize);
+            logger.debug("Binary model " + file + " opened lazily in " + (System.currentTimeMillis() - start) + " ms");
+            return new ServingWord2Vec(table);
+        }
+    }
+
+    private static class Header {
+        int numWords;
+        int layerSize;
+        long totalWordOccurrences;
+        long totalDocs;
+        long[] rows;
+        VectorsConfiguration configuration;
+    }
+
+    private static Header readHeader(FileChannel channel, ByteBuffer buffer, Path file) throws IOException {
+        require(channel, buffer, 60);
+        if (buffer.getInt() != MAGIC)
+            throw new IOException(file + " is not a binary word2vec model");
+        int version = buffer.getInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported binary model version " + version + " in " + file);
+
+        Header header = new Header();
+        header.numWords = buffer.getInt();
+        header.layerSize = buffer.getInt();
+        header.totalWordOccurrences = buffer.getLong();
+        header.totalDocs = buffer.getLong();
+        header.rows = new long[]{buffer.getLong(), buffer.getLong(), buffer.getLong()};
+        byte[] config = getBytes(channel, buffer, buffer.getInt());
+        header.configuration = VectorsConfiguration.fromJson(new String(config, StandardCharsets.UTF_8).trim());
+        return header;
+    }
+
+    // the Huffman codes and points are only needed for training, without them they are skipped
+    private static AbstractCache<VocabWord> readVocabulary(FileChannel channel, ByteBuffer buffer, Header header,
+                                                           boolean huffman) throws IOException {
+        AbstractCache<VocabWord> vocab = new AbstractCache.Builder<VocabWord>().build();
+        for (int i = 0; i < header.numWords; i++) {
+            require(channel, buffer, 4);
+            String label = new String(getBytes(channel, buffer, buffer.getInt()), StandardCharsets.UTF_8);
+            require(channel, buffer, 20);
+            long frequency = buffer.getLong();
+            long sequences = buffer.getLong();
+            int codeLength = buffer.getInt();
+            require(channel, buffer, codeLength * 5);
+
+            VocabWord word = new VocabWord(frequency, label);
+            word.setSequencesCount(sequences);
+            word.setIndex(i);
+            if (huffman) {
+                List<Byte> codes = new ArrayList<>(codeLength);
+                List<Integer> points = new ArrayList<>(codeLength);
+                for (int c = 0; c < codeLength; c++)
+                    codes.add(buffer.get());
+                for (int c = 0; c < codeLength; c++)
+                    points.add(buffer.getInt());
+                word.setCodes(codes);
+                word.setPoints(points);
+                word.setCodeLength((short) codeLength);
+            } else {
+                buffer.position(buffer.position() + codeLength * 5);
+            }
+            vocab.addToken(word);
+            vocab.addWordToIndex(i, label);
+        }
+        vocab.setTotalWordOccurences(header.totalWordOccurrences);
+        vocab.setTotalDocCount(header.totalDocs);
+        return vocab;
+    }
+
+    static Word2Vec assemble(VectorsConfiguration configuration, VocabCache<VocabWord> vocab,
+                             INDArray syn0, INDArray syn1, INDArray syn1Neg) {
+        return assemble(configuration, vocab, syn0, syn1, syn1Neg, Collections.<ByteBuffer>emptyList());
+    }
+
+    /**
+     * Builds the model around the given matrices; {@code mappedRegions} are the mappings backing them, which the
+     * lookup table keeps reachable because the ND4J buffers only hold their address.
+     */
+    private static Word2Vec assemble(VectorsConfiguration configuration, VocabCache<VocabWord> vocab,
+                                     INDArray syn0, INDArray syn1, INDArray syn1Neg, List<ByteBuffer> mappedRegions) {
+        AssembledLookupTable lookupTable = new AssembledLookupTable(vocab, syn0.columns(), configuration,
+                mappedRegions);
+        lookupTable.setSyn0(syn0);
+        if (syn1 != null)
+            lookupTable.setSyn1(syn1);
+        if (syn1Neg != null) {
+            lookupTable.setSyn1Neg(syn1Neg);
+            lookupTable.makeNegativeTable();
+        } else {
+            // a model without syn1Neg gets a zero one along with the table, as resetWeights would do
+            lookupTable.initNegative();
+        }
+
+        return new Word2Vec.Builder(configuration)
+                .vocabCache(vocab)
+                .lookupTable(lookupTable)
+                .tokenizerFactory(tokenizerFactory(configuration))
+                .resetModel(false)
+                .build();
+    }
+
+    /**
+     * The tokenizer recorded in the configuration of the model, or the default chain when there is none.
+     */
+    static TokenizerFactory tokenizerFactory(VectorsConfiguration configuration) {
+        TokenizerFactory tokenizerFactory = new DefaultTokenizerFactory();
+        TokenPreProcess preProcessor = new CommonPreprocessor();
+        try {
+            if (configuration.getTokenizerFactory() != null && !configuration.getTokenizerFactory().isEmpty())
+                tokenizerFactory = (TokenizerFactory) Class.forName(configuration.getTokenizerFactory())
+                        .getDeclaredConstructor().newInstance();
+            if (configuration.getTokenPreProcessor() != null && !configuration.getTokenPreProcessor().isEmpty())
+                preProcessor = (TokenPreProcess) Class.forName(configuration.getTokenPreProcessor())
+                        .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            logger.warn("Can not create the tokenizer " + configuration.getTokenizerFactory() + " of the model, "
+                    + "using the default one: " + e);
+            tokenizerFactory = new DefaultTokenizerFactory();
+            preProcessor = new CommonPreprocessor();
+        }
+        tokenizerFactory.setTokenPreProcessor(preProcessor);
+        return tokenizerFactory;
+    }
+
+    // makes the negative sampling table for a saved syn1Neg, which resetWeights only does along with a new one, and
+    // holds the mapped regions of the model file for as long as the table is used
+    private static class AssembledLookupTable extends InMemoryLookupTable<VocabWord> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient List<ByteBuffer> mappedRegions;
+
+        AssembledLookupTable(VocabCache<VocabWord> vocab, int vectorLength, VectorsConfiguration configuration,
+                             List<ByteBuffer> mappedRegions) {
+            super(vocab, vectorLength, false, configuration.getLearningRate(), Nd4j.getRandom(),
+                    configuration.getNegative(), configuration.isUseHierarchicSoftmax());
+            this.mappedRegions = mappedRegions;
+        }
+
+        void makeNegativeTable() {
+            if (negative > 0)
+                makeTable(Math.max(expTable.length, 100000), 0.75);
+        }
+    }
+
+    private static INDArray mapMatrix(FileChannel channel, boolean mappable, long position, long rows, int columns,
+                                      List<ByteBuffer> mappedRegions) throws IOException {
+        long length = rows * columns;
+        long bytes = length * 4L;
+
+        // zero-copy path: ND4J float buffer directly over a private (copy-on-write) mapping,
+        // so retraining can still update the rows without touching the file
+        if (mappable && bytes <= Integer.MAX_VALUE && Nd4j.dataType() == DataBuffer.Type.FLOAT
+                && ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.PRIVATE, position, bytes);
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            mappedRegions.add(mapped);
+            DataBuffer data = Nd4j.createBuffer(mapped, DataBuffer.Type.FLOAT, (int) length);
+            return Nd4j.create(data, new int[]{(int) rows, columns});
+        }
+
+        // matrices over 2GB can not be mapped as one region (nor read-only files), read them block by block instead
+        logger.warn(String.format("Copying a %d x %d matrix of the binary model into memory (%.1f MB): %s", rows,
+                columns, bytes / 1048576.0, !mappable ? "the file is read-only"
+                        : bytes > Integer.MAX_VALUE ? "it is over the 2GB mapping limit"
+                        : "it can not back an ND4J buffer in this configuration"));
+        INDArray matrix = Nd4j.create((int) rows, columns);
+        ByteBuffer block = ByteBuffer.allocateDirect(ROWS_PER_BLOCK * columns * 4).order(ByteOrder.LITTLE_ENDIAN);
+        float[] values = new float[ROWS_PER_BLOCK * columns];
+        for (long from = 0; from < rows; from += ROWS_PER_BLOCK) {
+            int count = (int) Math.min(ROWS_PER_BLOCK, rows - from);
+            block.clear().limit(count * columns * 4);
+            long offset = position + from * columns * 4L;
+            while (block.hasRemaining()) {
+                if (channel.read(block, offset + block.position()) < 0)
+                    throw new IOException("Unexpected end of binary model");
+            }
+            block.flip();
+            block.asFloatBuffer().get(values, 0, count * columns);
+            INDArray rowsBlock = Nd4j.create(count == ROWS_PER_BLOCK ? values
+                    : Arrays.copyOf(values, count * columns), new int[]{count, columns});
+            matrix.get(NDArrayIndex.interval(from, from + count), NDArrayIndex.all()).assign(rowsBlock);
+        }
+        return matrix;
+    }
+
+    private static void writeMatrix(FileChannel channel, ByteBuffer buffer, INDArray matrix) throws IOException {
+        for (int from = 0; from < matrix.rows(); from += ROWS_PER_BLOCK) {
+            int to = Math.min(from + ROWS_PER_BLOCK, matrix.rows());
+            float[] values = matrix.get(NDArrayIndex.interval(from, to), NDArrayIndex.all())
+                    .dup('c').data().asFloat();
+            int offset = 0;
+            while (offset < values.length) {
+                ensure(channel, buffer, 4);
+                int count = Math.min(values.length - offset, buffer.remaining() / 4);
+                buffer.asFloatBuffer().put(values, offset, count);
+                buffer.position(buffer.position() + count * 4);
+                offset += count;
+            }
+        }
+        flush(channel, buffer);
+    }
+
+    private static long align(long position) {
+        long remainder = position % ALIGNMENT;
+        return remainder == 0 ? position : position + ALIGNMENT - remainder;
+    }
+
+    private static void putBytes(FileChannel channel, ByteBuffer buffer, byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            ensure(channel, buffer, 1);
+            int count = Math.min(bytes.length - offset, buffer.remaining());
+            buffer.put(bytes, offset, count);
+            offset += count;
+        }
+    }
+
+    private static void ensure(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() < bytes)
+            flush(channel, buffer);
+    }
+
+    private static long flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+        return channel.position();
+    }
+
+    private static byte[] getBytes(FileChannel channel, ByteBuffer buffer, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            require(channel, buffer, 1);
+            int count = Math.min(length - offset, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            offset += count;
+        }
+        return bytes;
+    }
+
+    private static void require(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() >= bytes)
+            return;
+        buffer.compact();
+        while (buffer.position() < bytes) {
+            if (channel.read(buffer) < 0)
+                throw new IOException("Unexpected end of binary model");
+        }
+        buffer.flip();
+    }
+}
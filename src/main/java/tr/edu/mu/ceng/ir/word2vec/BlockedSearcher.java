@@ -0,0 +1,176 @@
+package tr.edu.mu.ceng.ir.word2vec;
+
+import org.deeplearning4j.models.embeddings.inmemory.InMemoryLookupTable;
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.deeplearning4j.models.word2vec.Word2Vec;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+/**
+ * Exact cosine top-k search over an L2-normalised copy of syn0. Queries are answered in batches: a block of
+ * query rows is multiplied against vocabulary blocks of the normalised matrix, and the top-k of every row is
+ * kept in a primitive heap, so the full query x vocabulary score matrix is never materialised. Only models held in
+ * an {@link InMemoryLookupTable} are searched this way, the others through {@link NearestSearcher#of}.
+ */
+class BlockedSearcher implements NearestSearcher {
+
+    static final int DEFAULT_VOCABULARY_BLOCK = 1 << 16;
+
+    private final INDArray normalized;
+    private final int vocabularyBlock;
+
+    BlockedSearcher(INDArray syn0) {
+        this(syn0, DEFAULT_VOCABULARY_BLOCK);
+    }
+
+    BlockedSearcher(INDArray syn0, int vocabularyBlock) {
+        this.normalized = syn0.dup('c');
+        this.normalized.diviColumnVector(this.normalized.norm2(1).addi(1e-12));
+        this.vocabularyBlock = vocabularyBlock;
+    }
+
+    static BlockedSearcher of(Word2Vec vec) {
+        if (!(vec.getLookupTable() instanceof InMemoryLookupTable))
+            throw new IllegalArgumentException("Blocked search needs an in-memory syn0, not a "
+                    + vec.getLookupTable().getClass().getSimpleName());
+        return new BlockedSearcher(((InMemoryLookupTable<VocabWord>) vec.getLookupTable()).getSyn0());
+    }
+
+    INDArray normalized() {
+        return normalized;
+    }
+
+    @Override
+    public int rows() {
+        return normalized.rows();
+    }
+
+    @Override
+    public int columns() {
+        return normalized.columns();
+    }
+
+    @Override
+    public float[] row(int id) {
+        return normalized.getRow(id).dup().data().asFloat();
+    }
+
+    @Override
+    public NearestSearcher limit(int rows) {
+        if (rows >= rows())
+            return this;
+        return new BlockedSearcher(normalized.get(NDArrayIndex.interval(0, rows), NDArrayIndex.all()), vocabularyBlock);
+    }
+
+    /**
+     * Returns the {@code k} most similar vocabulary ids for every query row, best first, skipping the ids listed in
+     * {@code excluded} for that row (may be null). Similarities are written to {@code scores} when it is not null.
+     */
+    int[][] search(INDArray queries, int k, int[][] excluded, float[][] scores) {
+        int count = queries.rows();
+        LongHeap[] heaps = new LongHeap[count];
+        for (int q = 0; q < count; q++)
+            heaps[q] = new LongHeap(k + 1);
+
+        int vocabulary = rows();
+        for (int from = 0; from < vocabulary; from += vocabularyBlock) {
+            int to = Math.min(vocabulary, from + vocabularyBlock);
+            INDArray block = normalized.get(NDArrayIndex.interval(from, to), NDArrayIndex.all());
+            float[] similarities = queries.mmul(block.transpose()).dup('c').data().asFloat();
+            int width = to - from;
+            for (int q = 0; q < count; q++)
+                collect(heaps[q], similarities, q * width, width, from, k, excluded == null ? null : excluded[q]);
+        }
+
+        int[][] result = new int[count][];
+        for (int q = 0; q < count; q++) {
+            LongHeap heap = heaps[q];
+            result[q] = new int[heap.size()];
+            if (scores != null)
+                scores[q] = new float[heap.size()];
+            for (int i = heap.size() - 1; i >= 0; i--) {
+                long key = heap.pop();
+                result[q][i] = (int) key;
+                if (scores != null)
+                    scores[q][i] = score(key);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int[][] search(float[][] queries, int k, int[][] excluded, float[][] scores) {
+        float[] flat = new float[queries.length * columns()];
+        for (int q = 0; q < queries.length; q++)
+            System.arraycopy(queries[q], 0, flat, q * columns(), columns());
+        return search(Nd4j.create(flat, new int[]{queries.length, columns()}), k, excluded, scores);
+    }
+
+    // dot products of the normalised rows of each pair
+    @Override
+    public double[] cosines(int[] left, int[] right) {
+        INDArray products = normalized.getRows(left).muli(normalized.getRows(right)).sum(1);
+        double[] cosines = new double[left.length];
+        for (int i = 0; i < cosines.length; i++)
+            cosines[i] = products.getDouble(i);
+        return cosines;
+    }
+
+    static void collect(LongHeap heap, float[] similarities, int offset, int length, int firstId, int k,
+                        int[] excluded) {
+        for (int i = 0; i < length; i++)
+            offer(heap, similarities[offset + i], firstId + i, k, excluded);
+    }
+
+    // keeps the k best of the offered rows in the heap, skipping the excluded ones
+    static void offer(LongHeap heap, float score, int id, int k, int[] excluded) {
+        if (heap.size() == k && score <= score(heap.peek()))
+            return;
+        if (excluded != null && contains(excluded, id))
+            return;
+        heap.push(key(score, id));
+        if (heap.size() > k)
+            heap.pop();
+    }
+
+    static void merge(LongHeap heap, LongHeap other, int k) {
+        while (other.size() > 0) {
+            heap.push(other.pop());
+            if (heap.size() > k)
+                heap.pop();
+        }
+    }
+
+    // sortable int image of a float, so that (score, id) packs into a long ordered by score
+    static long key(float score, int id) {
+        int bits = Float.floatToRawIntBits(score);
+        bits ^= (bits >> 31) & 0x7FFFFFFF;
+        return ((long) bits << 32) | (id & 0xFFFFFFFFL);
+    }
+
+    static float score(long key) {
+        int bits = (int) (key >> 32);
+        bits ^= (bits >> 31) & 0x7FFFFFFF;
+        return Float.intBitsToFloat(bits);
+    }
+
+    static void normalize(float[] vector) {
+        double norm = 0;
+        for (float value : vector)
+            norm += value * value;
+        if (norm == 0)
+            return;
+        float scale = (float) (1 / Math.sqrt(norm));
+        for (int i = 0; i < vector.length; i++)
+            vector[i] *= scale;
+    }
+
+    private static boolean contains(int[] ids, int id) {
+        for (int value : ids) {
+            if (value == id)
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,212 @@
+package tr.edu.mu.ceng.ir.word2vec;
+
+import org.deeplearning4j.models.embeddings.inmemory.InMemoryLookupTable;
+import org.deeplearning4j.models.embeddings.loader.VectorsConfiguration;
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.deeplearning4j.models.word2vec.Word2Vec;
+import org.deeplearning4j.models.word2vec.wordstore.VocabCache;
+import org.deeplearning4j.models.word2vec.wordstore.inmemory.AbstractCache;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Compact export of a model for serving: the most frequent words with their syn0 rows only, optionally as float16
+ * and L2-normalised, in one file that opens as a query-only {@link ServingWord2Vec}. syn1, syn1Neg, the Huffman codes
+ * and the words below the cut are left out.
+ * <p>
+ * Layout (little-endian): magic, version, words, dimension, flags, total word occurrences, total documents,
+ * configuration JSON, vocabulary (label, frequency, documents), then the 64-byte aligned rows.
+ */
+public class CompactModelSerializer {
+
+    private static Logger logger = LoggerFactory.getLogger(CompactModelSerializer.class);
+
+    static final int MAGIC = 0x57325653; // "W2VS"
+    static final int VERSION = 1;
+    static final int FLAG_FLOAT16 = 1;
+    static final int FLAG_NORMALIZED = 2;
+
+    private static final int ROWS_PER_BLOCK = 4096;
+    private static final float[] HALF_TO_FLOAT = new float[1 << 16];
+
+    static {
+        for (int bits = 0; bits < HALF_TO_FLOAT.length; bits++)
+            HALF_TO_FLOAT[bits] = decode(bits);
+    }
+
+    public static boolean isCompact(String path) {
+        File file = new File(path);
+        if (!file.isFile() || file.length() < 4)
+            return false;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            return Integer.reverseBytes(in.readInt()) == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the words of {@code vec} with a frequency of at least {@code minFrequency}, at most the {@code topWords}
+     * most frequent of them (0 for no limit), and returns the number of words written.
+     */
+    public static int write(Word2Vec vec, File file, int topWords, long minFrequency, boolean float16,
+                            boolean normalize) throws IOException {
+        long start = System.currentTimeMillis();
+        List<VocabWord> words = select(vec.getVocab(), topWords, minFrequency);
+        int dimension = vec.getLookupTable().layerSize();
+        int flags = (float16 ? FLAG_FLOAT16 : 0) | (normalize ? FLAG_NORMALIZED : 0);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 22).order(ByteOrder.LITTLE_ENDIAN);
+            byte[] config = vec.getConfiguration().toJson().getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(words.size()).putInt(dimension).putInt(flags)
+                    .putLong(vec.getVocab().totalWordOccurrences()).putLong(vec.getVocab().totalNumberOfDocs())
+                    .putInt(config.length);
+            ServingLookupTable.put(channel, buffer, config);
+            ServingLookupTable.writeVocabulary(channel, buffer, words);
+
+            ServingLookupTable.pad(channel, buffer);
+            for (int from = 0; from < words.size(); from += ROWS_PER_BLOCK) {
+                int to = Math.min(words.size(), from + ROWS_PER_BLOCK);
+                float[] block = rows(vec, words.subList(from, to), dimension);
+                float[] row = new float[dimension];
+                for (int r = 0; r < to - from; r++) {
+                    System.arraycopy(block, r * dimension, row, 0, dimension);
+                    if (normalize)
+                        BlockedSearcher.normalize(row);
+                    for (float value : row) {
+                        ServingLookupTable.ensure(channel, buffer, 4);
+                        if (float16)
+                            buffer.putShort(toHalf(value));
+                        else
+                            buffer.putFloat(value);
+                    }
+                }
+            }
+            ServingLookupTable.flush(channel, buffer);
+        }
+        logger.debug(String.format("Compact model of %d of %d words written to %s in %d ms (%.1f MB)", words.size(),
+                vec.getVocab().numWords(), file, System.currentTimeMillis() - start, file.length() / 1048576.0));
+        return words.size();
+    }
+
+    public static ServingWord2Vec open(String path) throws IOException {
+        File file = new File(path);
+        long start = System.currentTimeMillis();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 22).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.flip();
+            long[] position = {0};
+
+            ServingLookupTable.require(channel, buffer, position, 40);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+                throw new IOException(file + " is not a compact word2vec model");
+            int numWords = buffer.getInt();
+            int dimension = buffer.getInt();
+            int flags = buffer.getInt();
+            long totalWordOccurrences = buffer.getLong();
+            long totalDocs = buffer.getLong();
+            int configLength = buffer.getInt();
+            VectorsConfiguration configuration = VectorsConfiguration.fromJson(new String(
+                    ServingLookupTable.bytes(channel, buffer, position, configLength), StandardCharsets.UTF_8).trim());
+
+            AbstractCache<VocabWord> vocab = ServingLookupTable.readVocabulary(channel, buffer, position, numWords);
+            vocab.setTotalWordOccurences(totalWordOccurrences);
+            vocab.setTotalDocCount(totalDocs);
+
+            boolean float16 = (flags & FLAG_FLOAT16) != 0;
+            long offset = ServingLookupTable.align(position[0] - buffer.remaining());
+            if (offset + (long) numWords * dimension * (float16 ? 2 : 4) > channel.size())
+                throw new IOException("Unexpected end of " + file);
+            MappedLookupTable table = MappedLookupTable.map(channel, offset, vocab, configuration, dimension,
+                    float16, (flags & FLAG_NORMALIZED) != 0);
+            logger.debug("Compact model " + file + " opened in " + (System.currentTimeMillis() - start) + " ms");
+            return new ServingWord2Vec(table);
+        }
+    }
+
+    // the words kept, most frequent first, the vocabulary order breaking ties
+    static List<VocabWord> select(VocabCache<VocabWord> vocab, int topWords, long minFrequency) {
+        List<VocabWord> words = new ArrayList<>(vocab.numWords());
+        for (int i = 0; i < vocab.numWords(); i++) {
+            VocabWord word = vocab.elementAtIndex(i);
+            if (word.getElementFrequency() >= minFrequency)
+                words.add(word);
+        }
+        words.sort(Comparator.comparingDouble((VocabWord word) -> word.getElementFrequency()).reversed());
+        return topWords > 0 && topWords < words.size() ? new ArrayList<>(words.subList(0, topWords)) : words;
+    }
+
+    // syn0 rows of the words, gathered in one call for full models
+    private static float[] rows(Word2Vec vec, List<VocabWord> words, int dimension) {
+        if (vec.getLookupTable() instanceof InMemoryLookupTable) {
+            int[] ids = new int[words.size()];
+            for (int i = 0; i < ids.length; i++)
+                ids[i] = words.get(i).getIndex();
+            INDArray syn0 = ((InMemoryLookupTable<VocabWord>) vec.getLookupTable()).getSyn0();
+            return syn0.getRows(ids).dup('c').data().asFloat();
+        }
+        float[] rows = new float[words.size() * dimension];
+        for (int i = 0; i < words.size(); i++)
+            System.arraycopy(vec.getLookupTable().vector(words.get(i).getLabel()).dup().data().asFloat(), 0, rows,
+                    i * dimension, dimension);
+        return rows;
+    }
+
+    /**
+     * IEEE 754 half precision of a float, rounded to nearest; values beyond the half range become infinities.
+     */
+    static short toHalf(float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int magnitude = bits & 0x7fffffff;
+        int rounded = magnitude + 0x1000;
+        if (rounded >= 0x47800000) {
+            if (magnitude >= 0x47800000) {
+                if (rounded < 0x7f800000)
+                    return (short) (sign | 0x7c00);
+                return (short) (sign | 0x7c00 | ((bits & 0x007fffff) >>> 13));
+            }
+            return (short) (sign | 0x7bff);
+        }
+        if (rounded >= 0x38800000)
+            return (short) (sign | ((rounded - 0x38000000) >>> 13));
+        if (rounded < 0x33000000)
+            return (short) sign;
+        // subnormal half
+        int exponent = magnitude >>> 23;
+        return (short) (sign | (((magnitude & 0x7fffff) | 0x800000) + (0x800000 >>> (exponent - 102))
+                >>> (126 - exponent)));
+    }
+
+    static float toFloat(short half) {
+        return HALF_TO_FLOAT[half & 0xffff];
+    }
+
+    private static float decode(int half) {
+        int sign = (half & 0x8000) << 16;
+        int exponent = (half >>> 10) & 0x1f;
+        int mantissa = half & 0x3ff;
+        if (exponent == 0) {
+            float value = mantissa / 16777216f;
+            return sign != 0 ? -value : value;
+        }
+        if (exponent == 31)
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+    }
+}
@@ -0,0 +1,428 @@
+package tr.edu.mu.ceng.ir.word2vec;
+
+import org.deeplearning4j.models.sequencevectors.interfaces.SequenceIterator;
+import org.deeplearning4j.models.sequencevectors.sequence.Sequence;
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.deeplearning4j.text.sentenceiterator.SentenceIterator;
+import org.deeplearning4j.text.tokenization.tokenizer.Tokenizer;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.TokenizerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A corpus compiled once through the sentence preprocessor, tokenizer and stop-word filter into a binary file of
+ * dictionary ids, so repeated training runs and epochs read memory-mapped ids instead of re-tokenizing text.
+ *
+ * <p>Layout: a fixed header (magic, version, fingerprint, sentence and token counts, dictionary and block index
+ * offsets), blocks of sentences each stored as a varint length followed by varint ids, the dictionary as UTF
+ * strings and the block index. Blocks stay below {@link #BLOCK_SIZE} so each one can be mapped on its own.
+ * The fingerprint covers the source files, the preprocessing settings and the stop words; a mismatch means the
+ * cache is stale and is compiled again.
+ */
+public class CorpusCache {
+
+    private static Logger logger = LoggerFactory.getLogger(CorpusCache.class);
+
+    static final int MAGIC = 0x57325643; // "W2VC"
+    static final int VERSION = 2;
+    static final String EXTENSION = ".w2vc";
+
+    private static final int HEADER_SIZE = 48;
+    private static final int BLOCK_SIZE = 1 << 26;
+
+    private final String[] dictionary;
+    private final MappedByteBuffer[] blocks;
+    private final long sentences;
+    private final long tokens;
+
+    private CorpusCache(String[] dictionary, MappedByteBuffer[] blocks, long sentences, long tokens) {
+        this.dictionary = dictionary;
+        this.blocks = blocks;
+        this.sentences = sentences;
+        this.tokens = tokens;
+    }
+
+    /**
+     * Returns the cache of {@code source} under {@code cacheFolder}, compiling it first when it is missing or its
+     * fingerprint does not match the current source files and settings.
+     */
+    public static CorpusCache open(File source, File cacheFolder, String settings, SentenceIterator sentences,
+                                   TokenizerFactory tokenizerFactory, Collection<String> stopWords) throws IOException {
+        File cacheFile = cacheFile(source, cacheFolder);
+        long fingerprint = fingerprint(source, settings + "|" + tokenizerFactory.getClass().getName(), stopWords);
+        if (fingerprint(cacheFile) != fingerprint) {
+            logger.debug("=====Compiling corpus " + source + " to " + cacheFile + " =====");
+            compile(sentences, tokenizerFactory, stopWords, fingerprint, cacheFile);
+        } else {
+            logger.debug("=====Using corpus cache " + cacheFile + " =====");
+        }
+        return read(cacheFile);
+    }
+
+    static File cacheFile(File source, File cacheFolder) {
+        String path = source.getAbsoluteFile().toPath().normalize().toString();
+        return new File(cacheFolder, source.getName() + "-" + Long.toHexString(hash(FNV_OFFSET, path)) + EXTENSION);
+    }
+
+    static long fingerprint(File source, String settings, Collection<String> stopWords) throws IOException {
+        long hash = hash(FNV_OFFSET, "v" + VERSION + "|" + settings);
+        for (String stopWord : new TreeSet<>(stopWords))
+            hash = hash(hash, stopWord + "\n");
+
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(source.toPath())) {
+            files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        for (Path file : files)
+            hash = hash(hash, file.toAbsolutePath() + "|" + Files.size(file) + "|" + Files.getLastModifiedTime(file).toMillis());
+        return hash;
+    }
+
+    // fingerprint stored in an existing cache file, 0 when there is no readable cache
+    static long fingerprint(File cacheFile) throws IOException {
+        if (!cacheFile.isFile() || cacheFile.length() < HEADER_SIZE)
+            return 0;
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(cacheFile.toPath()))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return 0;
+            return in.readLong();
+        }
+    }
+
+    static void compile(SentenceIterator sentenceIterator, TokenizerFactory tokenizerFactory,
+                        Collection<String> stopWords, long fingerprint, File cacheFile) throws IOException {
+        long start = System.currentTimeMillis();
+        File folder = cacheFile.getAbsoluteFile().getParentFile();
+        if (!folder.exists() && !folder.mkdirs())
+            throw new IOException("Can not create corpus cache folder " + folder);
+        File temporary = new File(folder, cacheFile.getName() + ".tmp");
+
+        Set<String> stopSet = new HashSet<>(stopWords);
+        Map<String, Integer> ids = new HashMap<>();
+        List<String> dictionary = new ArrayList<>();
+        List<long[]> blockIndex = new ArrayList<>();
+        long sentences = 0;
+        long tokens = 0;
+
+        try (FileOutputStream file = new FileOutputStream(temporary);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 20))) {
+            out.write(new byte[HEADER_SIZE]);
+            VarIntBuffer block = new VarIntBuffer();
+            VarIntBuffer sentence = new VarIntBuffer();
+            long offset = HEADER_SIZE;
+
+            sentenceIterator.reset();
+            while (sentenceIterator.hasNext()) {
+                String text = sentenceIterator.nextSentence();
+                if (text == null)
+                    continue;
+                Tokenizer tokenizer = tokenizerFactory.create(text);
+                sentence.clear();
+                int length = 0;
+                // same filtering as SentenceTransformer plus the stop words the trainer would skip
+                for (String token : tokenizer.getTokens()) {
+                    if (token == null || token.trim().isEmpty() || stopSet.contains(token))
+                        continue;
+                    Integer id = ids.get(token);
+                    if (id == null) {
+                        id = dictionary.size();
+                        ids.put(token, id);
+                        dictionary.add(token);
+                    }
+                    sentence.put(id);
+                    length++;
+                }
+                if (length == 0)
+                    continue;
+
+                if (block.size() + sentence.size() + 5 > BLOCK_SIZE && block.size() > 0) {
+                    block.writeTo(out);
+                    blockIndex.add(new long[]{offset, block.size()});
+                    offset += block.size();
+                    block.clear();
+                }
+                block.put(length);
+                block.put(sentence);
+                sentences++;
+                tokens += length;
+            }
+            if (block.size() > 0) {
+                block.writeTo(out);
+                blockIndex.add(new long[]{offset, block.size()});
+                offset += block.size();
+            }
+
+            long dictionaryOffset = offset;
+            out.writeInt(dictionary.size());
+            // length-prefixed UTF-8 as in the binary model, writeUTF stops at 65535 bytes
+            for (String word : dictionary) {
+                byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            out.flush();
+            long blockIndexOffset = file.getChannel().position();
+            out.writeInt(blockIndex.size());
+            for (long[] entry : blockIndex) {
+                out.writeLong(entry[0]);
+                out.writeLong(entry[1]);
+            }
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(fingerprint).putLong(sentences).putLong(tokens)
+                    .putLong(dictionaryOffset).putLong(blockIndexOffset);
+            header.flip();
+            file.getChannel().write(header, 0);
+        }
+        Files.move(temporary.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        logger.debug("Corpus cache: " + sentences + " sentences, " + tokens + " tokens, " + dictionary.size()
+                + " distinct tokens, " + cacheFile.length() / 1024 / 1024 + " MB in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    public static CorpusCache read(File cacheFile) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(cacheFile, "r");
+             FileChannel channel = file.getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC)
+                throw new IOException(cacheFile + " is not a corpus cache file");
+            int version = header.getInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported corpus cache version " + version + " in " + cacheFile);
+            header.getLong();
+            long sentences = header.getLong();
+            long tokens = header.getLong();
+            long dictionaryOffset = header.getLong();
+            long blockIndexOffset = header.getLong();
+
+            channel.position(dictionaryOffset);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 20));
+            String[] dictionary = new String[in.readInt()];
+            for (int i = 0; i < dictionary.length; i++) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                dictionary[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            channel.position(blockIndexOffset);
+            in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            MappedByteBuffer[] blocks = new MappedByteBuffer[in.readInt()];
+            for (int i = 0; i < blocks.length; i++) {
+                long offset = in.readLong();
+                long length = in.readLong();
+                blocks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            }
+            return new CorpusCache(dictionary, blocks, sentences, tokens);
+        }
+    }
+
+    String label(int id) {
+        return dictionary[id];
+    }
+
+    /**
+     * Counts every dictionary id over the cached sentences, one mapped block per task. Returns the occurrence
+     * counts in {@code [0]} and the number of sentences containing each id in {@code [1]}.
+     */
+    long[][] count(int threads) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, blocks.length)));
+        try {
+            List<Future<long[][]>> parts = new ArrayList<>();
+            for (MappedByteBuffer block : blocks) {
+                final ByteBuffer buffer = block.duplicate();
+                parts.add(executor.submit(() -> {
+                    long[] frequencies = new long[dictionary.length];
+                    long[] documents = new long[dictionary.length];
+                    int[] lastSentence = new int[dictionary.length];
+                    Arrays.fill(lastSentence, -1);
+                    for (int sentence = 0; buffer.hasRemaining(); sentence++) {
+                        int length = readVarInt(buffer);
+                        for (int i = 0; i < length; i++) {
+                            int id = readVarInt(buffer);
+                            frequencies[id]++;
+                            if (lastSentence[id] != sentence) {
+                                lastSentence[id] = sentence;
+                                documents[id]++;
+                            }
+                        }
+                    }
+                    return new long[][]{frequencies, documents};
+                }));
+            }
+
+            long[][] total = {new long[dictionary.length], new long[dictionary.length]};
+            for (Future<long[][]> part : parts) {
+                long[][] counts = part.get();
+                for (int id = 0; id < dictionary.length; id++) {
+                    total[0][id] += counts[0][id];
+                    total[1][id] += counts[1][id];
+                }
+            }
+            return total;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Counting corpus cache failed", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public long getSentences() {
+        return sentences;
+    }
+
+    public long getTokens() {
+        return tokens;
+    }
+
+    public int getDictionarySize() {
+        return dictionary.length;
+    }
+
+    /**
+     * Returns a new iterator over the cached sentences; each iterator has its own position over the shared
+     * mapped blocks.
+     */
+    public SequenceIterator<VocabWord> iterator() {
+        return new CachedSequenceIterator();
+    }
+
+    private class CachedSequenceIterator implements SequenceIterator<VocabWord> {
+
+        private int block;
+        private ByteBuffer current;
+        private int sequenceId;
+
+        CachedSequenceIterator() {
+            reset();
+        }
+
+        @Override
+        public boolean hasMoreSequences() {
+            while (current != null && !current.hasRemaining()) {
+                block++;
+                current = block < blocks.length ? blocks[block].duplicate() : null;
+            }
+            return current != null;
+        }
+
+        @Override
+        public Sequence<VocabWord> nextSequence() {
+            if (!hasMoreSequences())
+                return null;
+            Sequence<VocabWord> sequence = new Sequence<>();
+            int length = readVarInt(current);
+            for (int i = 0; i < length; i++)
+                sequence.addElement(new VocabWord(1.0, dictionary[readVarInt(current)]));
+            sequence.setSequenceId(sequenceId++);
+            return sequence;
+        }
+
+        @Override
+        public void reset() {
+            block = 0;
+            sequenceId = 0;
+            current = blocks.length > 0 ? blocks[0].duplicate() : null;
+        }
+    }
+
+    static int readVarInt(ByteBuffer buffer) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    // growable byte array of LEB128-encoded ints
+    private static class VarIntBuffer {
+
+        private byte[] bytes = new byte[1024];
+        private int size;
+
+        void put(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void put(VarIntBuffer other) {
+            ensure(other.size);
+            System.arraycopy(other.bytes, 0, bytes, size, other.size);
+            size += other.size;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.write(bytes, 0, size);
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                byte[] grown = new byte[Math.max(bytes.length * 2, size + extra)];
+                System.arraycopy(bytes, 0, grown, 0, size);
+                bytes = grown;
+            }
+        }
+    }
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static long hash(long hash, String value) {
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+}
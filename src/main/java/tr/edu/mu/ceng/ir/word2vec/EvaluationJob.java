@@ -0,0 +1,323 @@
+package tr.edu.mu.ceng.ir.word2vec;
+
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.deeplearning4j.models.word2vec.Word2Vec;
+import org.deeplearning4j.models.word2vec.wordstore.VocabCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Scores a model on analogy and word similarity benchmark files.
+ * <p>
+ * Analogy files hold {@code a b c d} questions (a is to b as c is to d) under {@code : section} lines, as the
+ * questions-words.txt file of the original word2vec. Each question is answered by the nearest word to
+ * {@code b - a + c} over the normalised syn0, a, b and c excluded; questions are answered in batches by
+ * {@link NearestSearcher} on all cores. Sections starting with "gram" count as syntactic, the others as semantic.
+ * <p>
+ * Similarity files hold {@code word1 word2 score} lines separated by tabs, commas or spaces (WordSim-353, SimLex-999,
+ * MEN, ...); lines that do not end in a number, such as headers, are skipped. The result is the Spearman correlation
+ * of the cosine similarities with the scores.
+ * <p>
+ * Questions with words outside the vocabulary, or outside its {@code vocabularyLimit} most frequent words, are
+ * skipped and counted.
+ */
+public class EvaluationJob {
+
+    private static Logger logger = LoggerFactory.getLogger(EvaluationJob.class);
+
+    private final Word2Vec vec;
+    private final int threads;
+    private final int batchSize;
+    private final int vocabularyLimit;
+    private final boolean lowerCase;
+
+    /**
+     * @param vocabularyLimit number of most frequent words that are answers and questions, 0 for the vocabulary
+     * @param lowerCase       lower case the benchmark words, as for models trained on lower cased text
+     */
+    public EvaluationJob(Word2Vec vec, int threads, int batchSize, int vocabularyLimit, boolean lowerCase) {
+        this.vec = vec;
+        this.threads = Math.max(1, threads);
+        this.batchSize = Math.max(1, batchSize);
+        this.vocabularyLimit = vocabularyLimit;
+        this.lowerCase = lowerCase;
+    }
+
+    /**
+     * Evaluates every file, telling analogy files from similarity files by their first question, and prints one
+     * result line per analogy section and per file to {@code out}.
+     */
+    public void run(List<File> files, PrintStream out) throws IOException {
+        NearestSearcher searcher = NearestSearcher.of(vec);
+        if (vocabularyLimit > 0 && vocabularyLimit < searcher.rows())
+            searcher = searcher.limit(vocabularyLimit);
+        logger.debug("=====Evaluating over " + searcher.rows() + " words with " + threads + " threads=====");
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (File file : files) {
+                List<String[]> questions = read(file);
+                if (questions.isEmpty()) {
+                    out.println(file.getName() + "\tno questions");
+                } else if (isAnalogy(questions)) {
+                    analogies(file, questions, searcher, executor, out);
+                } else {
+                    similarity(file, questions, searcher, executor, out);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void analogies(File file, List<String[]> lines, NearestSearcher searcher, ExecutorService executor,
+                           PrintStream out) throws IOException {
+        // section of every question, and the ids of its words when all are known
+        List<String> sections = new ArrayList<>();
+        List<int[]> questions = new ArrayList<>();
+        String section = "";
+        int skipped = 0;
+        for (String[] line : lines) {
+            if (line.length == 1) {
+                section = line[0];
+                continue;
+            }
+            int[] ids = ids(line, searcher.rows());
+            if (ids == null) {
+                skipped++;
+                continue;
+            }
+            sections.add(section);
+            questions.add(ids);
+        }
+
+        long start = System.currentTimeMillis();
+        List<Future<boolean[]>> batches = new ArrayList<>();
+        for (int from = 0; from < questions.size(); from += batchSize) {
+            List<int[]> batch = questions.subList(from, Math.min(questions.size(), from + batchSize));
+            batches.add(executor.submit(() -> answer(searcher, batch)));
+        }
+        Map<String, int[]> bySection = new LinkedHashMap<>();
+        int[] semantic = new int[2];
+        int[] syntactic = new int[2];
+        int next = 0;
+        for (Future<boolean[]> batch : batches) {
+            for (boolean correct : await(batch)) {
+                String name = sections.get(next++);
+                int[] counts = bySection.computeIfAbsent(name, key -> new int[2]);
+                int[] kind = name.startsWith("gram") ? syntactic : semantic;
+                int hit = correct ? 1 : 0;
+                counts[0] += hit;
+                counts[1]++;
+                kind[0] += hit;
+                kind[1]++;
+            }
+        }
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+        for (Map.Entry<String, int[]> entry : bySection.entrySet())
+            out.println(String.format(Locale.ROOT, "%s\tanalogy\t%s\taccuracy %.4f\t(%d/%d)", file.getName(),
+                    entry.getKey(), accuracy(entry.getValue()), entry.getValue()[0], entry.getValue()[1]));
+        out.println(String.format(Locale.ROOT, "%s\tanalogy\tsemantic\taccuracy %.4f\t(%d/%d)", file.getName(),
+                accuracy(semantic), semantic[0], semantic[1]));
+        out.println(String.format(Locale.ROOT, "%s\tanalogy\tsyntactic\taccuracy %.4f\t(%d/%d)", file.getName(),
+                accuracy(syntactic), syntactic[0], syntactic[1]));
+        out.println(String.format(Locale.ROOT, "%s\tanalogy\ttotal\taccuracy %.4f\t(%d/%d, %d skipped)\t%.0f q/s",
+                file.getName(), accuracy(new int[]{semantic[0] + syntactic[0], semantic[1] + syntactic[1]}),
+                semantic[0] + syntactic[0], questions.size(), skipped, questions.size() / (elapsed / 1000.0)));
+    }
+
+    // b - a + c against the vocabulary, a hit when the nearest word that is not a, b or c is d
+    private static boolean[] answer(NearestSearcher searcher, List<int[]> batch) {
+        float[][] queries = new float[batch.size()][];
+        int[][] excluded = new int[batch.size()][];
+        for (int q = 0; q < queries.length; q++) {
+            int[] ids = batch.get(q);
+            queries[q] = searcher.query(new int[]{ids[1], ids[2]}, new int[]{ids[0]});
+            excluded[q] = new int[]{ids[0], ids[1], ids[2]};
+        }
+        int[][] nearest = searcher.search(queries, 1, excluded, null);
+        boolean[] correct = new boolean[queries.length];
+        for (int q = 0; q < queries.length; q++)
+            correct[q] = nearest[q].length > 0 && nearest[q][0] == batch.get(q)[3];
+        return correct;
+    }
+
+    private void similarity(File file, List<String[]> lines, NearestSearcher searcher, ExecutorService executor,
+                            PrintStream out) throws IOException {
+        List<int[]> pairs = new ArrayList<>();
+        List<Double> expected = new ArrayList<>();
+        int skipped = 0;
+        for (String[] line : lines) {
+            if (line.length != 3)
+                continue;
+            int[] ids = ids(Arrays.copyOf(line, 2), searcher.rows());
+            if (ids == null) {
+                skipped++;
+                continue;
+            }
+            pairs.add(ids);
+            expected.add(Double.parseDouble(line[2]));
+        }
+
+        long start = System.currentTimeMillis();
+        List<Future<double[]>> batches = new ArrayList<>();
+        for (int from = 0; from < pairs.size(); from += batchSize) {
+            List<int[]> batch = pairs.subList(from, Math.min(pairs.size(), from + batchSize));
+            batches.add(executor.submit(() -> cosines(searcher, batch)));
+        }
+        double[] model = new double[pairs.size()];
+        int next = 0;
+        for (Future<double[]> batch : batches) {
+            for (double cosine : await(batch))
+                model[next++] = cosine;
+        }
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+        double[] human = new double[expected.size()];
+        for (int i = 0; i < human.length; i++)
+            human[i] = expected.get(i);
+        out.println(String.format(Locale.ROOT, "%s\tsimilarity\tspearman %.4f\t(%d pairs, %d skipped)\t%.0f q/s",
+                file.getName(), spearman(model, human), pairs.size(), skipped, pairs.size() / (elapsed / 1000.0)));
+    }
+
+    private static double[] cosines(NearestSearcher searcher, List<int[]> batch) {
+        int[] left = new int[batch.size()];
+        int[] right = new int[batch.size()];
+        for (int i = 0; i < left.length; i++) {
+            left[i] = batch.get(i)[0];
+            right[i] = batch.get(i)[1];
+        }
+        return searcher.cosines(left, right);
+    }
+
+    /**
+     * Spearman's rank correlation, the Pearson correlation of the ranks with ties given their average rank.
+     */
+    static double spearman(double[] x, double[] y) {
+        double[] rx = ranks(x);
+        double[] ry = ranks(y);
+        int n = rx.length;
+        if (n < 2)
+            return Double.NaN;
+        double mean = (n + 1) / 2.0;
+        double covariance = 0;
+        double varianceX = 0;
+        double varianceY = 0;
+        for (int i = 0; i < n; i++) {
+            covariance += (rx[i] - mean) * (ry[i] - mean);
+            varianceX += (rx[i] - mean) * (rx[i] - mean);
+            varianceY += (ry[i] - mean) * (ry[i] - mean);
+        }
+        return covariance / Math.sqrt(varianceX * varianceY);
+    }
+
+    static double[] ranks(double[] values) {
+        Integer[] order = new Integer[values.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Double.compare(values[a], values[b]));
+        double[] ranks = new double[values.length];
+        for (int from = 0; from < order.length; ) {
+            int to = from + 1;
+            while (to < order.length && values[order[to]] == values[order[from]])
+                to++;
+            double rank = (from + 1 + to) / 2.0;
+            for (int i = from; i < to; i++)
+                ranks[order[i]] = rank;
+            from = to;
+        }
+        return ranks;
+    }
+
+    private static double accuracy(int[] counts) {
+        return counts[1] == 0 ? 0 : (double) counts[0] / counts[1];
+    }
+
+    // ids of the words, or null when one of them is unknown or beyond the searched rows
+    private int[] ids(String[] words, int rows) {
+        VocabCache<VocabWord> vocab = vec.getVocab();
+        int[] ids = new int[words.length];
+        for (int i = 0; i < words.length; i++) {
+            String word = lowerCase ? words[i].toLowerCase(Locale.ROOT) : words[i];
+            if (!vocab.containsWord(word))
+                return null;
+            ids[i] = vocab.indexOf(word);
+            if (ids[i] < 0 || ids[i] >= rows)
+                return null;
+        }
+        return ids;
+    }
+
+    /**
+     * The questions of a file: four words per analogy, one section name per {@code :} line, and two words and a
+     * score per similarity pair.
+     */
+    private static List<String[]> read(File file) throws IOException {
+        List<String[]> questions = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                if (line.startsWith(":")) {
+                    questions.add(new String[]{line.substring(1).trim()});
+                    continue;
+                }
+                String[] fields = line.split("[\\t, ]+");
+                if (fields.length == 4 && !isNumber(fields[3]))
+                    questions.add(fields);
+                else if (fields.length >= 3 && isNumber(fields[fields.length - 1]))
+                    questions.add(new String[]{fields[0], fields[1], fields[fields.length - 1]});
+            }
+        }
+        return questions;
+    }
+
+    // the first question decides, section lines aside
+    private static boolean isAnalogy(List<String[]> questions) {
+        for (String[] question : questions) {
+            if (question.length > 1)
+                return question.length == 4;
+        }
+        return false;
+    }
+
+    private static boolean isNumber(String value) {
+        try {
+            Double.parseDouble(value);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while evaluating", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Evaluation failed", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package tr.edu.mu.ceng.ir.word2vec;
+
+import org.deeplearning4j.text.tokenization.tokenizer.TokenPreProcess;
+import org.deeplearning4j.text.tokenization.tokenizer.Tokenizer;
+import org.deeplearning4j.text.tokenization.tokenizer.preprocessor.CommonPreprocessor;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.TokenizerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Tokenizer factory producing the same training tokens as the sentence lower-casing, {@code DefaultTokenizerFactory}
+ * with {@code CommonPreprocessor} and stop-word chain, without its per-token garbage. Sentences are scanned in place:
+ * whitespace splits tokens as in {@link java.util.StringTokenizer}, the characters {@code CommonPreprocessor} strips
+ * are skipped, ASCII letters are folded while copying into a reusable buffer, and the result is looked up in a
+ * primitive hash table holding the stop words and the canonical string of every token seen so far. Known tokens are
+ * therefore returned without allocating; tokens the training pipeline would drop (blank ones and stop words) are
+ * never produced. Tokens with non-ASCII characters go through the original string operations so the output stays
+ * identical for them too.
+ */
+public class FastTokenizerFactory implements TokenizerFactory {
+
+    // the character class of StringCleaning.stripPunct: [\d\.:,"'\(\)\[\]|/?!;]
+    private static final boolean[] STRIPPED = new boolean[128];
+
+    // String.toLowerCase follows the default locale, where it does not fold A-Z to a-z those tokens go the slow way
+    private static final boolean ASCII_FOLDING =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZ".toLowerCase().equals("abcdefghijklmnopqrstuvwxyz");
+
+    static {
+        for (char c = '0'; c <= '9'; c++)
+            STRIPPED[c] = true;
+        for (char c : ".:,\"'()[]|/?!;".toCharArray())
+            STRIPPED[c] = true;
+    }
+
+    private static final int MAX_INTERNED = 1 << 22;
+
+    private static final CommonPreprocessor COMMON_PREPROCESSOR = new CommonPreprocessor();
+
+    private final boolean lowerCaseSentences;
+    private final TokenTable stopWords;
+    private volatile TokenTable tokens = new TokenTable(1 << 12);
+    private volatile TokenPreProcess tokenPreProcess;
+
+    private final ThreadLocal<char[]> scratch = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[64];
+        }
+    };
+
+    public FastTokenizerFactory() {
+        this(Collections.<String>emptyList(), true);
+    }
+
+    /**
+     * @param lowerCaseSentences whether the replaced chain lower-cased whole sentences before tokenizing; it only
+     *                           matters for the few non-ASCII tokens where folding before and after stripping differ
+     */
+    public FastTokenizerFactory(Collection<String> stopWords, boolean lowerCaseSentences) {
+        this.lowerCaseSentences = lowerCaseSentences;
+        this.stopWords = new TokenTable(Math.max(16, stopWords.size() * 2));
+        for (String stopWord : stopWords)
+            this.stopWords.put(stopWord.toCharArray(), 0, stopWord.length(), stopWord);
+    }
+
+    @Override
+    public Tokenizer create(String toTokenize) {
+        return new FastTokenizer(toTokenize, tokenPreProcess);
+    }
+
+    @Override
+    public Tokenizer create(InputStream toTokenize) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = toTokenize.read(buffer)) > 0)
+                bytes.write(buffer, 0, read);
+            return create(new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * {@code CommonPreprocessor} is what this factory already does; any other preprocessor is applied to the tokens
+     * afterwards. Tokenizers created later use it.
+     */
+    @Override
+    public void setTokenPreProcessor(TokenPreProcess preProcessor) {
+        this.tokenPreProcess = extra(preProcessor);
+    }
+
+    private static TokenPreProcess extra(TokenPreProcess preProcessor) {
+        return preProcessor instanceof CommonPreprocessor ? null : preProcessor;
+    }
+
+    @Override
+    public TokenPreProcess getTokenPreProcessor() {
+        return tokenPreProcess == null ? COMMON_PREPROCESSOR : tokenPreProcess;
+    }
+
+    public boolean isLowerCaseSentences() {
+        return lowerCaseSentences;
+    }
+
+    private static boolean isDelimiter(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    /**
+     * Processes {@code text[from, to)} and returns the token, or null when the pipeline would drop it.
+     */
+    private String token(String text, int from, int to) {
+        char[] buffer = scratch.get();
+        if (buffer.length < to - from) {
+            buffer = new char[Math.max(to - from, buffer.length * 2)];
+            scratch.set(buffer);
+        }
+
+        int length = 0;
+        boolean blank = true;
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (c >= 128 || (!ASCII_FOLDING && c >= 'A' && c <= 'Z'))
+                return slowToken(text.substring(from, to));
+            if (STRIPPED[c])
+                continue;
+            if (c >= 'A' && c <= 'Z')
+                c += 'a' - 'A';
+            if (c > ' ')
+                blank = false;
+            buffer[length++] = c;
+        }
+        if (blank)
+            return null;
+        return lookup(buffer, length);
+    }
+
+    private String lookup(char[] buffer, int length) {
+        if (stopWords.get(buffer, 0, length) != null)
+            return null;
+
+        TokenTable table = tokens;
+        String token = table.get(buffer, 0, length);
+        if (token == null) {
+            token = new String(buffer, 0, length);
+            if (table.size() < MAX_INTERNED) {
+                if (table.needsGrowth())
+                    table = grow(table);
+                token = table.put(buffer, 0, length, token);
+            }
+        }
+        return token;
+    }
+
+    // one thread copies a full table, the others go on with the replacement; a token added to the full table while
+    // it is copied may be missing from the replacement, which only costs one more allocation when it comes again
+    private synchronized TokenTable grow(TokenTable full) {
+        if (tokens == full)
+            tokens = full.grow();
+        return tokens;
+    }
+
+    private String slowToken(String raw) {
+        String token = COMMON_PREPROCESSOR.preProcess(lowerCaseSentences ? raw.toLowerCase() : raw);
+        if (token.isEmpty() || token.trim().isEmpty())
+            return null;
+        return lookup(token.toCharArray(), token.length());
+    }
+
+    private class FastTokenizer implements Tokenizer {
+
+        private final String text;
+        private TokenPreProcess tokenPreProcess;
+        private int position;
+        private String next;
+
+        FastTokenizer(String text, TokenPreProcess tokenPreProcess) {
+            this.text = text;
+            this.tokenPreProcess = tokenPreProcess;
+        }
+
+        @Override
+        public boolean hasMoreTokens() {
+            while (next == null) {
+                int length = text.length();
+                while (position < length && isDelimiter(text.charAt(position)))
+                    position++;
+                if (position == length)
+                    return false;
+                int from = position;
+                while (position < length && !isDelimiter(text.charAt(position)))
+                    position++;
+                next = token(text, from, position);
+                if (next != null && tokenPreProcess != null)
+                    next = tokenPreProcess.preProcess(next);
+            }
+            return true;
+        }
+
+        @Override
+        public int countTokens() {
+            int saved = position;
+            String savedNext = next;
+            int count = 0;
+            while (hasMoreTokens()) {
+                next = null;
+                count++;
+            }
+            position = saved;
+            next = savedNext;
+            return count;
+        }
+
+        @Override
+        public String nextToken() {
+            if (!hasMoreTokens())
+                throw new NoSuchElementException();
+            String token = next;
+            next = null;
+            return token;
+        }
+
+        @Override
+        public List<String> getTokens() {
+            List<String> result = new ArrayList<>();
+            while (hasMoreTokens())
+                result.add(nextToken());
+            return result;
+        }
+
+        @Override
+        public void setTokenPreProcessor(TokenPreProcess tokenPreProcessor) {
+            this.tokenPreProcess = extra(tokenPreProcessor);
+        }
+    }
+
+    /**
+     * Open-addressing table from a char sequence to its canonical string, shared by the tokenizer threads without
+     * locking. Slots are claimed with a compare-and-set of an immutable entry holding the hash and the string, so a
+     * reader sees either no entry or a complete one, and two threads inserting the same token agree on one string.
+     */
+    private static class TokenTable {
+
+        private final AtomicReferenceArray<Entry> entries;
+        private final AtomicInteger size = new AtomicInteger();
+        private final int mask;
+
+        TokenTable(int capacity) {
+            int length = Integer.highestOneBit(Math.max(16, capacity) - 1) << 1;
+            entries = new AtomicReferenceArray<>(length);
+            mask = length - 1;
+        }
+
+        int size() {
+            return size.get();
+        }
+
+        boolean needsGrowth() {
+            return size.get() * 2 >= entries.length();
+        }
+
+        TokenTable grow() {
+            TokenTable grown = new TokenTable(entries.length() * 2);
+            for (int slot = 0; slot < entries.length(); slot++) {
+                Entry entry = entries.get(slot);
+                if (entry != null)
+                    grown.put(entry.value.toCharArray(), 0, entry.value.length(), entry.value);
+            }
+            return grown;
+        }
+
+        String get(char[] chars, int from, int length) {
+            int hash = hash(chars, from, length);
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                Entry entry = entries.get(slot);
+                if (entry == null)
+                    return null;
+                if (entry.hash == hash && matches(entry.value, chars, from, length))
+                    return entry.value;
+            }
+        }
+
+        /**
+         * Adds the token unless it is there already, and returns the string the table holds for it.
+         */
+        String put(char[] chars, int from, int length, String value) {
+            int hash = hash(chars, from, length);
+            Entry added = new Entry(hash, value);
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                Entry entry = entries.get(slot);
+                if (entry == null) {
+                    if (entries.compareAndSet(slot, null, added)) {
+                        size.incrementAndGet();
+                        return value;
+                    }
+                    // another thread took the slot first, look at what it put there
+                    entry = entries.get(slot);
+                }
+                if (entry.hash == hash && matches(entry.value, chars, from, length))
+                    return entry.value;
+            }
+        }
+
+        private static int hash(char[] chars, int from, int length) {
+            int hash = 0;
+            for (int i = from; i < from + length; i++)
+                hash = 31 * hash + chars[i];
+            return hash ^ (hash >>> 16);
+        }
+
+        private static boolean matches(String entry, char[] chars, int from, int length) {
+            if (entry.length() != length)
+                return false;
+            for (int i = 0; i < length; i++) {
+                if (entry.charAt(i) != chars[from + i])
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    private static class Entry {
+        final int hash;
+        final String value;
+
+        Entry(int hash, String value) {
+            this.hash = hash;
+            this.value = value;
+        }
+    }
+}
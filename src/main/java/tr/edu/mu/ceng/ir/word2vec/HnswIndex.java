@@ -0,0 +1,435 @@
+package tr.edu.mu.ceng.ir.word2vec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hierarchical navigable small world graph over unit-length vectors, searched by cosine distance.
+ * Vectors are kept row-major in blocks of {@link #BLOCK_ROWS} rows, so the vocabulary is not bounded by the
+ * length of a single Java array; the graph stores neighbour ids only, so the same vectors can be re-derived
+ * from syn0 when a persisted graph is loaded.
+ */
+class HnswIndex {
+
+    private static final int MAGIC = 0x484E5357; // "HNSW"
+    private static final int VERSION = 1;
+    private static final int LOCK_STRIPES = 4096;
+    private static final int BLOCK_SHIFT = 12;
+    static final int BLOCK_ROWS = 1 << BLOCK_SHIFT;
+    private static final long MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+    final int size;
+    final int dimension;
+    final int m;
+    final int maxM0;
+    final int efConstruction;
+    final long fingerprint;
+
+    private final float[][] vectors;
+    private final int[] levels;
+    private final int[] layer0;
+    private final int[][] upper;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final ReentrantLock entryLock = new ReentrantLock();
+    private final ThreadLocal<int[]> visited;
+    private final ThreadLocal<int[]> visitedStamp = ThreadLocal.withInitial(() -> new int[1]);
+
+    private volatile int entryPoint = -1;
+    private volatile int maxLevel = -1;
+
+    private HnswIndex(float[][] vectors, int size, int dimension, int m, int efConstruction, int[] levels)
+            throws IOException {
+        if ((long) size * (2 * m + 1) > MAX_ARRAY_LENGTH || (long) BLOCK_ROWS * dimension > MAX_ARRAY_LENGTH)
+            throw new IOException("HNSW index over " + size + " words of dimension " + dimension + " with m=" + m
+                    + " does not fit in Java arrays, use a smaller m or BasicModelUtils");
+        this.vectors = vectors;
+        this.size = size;
+        this.dimension = dimension;
+        this.m = m;
+        this.maxM0 = 2 * m;
+        this.efConstruction = efConstruction;
+        this.levels = levels;
+        this.layer0 = new int[size * (maxM0 + 1)];
+        this.upper = new int[size][];
+        for (int i = 0; i < size; i++) {
+            if (levels[i] > 0)
+                upper[i] = new int[levels[i] * (m + 1)];
+        }
+        for (int i = 0; i < LOCK_STRIPES; i++)
+            locks[i] = new Object();
+        this.visited = ThreadLocal.withInitial(() -> new int[size]);
+        this.fingerprint = fingerprint(vectors);
+    }
+
+    static HnswIndex build(float[][] vectors, int size, int dimension, int m, int efConstruction, int threads,
+                           long seed) throws IOException {
+        Random random = new Random(seed);
+        double levelMultiplier = 1 / Math.log(Math.max(2, m));
+        int[] levels = new int[size];
+        for (int i = 0; i < size; i++)
+            levels[i] = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+
+        HnswIndex index = new HnswIndex(vectors, size, dimension, m, efConstruction, levels);
+        if (size == 0)
+            return index;
+
+        index.insert(0);
+        AtomicInteger next = new AtomicInteger(1);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int t = 0; t < Math.max(1, threads); t++) {
+                workers.add(executor.submit(() -> {
+                    int node;
+                    while ((node = next.getAndIncrement()) < size)
+                        index.insert(node);
+                }));
+            }
+            for (Future<?> worker : workers)
+                worker.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while building HNSW index", e);
+        } catch (ExecutionException e) {
+            throw new IOException("HNSW index construction failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return index;
+    }
+
+    /**
+     * Returns the ids of the (approximately) {@code k} nearest vectors, closest first.
+     */
+    int[] search(float[] query, int k, int ef) {
+        // maxLevel is read before entryPoint and written after it, so ep always reaches the level read
+        int top = maxLevel;
+        int ep = entryPoint;
+        if (ep < 0 || k <= 0)
+            return new int[0];
+        for (int level = top; level > 0; level--)
+            ep = greedy(query, ep, level);
+        long[] found = searchLayer(query, ep, Math.max(ef, k), 0);
+        int[] result = new int[Math.min(k, found.length)];
+        for (int i = 0; i < result.length; i++)
+            result[i] = id(found[i]);
+        return result;
+    }
+
+    /**
+     * Number of blocks holding {@code size} vectors, each block a row-major array of up to {@link #BLOCK_ROWS} rows.
+     */
+    static int blocks(int size) {
+        return (size + BLOCK_ROWS - 1) >>> BLOCK_SHIFT;
+    }
+
+    float[] vector(int node) {
+        int offset = (node & (BLOCK_ROWS - 1)) * dimension;
+        return Arrays.copyOfRange(vectors[node >>> BLOCK_SHIFT], offset, offset + dimension);
+    }
+
+    private void insert(int node) {
+        float[] query = vector(node);
+        int level = levels[node];
+
+        // a node that raises the top level keeps the entry lock for its whole insertion
+        boolean raisesTop = false;
+        entryLock.lock();
+        try {
+            if (entryPoint < 0) {
+                entryPoint = node;
+                maxLevel = level;
+                return;
+            }
+            raisesTop = level > maxLevel;
+        } finally {
+            if (!raisesTop)
+                entryLock.unlock();
+        }
+
+        try {
+            int top = maxLevel;
+            int ep = entryPoint;
+            for (int l = top; l > level; l--)
+                ep = greedy(query, ep, l);
+
+            for (int l = Math.min(level, top); l >= 0; l--) {
+                long[] candidates = searchLayer(query, ep, efConstruction, l);
+                int[] neighbours = selectNeighbours(candidates, m);
+                synchronized (lock(node)) {
+                    setLinks(node, l, neighbours, neighbours.length);
+                }
+                for (int neighbour : neighbours)
+                    connect(neighbour, node, l);
+                ep = id(candidates[0]);
+            }
+
+            if (raisesTop) {
+                entryPoint = node;
+                maxLevel = level;
+            }
+        } finally {
+            if (raisesTop)
+                entryLock.unlock();
+        }
+    }
+
+    private void connect(int node, int neighbour, int level) {
+        int max = level == 0 ? maxM0 : m;
+        synchronized (lock(node)) {
+            int[] links = links(node, level);
+            int offset = offset(node, level);
+            int count = links[offset];
+            for (int i = 0; i < count; i++) {
+                if (links[offset + 1 + i] == neighbour)
+                    return;
+            }
+            if (count < max) {
+                links[offset + 1 + count] = neighbour;
+                links[offset] = count + 1;
+                return;
+            }
+
+            // full: keep the best set among the current links and the new one
+            long[] candidates = new long[count + 1];
+            for (int i = 0; i < count; i++) {
+                int other = links[offset + 1 + i];
+                candidates[i] = key(distance(node, other), other);
+            }
+            candidates[count] = key(distance(node, neighbour), neighbour);
+            Arrays.sort(candidates);
+            int[] selected = selectNeighbours(candidates, max);
+            setLinks(node, level, selected, selected.length);
+        }
+    }
+
+    /**
+     * The usual HNSW heuristic: a candidate is kept only if it is closer to the query than to every
+     * neighbour already kept, which spreads the links across directions.
+     */
+    private int[] selectNeighbours(long[] sortedCandidates, int max) {
+        int[] selected = new int[Math.min(max, sortedCandidates.length)];
+        int count = 0;
+        for (long candidate : sortedCandidates) {
+            if (count == selected.length)
+                break;
+            int id = id(candidate);
+            float distance = distance(candidate);
+            boolean keep = true;
+            for (int i = 0; i < count; i++) {
+                if (distance(id, selected[i]) < distance) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep)
+                selected[count++] = id;
+        }
+        return count == selected.length ? selected : Arrays.copyOf(selected, count);
+    }
+
+    private int greedy(float[] query, int ep, int level) {
+        float best = distance(query, ep);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int neighbour : neighbours(ep, level)) {
+                float d = distance(query, neighbour);
+                if (d < best) {
+                    best = d;
+                    ep = neighbour;
+                    changed = true;
+                }
+            }
+        }
+        return ep;
+    }
+
+    /**
+     * Best-first search of one layer; returns up to {@code ef} candidates encoded by {@link #key}, closest first.
+     */
+    private long[] searchLayer(float[] query, int ep, int ef, int level) {
+        int[] seen = visited.get();
+        int[] stamp = visitedStamp.get();
+        if (++stamp[0] == Integer.MAX_VALUE) {
+            Arrays.fill(seen, 0);
+            stamp[0] = 1;
+        }
+        int mark = stamp[0];
+
+        LongHeap candidates = new LongHeap(ef * 2);
+        LongHeap results = new LongHeap(ef + 1); // max-heap through negated keys
+        long start = key(distance(query, ep), ep);
+        candidates.push(start);
+        results.push(-start);
+        seen[ep] = mark;
+
+        while (candidates.size() > 0) {
+            long current = candidates.pop();
+            if (results.size() >= ef && distance(current) > distance(-results.peek()))
+                break;
+            for (int neighbour : neighbours(id(current), level)) {
+                if (seen[neighbour] == mark)
+                    continue;
+                seen[neighbour] = mark;
+                float d = distance(query, neighbour);
+                if (results.size() < ef || d < distance(-results.peek())) {
+                    long key = key(d, neighbour);
+                    candidates.push(key);
+                    results.push(-key);
+                    if (results.size() > ef)
+                        results.pop();
+                }
+            }
+        }
+
+        long[] found = new long[results.size()];
+        for (int i = found.length - 1; i >= 0; i--)
+            found[i] = -results.pop();
+        return found;
+    }
+
+    private int[] neighbours(int node, int level) {
+        synchronized (lock(node)) {
+            int[] links = links(node, level);
+            int offset = offset(node, level);
+            return Arrays.copyOfRange(links, offset + 1, offset + 1 + links[offset]);
+        }
+    }
+
+    private void setLinks(int node, int level, int[] neighbours, int count) {
+        int[] links = links(node, level);
+        int offset = offset(node, level);
+        System.arraycopy(neighbours, 0, links, offset + 1, count);
+        links[offset] = count;
+    }
+
+    private int[] links(int node, int level) {
+        return level == 0 ? layer0 : upper[node];
+    }
+
+    private int offset(int node, int level) {
+        return level == 0 ? node * (maxM0 + 1) : (level - 1) * (m + 1);
+    }
+
+    private Object lock(int node) {
+        return locks[node & (LOCK_STRIPES - 1)];
+    }
+
+    private float distance(int a, int b) {
+        float[] blockA = vectors[a >>> BLOCK_SHIFT];
+        float[] blockB = vectors[b >>> BLOCK_SHIFT];
+        int offsetA = (a & (BLOCK_ROWS - 1)) * dimension;
+        int offsetB = (b & (BLOCK_ROWS - 1)) * dimension;
+        float dot = 0;
+        for (int i = 0; i < dimension; i++)
+            dot += blockA[offsetA + i] * blockB[offsetB + i];
+        return Math.max(0f, 1f - dot);
+    }
+
+    private float distance(float[] query, int b) {
+        float[] block = vectors[b >>> BLOCK_SHIFT];
+        int offset = (b & (BLOCK_ROWS - 1)) * dimension;
+        float dot = 0;
+        for (int i = 0; i < dimension; i++)
+            dot += query[i] * block[offset + i];
+        return Math.max(0f, 1f - dot);
+    }
+
+    // non-negative floats keep their order as raw int bits, so (distance, id) packs into a sortable long
+    private static long key(float distance, int id) {
+        return ((long) Float.floatToRawIntBits(distance) << 32) | (id & 0xFFFFFFFFL);
+    }
+
+    private static int id(long key) {
+        return (int) key;
+    }
+
+    private static float distance(long key) {
+        return Float.intBitsToFloat((int) (key >>> 32));
+    }
+
+    static long fingerprint(float[][] vectors) {
+        long hash = 1125899906842597L;
+        for (float[] block : vectors) {
+            for (float value : block)
+                hash = 31 * hash + Float.floatToRawIntBits(value);
+        }
+        return hash;
+    }
+
+    void write(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size);
+            out.writeInt(dimension);
+            out.writeInt(m);
+            out.writeInt(efConstruction);
+            out.writeInt(entryPoint);
+            out.writeInt(maxLevel);
+            out.writeLong(fingerprint);
+            for (int level : levels)
+                out.writeInt(level);
+            for (int link : layer0)
+                out.writeInt(link);
+            for (int[] links : upper) {
+                if (links == null)
+                    continue;
+                for (int link : links)
+                    out.writeInt(link);
+            }
+        }
+    }
+
+    /**
+     * Reads a graph written by {@link #write(File)}; returns null if it does not belong to the given vectors.
+     */
+    static HnswIndex read(File file, float[][] vectors, int size, int dimension) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 20))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException(file + " is not an HNSW index");
+            if (in.readInt() != size || in.readInt() != dimension)
+                return null;
+            int m = in.readInt();
+            int efConstruction = in.readInt();
+            int entryPoint = in.readInt();
+            int maxLevel = in.readInt();
+            long fingerprint = in.readLong();
+            if (fingerprint != fingerprint(vectors))
+                return null;
+
+            int[] levels = new int[size];
+            for (int i = 0; i < size; i++)
+                levels[i] = in.readInt();
+            HnswIndex index = new HnswIndex(vectors, size, dimension, m, efConstruction, levels);
+            for (int i = 0; i < index.layer0.length; i++)
+                index.layer0[i] = in.readInt();
+            for (int[] links : index.upper) {
+                if (links == null)
+                    continue;
+                for (int i = 0; i < links.length; i++)
+                    links[i] = in.readInt();
+            }
+            index.entryPoint = entryPoint;
+            index.maxLevel = maxLevel;
+            return index;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package tr.edu.mu.ceng.ir.word2vec;
+
+import org.deeplearning4j.models.embeddings.WeightLookupTable;
+import org.deeplearning4j.models.embeddings.inmemory.InMemoryLookupTable;
+import org.deeplearning4j.models.embeddings.reader.impl.BasicModelUtils;
+import org.deeplearning4j.models.sequencevectors.sequence.SequenceElement;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@link org.deeplearning4j.models.embeddings.reader.ModelUtils} answering nearest-word queries from an HNSW graph
+ * instead of a full vocabulary scan. Select it with the {@code modelUtils} key of config.json (or
+ * {@code word2vec.modelUtils} in config.properties); every other query falls back to {@link BasicModelUtils}.
+ * The graph is built lazily from syn0 on the first query, or explicitly with {@link #buildIndex()}.
+ */
+public class HnswModelUtils<T extends SequenceElement> extends BasicModelUtils<T> {
+
+    public static final String INDEX_FILE = "hnsw.idx";
+    public static final String INDEX_SUFFIX = ".hnsw";
+
+    private static Logger logger = LoggerFactory.getLogger(HnswModelUtils.class);
+
+    private int m = 16;
+    private int efConstruction = 200;
+    private int efSearch = 100;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private volatile HnswIndex index;
+
+    public HnswModelUtils() {
+    }
+
+    /**
+     * Index location for a model: inside the folder of an uncompressed model, next to the file otherwise.
+     */
+    public static File indexFile(String modelLocation) {
+        File model = new File(modelLocation);
+        return model.isDirectory() ? new File(model, INDEX_FILE) : new File(modelLocation + INDEX_SUFFIX);
+    }
+
+    @Override
+    public void init(WeightLookupTable<T> lookupTable) {
+        super.init(lookupTable);
+        index = null;
+    }
+
+    public synchronized void buildIndex() throws IOException {
+        long start = System.currentTimeMillis();
+        float[][] vectors = normalizedVectors();
+        int size = vocabCache.numWords();
+        index = HnswIndex.build(vectors, size, lookupTable.layerSize(), m, efConstruction, threads, 42);
+        logger.debug("HNSW index over " + size + " words built in " + (System.currentTimeMillis() - start)
+                + " ms (m=" + m + ", efConstruction=" + efConstruction + ")");
+    }
+
+    /**
+     * Loads a persisted graph; returns false if it is missing or was built from different vectors.
+     */
+    public synchronized boolean loadIndex(File file) throws IOException {
+        if (!file.exists())
+            return false;
+        HnswIndex loaded = HnswIndex.read(file, normalizedVectors(), vocabCache.numWords(), lookupTable.layerSize());
+        if (loaded == null) {
+            logger.debug("HNSW index " + file + " does not match the model, it will be rebuilt");
+            return false;
+        }
+        index = loaded;
+        logger.debug("HNSW index loaded from " + file);
+        return true;
+    }
+
+    public void saveIndex(File file) throws IOException {
+        index().write(file);
+        logger.debug("HNSW index written to " + file);
+    }
+
+    @Override
+    public Collection<String> wordsNearest(String label, int n) {
+        return wordsNearest(Collections.singletonList(label), Collections.<String>emptyList(), n);
+    }
+
+    @Override
+    public Collection<String> wordsNearest(Collection<String> positive, Collection<String> negative, int top) {
+        float[] query = new float[lookupTable.layerSize()];
+        int words = accumulate(query, positive, 1) + accumulate(query, negative, -1);
+        if (words == 0)
+            return new ArrayList<>();
+
+        List<String> result = new ArrayList<>(top);
+        for (String label : nearest(query, top + positive.size() + negative.size())) {
+            if (result.size() == top)
+                break;
+            if (!positive.contains(label) && !negative.contains(label))
+                result.add(label);
+        }
+        return result;
+    }
+
+    @Override
+    public Collection<String> wordsNearest(INDArray words, int top) {
+        return nearest(words.dup().data().asFloat(), top);
+    }
+
+    private List<String> nearest(float[] query, int top) {
+        normalize(query, 0, query.length);
+        int[] ids = index().search(query, top, Math.max(efSearch, top));
+        List<String> labels = new ArrayList<>(ids.length);
+        for (int id : ids)
+            labels.add(vocabCache.wordAtIndex(id));
+        return labels;
+    }
+
+    private int accumulate(float[] query, Collection<String> labels, int sign) {
+        int words = 0;
+        for (String label : labels) {
+            if (!vocabCache.containsWord(label))
+                continue;
+            float[] vector = lookupTable.vector(label).dup().data().asFloat();
+            for (int i = 0; i < query.length; i++)
+                query[i] += sign * vector[i];
+            words++;
+        }
+        return words;
+    }
+
+    private HnswIndex index() {
+        HnswIndex current = index;
+        if (current == null) {
+            try {
+                buildIndex();
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to build HNSW index", e);
+            }
+            current = index;
+        }
+        return current;
+    }
+
+    /**
+     * Unit-length copy of syn0 in the blocks {@link HnswIndex} keeps; each block is normalised as it is copied,
+     * so this copy is the only one on the heap and no array ever holds more than {@link HnswIndex#BLOCK_ROWS} rows.
+     */
+    private float[][] normalizedVectors() {
+        int size = vocabCache.numWords();
+        int dimension = lookupTable.layerSize();
+        float[][] vectors = new float[HnswIndex.blocks(size)][];
+        INDArray syn0 = lookupTable instanceof InMemoryLookupTable ? ((InMemoryLookupTable<T>) lookupTable).getSyn0() : null;
+
+        for (int b = 0; b < vectors.length; b++) {
+            int from = b * HnswIndex.BLOCK_ROWS;
+            int to = Math.min(size, from + HnswIndex.BLOCK_ROWS);
+            float[] block;
+            if (syn0 != null) {
+                block = syn0.get(NDArrayIndex.interval(from, to), NDArrayIndex.all()).dup('c').data().asFloat();
+            } else {
+                block = new float[(to - from) * dimension];
+                for (int i = from; i < to; i++) {
+                    float[] row = lookupTable.vector(vocabCache.wordAtIndex(i)).dup().data().asFloat();
+                    System.arraycopy(row, 0, block, (i - from) * dimension, dimension);
+                }
+            }
+            for (int offset = 0; offset < block.length; offset += dimension)
+                normalize(block, offset, dimension);
+            vectors[b] = block;
+        }
+        return vectors;
+    }
+
+    private static void normalize(float[] vectors, int offset, int length) {
+        double norm = 0;
+        for (int i = offset; i < offset + length; i++)
+            norm += vectors[i] * vectors[i];
+        if (norm == 0)
+            return;
+        float scale = (float) (1 / Math.sqrt(norm));
+        for (int i = offset; i < offset + length; i++)
+            vectors[i] *= scale;
+    }
+
+    public int getM() {
+        return m;
+    }
+
+    public void setM(int m) {
+        this.m = m;
+    }
+
+    public int getEfConstruction() {
+        return efConstruction;
+    }
+
+    public void setEfConstruction(int efConstruction) {
+        this.efConstruction = efConstruction;
+    }
+
+    public int getEfSearch() {
+        return efSearch;
+    }
+
+    public void setEfSearch(int efSearch) {
+        this.efSearch = efSearch;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+}
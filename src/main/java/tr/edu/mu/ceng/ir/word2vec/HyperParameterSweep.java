@@ -0,0 +1,283 @@
+package tr.edu.mu.ceng.ir.word2vec;
+
+import org.deeplearning4j.models.embeddings.learning.impl.elements.CBOW;
+import org.deeplearning4j.models.embeddings.learning.impl.elements.SkipGram;
+import org.deeplearning4j.models.embeddings.loader.VectorsConfiguration;
+import org.deeplearning4j.models.sequencevectors.interfaces.SequenceIterator;
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.deeplearning4j.models.word2vec.Word2Vec;
+import org.deeplearning4j.models.word2vec.wordstore.inmemory.AbstractCache;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.TokenizerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Trains one model per point of a grid of algorithm, dimension, window and minimum word frequency settings over one
+ * corpus. The words are counted once at the lowest threshold and each threshold gets its pruned, Huffman-coded
+ * vocabulary from that count. Models are trained in groups that fit the core and memory budget: the models of a
+ * group are fitted at the same time from one {@link SequenceBroadcast}, so the corpus is read once per epoch for the
+ * whole group, and the cores are split between them.
+ * <p>
+ * Every model is saved into the target folder under its setting name, and {@value #SUMMARY_FILE} lists the
+ * settings with the vocabulary size, training time, weight memory and the peak memory of the group as tab separated
+ * lines.
+ */
+public class HyperParameterSweep {
+
+    private static Logger logger = LoggerFactory.getLogger(HyperParameterSweep.class);
+
+    static final String SUMMARY_FILE = "summary.tsv";
+
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final long SAMPLE_MILLIS = 100;
+
+    /**
+     * Saves a trained model to a file or folder.
+     */
+    public interface ModelWriter {
+        void write(Word2Vec vec, File target) throws IOException;
+    }
+
+    /**
+     * One point of the grid.
+     */
+    public static class Setting {
+        private final String algorithm;
+        private final int dimension;
+        private final int window;
+        private final int minWordFrequency;
+
+        public Setting(String algorithm, int dimension, int window, int minWordFrequency) {
+            this.algorithm = algorithm;
+            this.dimension = dimension;
+            this.window = window;
+            this.minWordFrequency = minWordFrequency;
+        }
+
+        public String getName() {
+            return algorithm + "-d" + dimension + "-w" + window + "-m" + minWordFrequency;
+        }
+
+        boolean isCbow() {
+            return "CBOW".equals(algorithm);
+        }
+    }
+
+    private final VectorsConfiguration base;
+    private final List<Setting> settings;
+    private final int cores;
+    private final long memoryBytes;
+
+    /**
+     * @param base        configuration of every model apart from the swept settings
+     * @param cores       training threads shared by the models of a group, also the largest group
+     * @param memoryBytes weight memory of the models of a group, 0 for no limit
+     */
+    public HyperParameterSweep(VectorsConfiguration base, List<Setting> settings, int cores, long memoryBytes) {
+        this.base = base;
+        this.settings = settings;
+        this.cores = Math.max(1, cores);
+        this.memoryBytes = memoryBytes;
+    }
+
+    /**
+     * Every combination of the given values, in the order of the lists.
+     */
+    public static List<Setting> grid(List<String> algorithms, List<Integer> dimensions, List<Integer> windows,
+                                     List<Integer> minWordFrequencies) {
+        List<Setting> grid = new ArrayList<>();
+        for (String algorithm : algorithms)
+            for (int dimension : dimensions)
+                for (int window : windows)
+                    for (int minWordFrequency : minWordFrequencies)
+                        grid.add(new Setting(algorithm, dimension, window, minWordFrequency));
+        return grid;
+    }
+
+    /**
+     * The threshold the words must be counted with, the lowest of the grid.
+     */
+    public int getMinWordFrequency() {
+        int min = Integer.MAX_VALUE;
+        for (Setting setting : settings)
+            min = Math.min(min, setting.minWordFrequency);
+        return min;
+    }
+
+    /**
+     * Trains and saves every model of the grid.
+     *
+     * @param vocabularyBuilder builder that counted {@code counted}
+     * @param counted           word counts at {@link #getMinWordFrequency()}, without Huffman codes
+     * @param corpus            training sequences, read once per epoch of each group
+     */
+    public void run(VocabularyBuilder vocabularyBuilder, AbstractCache<VocabWord> counted,
+                    SequenceIterator<VocabWord> corpus, TokenizerFactory tokenizerFactory, List<String> stopWords,
+                    File targetFolder, ModelWriter writer, TrainingMetrics metrics) throws IOException {
+        Files.createDirectories(targetFolder.toPath());
+        Map<Integer, AbstractCache<VocabWord>> vocabularies = new HashMap<>();
+        for (Setting setting : settings) {
+            if (!vocabularies.containsKey(setting.minWordFrequency))
+                vocabularies.put(setting.minWordFrequency, vocabularyBuilder.prune(counted, setting.minWordFrequency));
+        }
+
+        List<List<Setting>> groups = groups(vocabularies);
+        logger.debug("=====Sweeping " + settings.size() + " settings in " + groups.size() + " groups=====");
+        try (PrintWriter summary = new PrintWriter(new OutputStreamWriter(
+                Files.newOutputStream(new File(targetFolder, SUMMARY_FILE).toPath()), StandardCharsets.UTF_8))) {
+            summary.println("model\talgorithm\tdimension\twindow\tminWordFrequency\twords\tgroup\ttrainingSeconds"
+                    + "\tweightsMB\tpeakHeapMB\tpeakOffHeapMB");
+            for (int g = 0; g < groups.size(); g++) {
+                List<Setting> group = groups.get(g);
+                List<Word2Vec> models = new ArrayList<>();
+                long[] millis = new long[group.size()];
+                long[] peaks = train(group, vocabularies, corpus, tokenizerFactory, stopWords, metrics, models, millis);
+
+                metrics.phase("serialization");
+                for (int m = 0; m < group.size(); m++) {
+                    Setting setting = group.get(m);
+                    writer.write(models.get(m), new File(targetFolder, setting.getName()));
+                    summary.println(String.format("%s\t%s\t%d\t%d\t%d\t%d\t%d\t%.3f\t%.1f\t%d\t%d", setting.getName(),
+                            setting.algorithm, setting.dimension, setting.window, setting.minWordFrequency,
+                            vocabularies.get(setting.minWordFrequency).numWords(), g, millis[m] / 1000.0,
+                            weightBytes(setting, vocabularies) / 1024.0 / 1024, peaks[0] / 1024 / 1024,
+                            peaks[1] / 1024 / 1024));
+                    summary.flush();
+                }
+            }
+        }
+        logger.debug("=====Sweep summary written to " + new File(targetFolder, SUMMARY_FILE) + " =====");
+    }
+
+    // consecutive settings while the group has a core for each and their weights fit the memory budget
+    private List<List<Setting>> groups(Map<Integer, AbstractCache<VocabWord>> vocabularies) {
+        List<List<Setting>> groups = new ArrayList<>();
+        List<Setting> group = new ArrayList<>();
+        long bytes = 0;
+        for (Setting setting : settings) {
+            long weights = weightBytes(setting, vocabularies);
+            if (!group.isEmpty() && (group.size() == cores || (memoryBytes > 0 && bytes + weights > memoryBytes))) {
+                groups.add(group);
+                group = new ArrayList<>();
+                bytes = 0;
+            }
+            if (memoryBytes > 0 && weights > memoryBytes)
+                logger.warn("Weights of " + setting.getName() + " exceed the sweep memory budget, training it alone");
+            group.add(setting);
+            bytes += weights;
+        }
+        if (!group.isEmpty())
+            groups.add(group);
+        return groups;
+    }
+
+    // syn0 plus syn1 for hierarchical softmax and syn1Neg for negative sampling
+    private long weightBytes(Setting setting, Map<Integer, AbstractCache<VocabWord>> vocabularies) {
+        int matrices = 1 + (base.isUseHierarchicSoftmax() ? 1 : 0) + (base.getNegative() > 0 ? 1 : 0);
+        return (long) vocabularies.get(setting.minWordFrequency).numWords() * setting.dimension * 4 * matrices;
+    }
+
+    /**
+     * Fits the models of a group at the same time, filling {@code models} and their training times, and returns the
+     * peak heap and off-heap bytes sampled meanwhile.
+     */
+    private long[] train(List<Setting> group, Map<Integer, AbstractCache<VocabWord>> vocabularies,
+                         SequenceIterator<VocabWord> corpus, TokenizerFactory tokenizerFactory,
+                         List<String> stopWords, TrainingMetrics metrics, List<Word2Vec> models, long[] millis)
+            throws IOException {
+        metrics.phase("weights");
+        int threads = Math.max(1, cores / group.size());
+        SequenceBroadcast broadcast = new SequenceBroadcast(corpus, QUEUE_CAPACITY);
+        List<SequenceIterator<VocabWord>> consumers = new ArrayList<>();
+        for (Setting setting : group) {
+            SequenceIterator<VocabWord> consumer = broadcast.consumer();
+            Word2Vec vec = new Word2Vec.Builder(configuration(setting))
+                    .vocabCache(vocabularies.get(setting.minWordFrequency))
+                    .resetModel(false)
+                    .workers(threads)
+                    .iterate(consumer)
+                    .tokenizerFactory(tokenizerFactory)
+                    .stopWords(stopWords)
+                    .elementsLearningAlgorithm(setting.isCbow() ? new CBOW<VocabWord>() : new SkipGram<VocabWord>())
+                    .build();
+            vec.getLookupTable().resetWeights(false);
+            models.add(vec);
+            consumers.add(consumer);
+        }
+
+        logger.debug("=====Training " + group.size() + " models with " + threads + " threads each=====");
+        metrics.phase("training");
+        AtomicLong peakHeap = new AtomicLong();
+        AtomicLong peakOffHeap = new AtomicLong();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sweep-memory");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(() -> {
+            peakHeap.accumulateAndGet(metrics.getHeapUsedBytes(), Math::max);
+            peakOffHeap.accumulateAndGet(metrics.getOffHeapBytes(), Math::max);
+        }, 0, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+        ExecutorService executor = Executors.newFixedThreadPool(group.size());
+        try {
+            broadcast.start();
+            List<Future<Long>> fits = new ArrayList<>();
+            for (int m = 0; m < group.size(); m++) {
+                Word2Vec vec = models.get(m);
+                SequenceIterator<VocabWord> consumer = consumers.get(m);
+                fits.add(executor.submit(() -> {
+                    long start = System.currentTimeMillis();
+                    try {
+                        vec.fit();
+                    } finally {
+                        broadcast.close(consumer);
+                    }
+                    return System.currentTimeMillis() - start;
+                }));
+            }
+            for (int m = 0; m < group.size(); m++) {
+                millis[m] = fits.get(m).get();
+                logger.debug("Model " + group.get(m).getName() + " trained in " + millis[m] + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while training the sweep", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Training a sweep model failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+            sampler.shutdownNow();
+            for (SequenceIterator<VocabWord> consumer : consumers)
+                broadcast.close(consumer);
+        }
+        return new long[]{peakHeap.get(), peakOffHeap.get()};
+    }
+
+    // a copy of the base configuration with the swept settings; every model sees each sequence once per epoch
+    private VectorsConfiguration configuration(Setting setting) {
+        VectorsConfiguration configuration = VectorsConfiguration.fromJson(base.toJson());
+        configuration.setLayersSize(setting.dimension);
+        configuration.setWindow(setting.window);
+        configuration.setMinWordFrequency(setting.minWordFrequency);
+        configuration.setPreciseWeightInit(false);
+        return configuration;
+    }
+}
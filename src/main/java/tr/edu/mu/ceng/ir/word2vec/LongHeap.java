@@ -0,0 +1,59 @@
+package tr.edu.mu.ceng.ir.word2vec;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of primitive longs, used with keys that pack a score and an id into one long.
+ */
+final class LongHeap {
+    private long[] heap;
+    private int size;
+
+    LongHeap(int capacity) {
+        heap = new long[Math.max(4, capacity)];
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    long peek() {
+        return heap[0];
+    }
+
+    void push(long value) {
+        if (size == heap.length)
+            heap = Arrays.copyOf(heap, size * 2);
+        int i = size++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent] <= value)
+                break;
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = value;
+    }
+
+    long pop() {
+        long top = heap[0];
+        long last = heap[--size];
+        int i = 0;
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && heap[child + 1] < heap[child])
+                child++;
+            if (last <= heap[child])
+                break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = last;
+        return top;
+    }
+}
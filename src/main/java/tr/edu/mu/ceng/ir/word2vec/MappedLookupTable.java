@@ -0,0 +1,124 @@
+package tr.edu.mu.ceng.ir.word2vec;
+
+import org.deeplearning4j.models.embeddings.loader.VectorsConfiguration;
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.deeplearning4j.models.word2vec.wordstore.inmemory.AbstractCache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Read-only syn0 of a binary model or of a compact export, mapped from the file so that rows are paged in by the
+ * operating system as queries touch them instead of being read up front. Rows are float32, or float16 in compact
+ * exports. Nearest-word search is an exact cosine scan over the mapped rows; the row norms are computed by the first
+ * search unless the rows are stored normalised.
+ */
+public class MappedLookupTable extends ServingLookupTable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ByteBuffer[] rows;
+    private final int rowsPerRegion;
+    private final boolean float16;
+    private volatile float[] inverseNorms;
+
+    private MappedLookupTable(AbstractCache<VocabWord> vocab, VectorsConfiguration configuration, int dimension,
+                              ByteBuffer[] rows, int rowsPerRegion, boolean float16, boolean normalized) {
+        super(vocab, configuration, dimension);
+        this.rows = rows;
+        this.rowsPerRegion = rowsPerRegion;
+        this.float16 = float16;
+        if (normalized) {
+            float[] ones = new float[vocab.numWords()];
+            Arrays.fill(ones, 1f);
+            this.inverseNorms = ones;
+        }
+    }
+
+    /**
+     * Maps the float32 rows of every vocabulary word starting at {@code offset}.
+     */
+    static MappedLookupTable map(FileChannel channel, long offset, AbstractCache<VocabWord> vocab,
+                                 VectorsConfiguration configuration, int dimension) throws IOException {
+        return map(channel, offset, vocab, configuration, dimension, false, false);
+    }
+
+    /**
+     * Maps the float32 or float16 rows of every vocabulary word starting at {@code offset}; normalised rows are
+     * scored without norms.
+     */
+    static MappedLookupTable map(FileChannel channel, long offset, AbstractCache<VocabWord> vocab,
+                                 VectorsConfiguration configuration, int dimension, boolean float16,
+                                 boolean normalized) throws IOException {
+        int width = float16 ? 2 : 4;
+        int rowsPerRegion = Math.max(1, Integer.MAX_VALUE / (dimension * width));
+        return new MappedLookupTable(vocab, configuration, dimension,
+                map(channel, offset, vocab.numWords(), dimension, width, rowsPerRegion), rowsPerRegion, float16,
+                normalized);
+    }
+
+    @Override
+    float[] row(int id) {
+        float[] row = new float[dimension];
+        ByteBuffer region = rows[id / rowsPerRegion];
+        if (float16) {
+            int base = (id % rowsPerRegion) * dimension * 2;
+            for (int d = 0; d < dimension; d++)
+                row[d] = CompactModelSerializer.toFloat(region.getShort(base + d * 2));
+        } else {
+            int base = (id % rowsPerRegion) * dimension * 4;
+            for (int d = 0; d < dimension; d++)
+                row[d] = region.getFloat(base + d * 4);
+        }
+        return row;
+    }
+
+    @Override
+    float[] prepare(float[] unit) {
+        inverseNorms();
+        return unit;
+    }
+
+    @Override
+    float score(float[] unit, int id) {
+        ByteBuffer region = rows[id / rowsPerRegion];
+        float dot = 0;
+        if (float16) {
+            int base = (id % rowsPerRegion) * dimension * 2;
+            for (int d = 0; d < dimension; d++)
+                dot += unit[d] * CompactModelSerializer.toFloat(region.getShort(base + d * 2));
+        } else {
+            int base = (id % rowsPerRegion) * dimension * 4;
+            for (int d = 0; d < dimension; d++)
+                dot += unit[d] * region.getFloat(base + d * 4);
+        }
+        return dot * inverseNorms[id];
+    }
+
+    private float[] inverseNorms() {
+        float[] norms = inverseNorms;
+        if (norms != null)
+            return norms;
+        synchronized (this) {
+            if (inverseNorms == null) {
+                float[] computed = new float[vocab.numWords()];
+                IntStream.range(0, computed.length).parallel().forEach(id -> {
+                    double norm = 0;
+                    for (float value : row(id))
+                        norm += value * value;
+                    computed[id] = norm == 0 ? 0 : (float) (1 / Math.sqrt(norm));
+                });
+                inverseNorms = computed;
+            }
+            return inverseNorms;
+        }
+    }
+
+    @Override
+    protected UnsupportedOperationException unsupported() {
+        return new UnsupportedOperationException("Lazily opened and compact models are query-only, retrain loads the full model");
+    }
+}
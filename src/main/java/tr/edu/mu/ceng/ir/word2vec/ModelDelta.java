@@ -0,0 +1,461 @@
+package tr.edu.mu.ceng.ir.word2vec;
+
+import org.deeplearning4j.models.embeddings.inmemory.InMemoryLookupTable;
+import org.deeplearning4j.models.embeddings.loader.VectorsConfiguration;
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.deeplearning4j.models.word2vec.Word2Vec;
+import org.deeplearning4j.models.word2vec.wordstore.VocabCache;
+import org.deeplearning4j.models.word2vec.wordstore.inmemory.AbstractCache;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Incremental training of an existing model on a new batch of documents, saved as a delta next to the model.
+ *
+ * <p>{@link #grow} adds the counts of the batch to the vocabulary and appends the new words reaching
+ * {@code minWordFrequency}. Existing rows of syn0, syn1 and syn1Neg are kept as they are; new syn0 rows are
+ * initialised like {@code InMemoryLookupTable.resetWeights}, new syn1/syn1Neg rows are zero. Huffman codes of the
+ * existing words are kept as well: the new words get a Huffman subtree of their own that is grafted in place of the
+ * existing leaf whose frequency is closest to the subtree's total, so only that one word gets a longer code. The
+ * negative sampling table is rebuilt from the merged counts.
+ *
+ * <p>After training, {@link #write} stores only what changed: the new and updated vocabulary entries, the syn0
+ * rows of the words in the batch, the syn1 rows on their Huffman paths and the syn1Neg rows whose contents differ.
+ * Deltas are numbered files in the {@value #DELTA_SUFFIX} folder of the model and are applied in order by
+ * {@link #applyAll} when the model is loaded.
+ */
+public class ModelDelta {
+
+    private static Logger logger = LoggerFactory.getLogger(ModelDelta.class);
+
+    static final int MAGIC = 0x57325644; // "W2VD"
+    static final int VERSION = 1;
+    static final String DELTA_SUFFIX = ".deltas";
+    private static final String DELTA_FILE = "delta-%05d.w2vd";
+
+    // the code arrays of Huffman hold at most 40 entries
+    private static final int MAX_CODE_LENGTH = 40;
+
+    private final Word2Vec model;
+    private final int baseWords;
+    private final BitSet changedWords;
+    private final BitSet syn0Rows;
+    private final BitSet syn1Rows;
+    private final long[] syn1NegDigests;
+
+    private ModelDelta(Word2Vec model, int baseWords, BitSet changedWords, BitSet syn0Rows, BitSet syn1Rows) {
+        this.model = model;
+        this.baseWords = baseWords;
+        this.changedWords = changedWords;
+        this.syn0Rows = syn0Rows;
+        this.syn1Rows = syn1Rows;
+        // negative samples are drawn from the whole vocabulary, so changed syn1Neg rows are found by content
+        INDArray syn1Neg = ((InMemoryLookupTable<VocabWord>) model.getLookupTable()).getSyn1Neg();
+        this.syn1NegDigests = syn1Neg == null ? null : digests(syn1Neg, baseWords);
+    }
+
+    /**
+     * Merges the batch {@code counts} (all words of the new documents with their frequencies) into the vocabulary
+     * of {@code base} and returns the delta holding the grown model, set up to train at {@code learningRate}.
+     */
+    public static ModelDelta grow(Word2Vec base, VocabCache<VocabWord> counts, int minWordFrequency,
+                                  double learningRate) throws IOException {
+        if (!(base.getLookupTable() instanceof InMemoryLookupTable))
+            throw new IOException("Only full models can be trained incrementally");
+        AbstractCache<VocabWord> vocab = cache(base.getVocab());
+        InMemoryLookupTable<VocabWord> table = (InMemoryLookupTable<VocabWord>) base.getLookupTable();
+        int baseWords = vocab.numWords();
+        BitSet changedWords = new BitSet();
+        BitSet syn0Rows = new BitSet();
+
+        List<VocabWord> added = new ArrayList<>();
+        long addedOccurrences = 0;
+        for (VocabWord counted : counts.vocabWords()) {
+            long frequency = (long) counted.getElementFrequency();
+            VocabWord word = vocab.wordFor(counted.getLabel());
+            if (word != null) {
+                word.setElementFrequency((long) word.getElementFrequency() + frequency);
+                word.setSequencesCount(word.getSequencesCount() + counted.getSequencesCount());
+                changedWords.set(word.getIndex());
+                syn0Rows.set(word.getIndex());
+                addedOccurrences += frequency;
+            } else if (frequency >= minWordFrequency) {
+                VocabWord fresh = new VocabWord(frequency, counted.getLabel());
+                fresh.setSequencesCount(counted.getSequencesCount());
+                added.add(fresh);
+                addedOccurrences += frequency;
+            }
+        }
+        added.sort(Comparator.comparingDouble((VocabWord word) -> -word.getElementFrequency()));
+        for (VocabWord word : added) {
+            int index = vocab.numWords();
+            word.setIndex(index);
+            vocab.addToken(word);
+            vocab.addWordToIndex(index, word.getLabel());
+            changedWords.set(index);
+            syn0Rows.set(index);
+        }
+        vocab.setTotalWordOccurences(vocab.totalWordOccurrences() + addedOccurrences);
+        vocab.incrementTotalDocCount(counts.totalNumberOfDocs());
+
+        VectorsConfiguration configuration = base.getConfiguration();
+        BitSet syn1Rows = new BitSet();
+        if (configuration.isUseHierarchicSoftmax() && !added.isEmpty())
+            graft(vocab, baseWords, added, changedWords);
+        for (int index = syn0Rows.nextSetBit(0); index >= 0; index = syn0Rows.nextSetBit(index + 1)) {
+            VocabWord word = vocab.elementAtIndex(index);
+            for (int c = 0; c < word.getCodeLength(); c++)
+                syn1Rows.set(word.getPoints().get(c));
+        }
+
+        int words = vocab.numWords();
+        int layerSize = table.layerSize();
+        INDArray syn0 = table.getSyn0();
+        if (words > baseWords) {
+            INDArray rows = Nd4j.rand(new int[]{words - baseWords, layerSize}, Nd4j.getRandom()).subi(0.5)
+                    .divi(layerSize);
+            syn0 = Nd4j.vstack(syn0, rows);
+        }
+        INDArray syn1 = extend(table.getSyn1(), words, layerSize);
+        INDArray syn1Neg = extend(table.getSyn1Neg(), words, layerSize);
+
+        configuration.setLearningRate(learningRate);
+        // the negative sampling table is rebuilt from the merged counts
+        Word2Vec model = BinaryModelSerializer.assemble(configuration, vocab, syn0, syn1, syn1Neg);
+
+        logger.debug("Vocabulary grown from " + baseWords + " to " + words + " words, " + syn0Rows.cardinality()
+                + " words of the batch in it");
+        return new ModelDelta(model, baseWords, changedWords, syn0Rows, syn1Rows);
+    }
+
+    public Word2Vec getModel() {
+        return model;
+    }
+
+    private static AbstractCache<VocabWord> cache(VocabCache<VocabWord> vocab) throws IOException {
+        if (!(vocab instanceof AbstractCache))
+            throw new IOException("Deltas need an AbstractCache vocabulary, not " + vocab.getClass().getName());
+        return (AbstractCache<VocabWord>) vocab;
+    }
+
+    private static INDArray extend(INDArray matrix, int rows, int columns) {
+        if (matrix == null || matrix.rows() >= rows)
+            return matrix;
+        return Nd4j.vstack(matrix, Nd4j.zeros(rows - matrix.rows(), columns));
+    }
+
+    /**
+     * Builds a Huffman subtree over {@code added} and hangs it, together with the existing leaf whose frequency is
+     * closest to the subtree total, under a new inner node that takes that leaf's place. Inner nodes keep being
+     * numbered 0..numWords-2, so syn1 rows still line up.
+     */
+    private static void graft(AbstractCache<VocabWord> vocab, int baseWords, List<VocabWord> added,
+                              BitSet changedWords) {
+        int count = added.size();
+        int[] parent = new int[2 * count - 1];
+        byte[] bit = new byte[2 * count - 1];
+        long[] weight = new long[2 * count - 1];
+        PriorityQueue<Integer> queue = new PriorityQueue<>(Comparator.comparingLong((Integer node) -> weight[node]));
+        for (int i = 0; i < count; i++) {
+            weight[i] = (long) added.get(i).getElementFrequency();
+            queue.add(i);
+        }
+        for (int node = count; node < 2 * count - 1; node++) {
+            int first = queue.poll();
+            int second = queue.poll();
+            weight[node] = weight[first] + weight[second];
+            parent[first] = node;
+            parent[second] = node;
+            bit[second] = 1;
+            queue.add(node);
+        }
+        int root = 2 * count - 2;
+        int depth = 0;
+        for (int i = 0; i < count; i++)
+            depth = Math.max(depth, pathLength(parent, i, root));
+
+        VocabWord leaf = null;
+        for (int index = 0; index < baseWords; index++) {
+            VocabWord word = vocab.elementAtIndex(index);
+            if (word.getCodeLength() + 1 + depth > MAX_CODE_LENGTH)
+                continue;
+            if (leaf == null || Math.abs(word.getElementFrequency() - weight[root])
+                    < Math.abs(leaf.getElementFrequency() - weight[root]))
+                leaf = word;
+        }
+        if (leaf == null)
+            throw new IllegalStateException("No room in the Huffman tree for " + count + " new words");
+
+        int leafLength = Math.min(leaf.getCodeLength(), leaf.getCodes().size());
+        List<Byte> prefixCodes = new ArrayList<>(leaf.getCodes().subList(0, leafLength));
+        List<Integer> prefixPoints = new ArrayList<>(leaf.getPoints().subList(0, leafLength));
+        int graftNode = baseWords - 1;
+        prefixPoints.add(graftNode);
+
+        List<Byte> leafCodes = new ArrayList<>(prefixCodes);
+        leafCodes.add((byte) 0);
+        setCodes(leaf, leafCodes, new ArrayList<>(prefixPoints));
+        changedWords.set(leaf.getIndex());
+
+        prefixCodes.add((byte) 1);
+        for (int i = 0; i < count; i++) {
+            int length = pathLength(parent, i, root);
+            Byte[] codes = new Byte[length];
+            Integer[] points = new Integer[length];
+            for (int node = i, c = length - 1; node != root; node = parent[node], c--) {
+                codes[c] = bit[node];
+                // subtree inner node k becomes inner node baseWords + (k - count), right after the graft node
+                points[c] = baseWords + parent[node] - count;
+            }
+            List<Byte> wordCodes = new ArrayList<>(prefixCodes);
+            wordCodes.addAll(Arrays.asList(codes));
+            List<Integer> wordPoints = new ArrayList<>(prefixPoints);
+            wordPoints.addAll(Arrays.asList(points));
+            setCodes(added.get(i), wordCodes, wordPoints);
+        }
+    }
+
+    private static int pathLength(int[] parent, int node, int root) {
+        int length = 0;
+        for (; node != root; node = parent[node])
+            length++;
+        return length;
+    }
+
+    private static void setCodes(VocabWord word, List<Byte> codes, List<Integer> points) {
+        word.setCodes(codes);
+        word.setPoints(points);
+        word.setCodeLength((short) codes.size());
+    }
+
+    /**
+     * Writes the changes made by growing and training as the next delta of the model at {@code modelLocation}.
+     */
+    public File write(String modelLocation) throws IOException {
+        File folder = folder(modelLocation);
+        Files.createDirectories(folder.toPath());
+        File file = new File(folder, String.format(DELTA_FILE, deltas(modelLocation).length + 1));
+
+        VocabCache<VocabWord> vocab = model.getVocab();
+        InMemoryLookupTable<VocabWord> table = (InMemoryLookupTable<VocabWord>) model.getLookupTable();
+        int words = vocab.numWords();
+        int layerSize = table.layerSize();
+        BitSet syn1NegRows = new BitSet();
+        if (table.getSyn1Neg() != null) {
+            long[] after = digests(table.getSyn1Neg(), baseWords);
+            for (int row = 0; row < baseWords; row++) {
+                if (after[row] != syn1NegDigests[row])
+                    syn1NegRows.set(row);
+            }
+        }
+        // rows past the base model are new, they are always written
+        BitSet newRows = new BitSet();
+        newRows.set(baseWords, words);
+        syn0Rows.or(newRows);
+        syn1Rows.or(newRows);
+        if (table.getSyn1() != null)
+            syn1Rows.set(Math.max(0, baseWords - 1), Math.max(0, words - 1));
+        else
+            syn1Rows.clear();
+        if (table.getSyn1Neg() != null)
+            syn1NegRows.or(newRows);
+
+        long start = System.currentTimeMillis();
+        File temporary = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary),
+                1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(baseWords);
+            out.writeInt(words);
+            out.writeInt(layerSize);
+            out.writeLong(vocab.totalWordOccurrences());
+            out.writeLong(vocab.totalNumberOfDocs());
+
+            out.writeInt(changedWords.cardinality());
+            for (int index = changedWords.nextSetBit(0); index >= 0; index = changedWords.nextSetBit(index + 1)) {
+                VocabWord word = vocab.elementAtIndex(index);
+                out.writeInt(index);
+                if (index >= baseWords) {
+                    byte[] label = word.getLabel().getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(label.length);
+                    out.write(label);
+                }
+                out.writeLong((long) word.getElementFrequency());
+                out.writeLong(word.getSequencesCount());
+                int codeLength = word.getCodes() == null ? 0 : word.getCodeLength();
+                out.writeShort(codeLength);
+                for (int c = 0; c < codeLength; c++)
+                    out.writeByte(word.getCodes().get(c));
+                for (int c = 0; c < codeLength; c++)
+                    out.writeInt(word.getPoints().get(c));
+            }
+
+            writeRows(out, table.getSyn0(), syn0Rows);
+            writeRows(out, table.getSyn1(), syn1Rows);
+            writeRows(out, table.getSyn1Neg(), syn1NegRows);
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        logger.debug("Delta of " + changedWords.cardinality() + " words and " + syn0Rows.cardinality() + "/"
+                + syn1Rows.cardinality() + "/" + syn1NegRows.cardinality() + " syn0/syn1/syn1Neg rows written to "
+                + file + " in " + (System.currentTimeMillis() - start) + " ms");
+        return file;
+    }
+
+    private static void writeRows(DataOutputStream out, INDArray matrix, BitSet rows) throws IOException {
+        if (matrix == null) {
+            out.writeInt(0);
+            return;
+        }
+        out.writeInt(matrix.rows());
+        out.writeInt(rows.cardinality());
+        for (int row = rows.nextSetBit(0); row >= 0 && row < matrix.rows(); row = rows.nextSetBit(row + 1)) {
+            out.writeInt(row);
+            for (float value : matrix.getRow(row).dup().data().asFloat())
+                out.writeFloat(value);
+        }
+    }
+
+    /**
+     * Applies the deltas of the model at {@code modelLocation} in order and returns how many there were.
+     */
+    public static int applyAll(Word2Vec vec, String modelLocation) throws IOException {
+        File[] deltas = deltas(modelLocation);
+        for (File delta : deltas)
+            apply(vec, delta);
+        if (deltas.length > 0)
+            logger.debug("Applied " + deltas.length + " deltas from " + folder(modelLocation));
+        return deltas.length;
+    }
+
+    static void apply(Word2Vec vec, File file) throws IOException {
+        AbstractCache<VocabWord> vocab = cache(vec.getVocab());
+        InMemoryLookupTable<VocabWord> table = (InMemoryLookupTable<VocabWord>) vec.getLookupTable();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException(file + " is not a model delta");
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported delta version " + version + " in " + file);
+            int baseWords = in.readInt();
+            int words = in.readInt();
+            int layerSize = in.readInt();
+            if (baseWords != vocab.numWords() || layerSize != table.layerSize())
+                throw new IOException("Delta " + file + " applies to a model of " + baseWords + " words of "
+                        + layerSize + " dimensions, not " + vocab.numWords() + " of " + table.layerSize());
+            long totalWordOccurrences = in.readLong();
+            long totalDocs = in.readLong();
+
+            int changed = in.readInt();
+            for (int i = 0; i < changed; i++) {
+                int index = in.readInt();
+                VocabWord word;
+                if (index >= baseWords) {
+                    byte[] label = new byte[in.readInt()];
+                    in.readFully(label);
+                    word = new VocabWord(1, new String(label, StandardCharsets.UTF_8));
+                    word.setIndex(index);
+                    vocab.addToken(word);
+                    vocab.addWordToIndex(index, word.getLabel());
+                } else {
+                    word = vocab.elementAtIndex(index);
+                }
+                word.setElementFrequency(in.readLong());
+                word.setSequencesCount(in.readLong());
+                int codeLength = in.readShort();
+                List<Byte> codes = new ArrayList<>(codeLength);
+                List<Integer> points = new ArrayList<>(codeLength);
+                for (int c = 0; c < codeLength; c++)
+                    codes.add(in.readByte());
+                for (int c = 0; c < codeLength; c++)
+                    points.add(in.readInt());
+                setCodes(word, codes, points);
+            }
+            if (vocab.numWords() != words)
+                throw new IOException("Delta " + file + " is corrupt: " + vocab.numWords() + " words instead of "
+                        + words);
+            vocab.setTotalWordOccurences(totalWordOccurrences);
+            vocab.setTotalDocCount(totalDocs);
+
+            table.setSyn0(readRows(in, table.getSyn0(), layerSize));
+            INDArray syn1 = readRows(in, table.getSyn1(), layerSize);
+            if (syn1 != null)
+                table.setSyn1(syn1);
+            INDArray syn1Neg = readRows(in, table.getSyn1Neg(), layerSize);
+            if (syn1Neg != null)
+                table.setSyn1Neg(syn1Neg);
+        }
+    }
+
+    private static INDArray readRows(DataInputStream in, INDArray matrix, int layerSize) throws IOException {
+        int rows = in.readInt();
+        if (rows == 0)
+            return matrix;
+        INDArray target = matrix == null ? Nd4j.zeros(rows, layerSize) : extend(matrix, rows, layerSize);
+        int count = in.readInt();
+        float[] values = new float[layerSize];
+        for (int i = 0; i < count; i++) {
+            int row = in.readInt();
+            for (int c = 0; c < layerSize; c++)
+                values[c] = in.readFloat();
+            target.putRow(row, Nd4j.create(values));
+        }
+        return target;
+    }
+
+    static File folder(String modelLocation) {
+        return new File(modelLocation + DELTA_SUFFIX);
+    }
+
+    static File[] deltas(String modelLocation) {
+        File[] files = folder(modelLocation).listFiles((dir, name) -> name.startsWith("delta-")
+                && name.endsWith(".w2vd"));
+        if (files == null)
+            return new File[0];
+        Arrays.sort(files);
+        return files;
+    }
+
+    // a hash of every row below rows, to tell which rows training has changed
+    private static long[] digests(INDArray matrix, int rows) {
+        long[] digests = new long[rows];
+        int block = 4096;
+        int columns = matrix.columns();
+        for (int from = 0; from < rows; from += block) {
+            int to = Math.min(rows, from + block);
+            float[] values = matrix.get(NDArrayIndex.interval(from, to),
+                    NDArrayIndex.all()).dup('c').data().asFloat();
+            for (int row = from; row < to; row++) {
+                long hash = 0xcbf29ce484222325L;
+                for (int c = 0; c < columns; c++) {
+                    hash ^= Float.floatToRawIntBits(values[(row - from) * columns + c]);
+                    hash *= 0x100000001b3L;
+                }
+                digests[row] = hash;
+            }
+        }
+        return digests;
+    }
+}
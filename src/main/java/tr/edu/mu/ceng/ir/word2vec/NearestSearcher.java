@@ -0,0 +1,68 @@
+package tr.edu.mu.ceng.ir.word2vec;
+
+import org.deeplearning4j.models.word2vec.Word2Vec;
+
+/**
+ * Exact cosine top-k search over the vocabulary of a model, shared by the query server and the batch jobs.
+ * {@link BlockedSearcher} multiplies query blocks against a normalised copy of an in-memory syn0;
+ * {@link ServingSearcher} scans the rows of a {@link ServingLookupTable} where they are, so that mapped and quantized
+ * models are never expanded into a float matrix on the heap.
+ */
+interface NearestSearcher {
+
+    static NearestSearcher of(Word2Vec vec) {
+        if (vec.getLookupTable() instanceof ServingLookupTable) {
+            int rerank = vec.getModelUtils() instanceof ServingModelUtils
+                    ? ((ServingModelUtils) vec.getModelUtils()).getRerankCandidates() : 0;
+            return new ServingSearcher((ServingLookupTable) vec.getLookupTable(), rerank);
+        }
+        return BlockedSearcher.of(vec);
+    }
+
+    /**
+     * Number of searched vocabulary rows.
+     */
+    int rows();
+
+    int columns();
+
+    /**
+     * The L2-normalised vector of the word with the given index.
+     */
+    float[] row(int id);
+
+    /**
+     * A searcher over the first {@code rows} words only.
+     */
+    NearestSearcher limit(int rows);
+
+    /**
+     * Returns the {@code k} most similar vocabulary ids for every query, best first, skipping the ids listed in
+     * {@code excluded} for that query (may be null). Similarities are written to {@code scores} when it is not null.
+     */
+    int[][] search(float[][] queries, int k, int[][] excluded, float[][] scores);
+
+    /**
+     * The cosine similarities of the words {@code left[i]} and {@code right[i]}.
+     */
+    double[] cosines(int[] left, int[] right);
+
+    /**
+     * Builds a unit-length query from the normalised rows of the positive ids minus those of the negative ids.
+     */
+    default float[] query(int[] positive, int[] negative) {
+        float[] query = new float[columns()];
+        for (int sign = 1; sign >= -1; sign -= 2) {
+            int[] ids = sign > 0 ? positive : negative;
+            if (ids == null)
+                continue;
+            for (int id : ids) {
+                float[] row = row(id);
+                for (int i = 0; i < query.length; i++)
+                    query[i] += sign * row[i];
+            }
+        }
+        BlockedSearcher.normalize(query);
+        return query;
+    }
+}
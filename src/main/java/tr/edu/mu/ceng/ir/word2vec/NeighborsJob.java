@@ -0,0 +1,143 @@
+package tr.edu.mu.ceng.ir.word2vec;
+
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.deeplearning4j.models.word2vec.Word2Vec;
+import org.deeplearning4j.models.word2vec.wordstore.VocabCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Offline top-k neighbours for a word list (or the whole vocabulary). Query blocks are answered by a
+ * {@link NearestSearcher} on all cores, each worker keeping its own top-k heaps, and finished blocks are streamed
+ * to the output file in query order as tab separated lines: {@code word<TAB>neighbour:similarity<TAB>...}.
+ */
+public class NeighborsJob {
+
+    private static Logger logger = LoggerFactory.getLogger(NeighborsJob.class);
+
+    private final Word2Vec vec;
+    private final int k;
+    private final int threads;
+    private final int queryBlock;
+
+    public NeighborsJob(Word2Vec vec, int k, int threads, int queryBlock) {
+        this.vec = vec;
+        this.k = k;
+        this.threads = Math.max(1, threads);
+        this.queryBlock = Math.max(1, queryBlock);
+    }
+
+    public void run(File wordList, File output) throws IOException {
+        long start = System.currentTimeMillis();
+        VocabCache<VocabWord> vocab = vec.getVocab();
+        NearestSearcher searcher = NearestSearcher.of(vec);
+        int[] queries = queries(vocab, wordList);
+        logger.debug("Computing " + k + " neighbours for " + queries.length + " words over a vocabulary of "
+                + vocab.numWords() + " with " + threads + " threads");
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Deque<Future<String>> window = new ArrayDeque<>();
+        long written = 0;
+        try (BufferedWriter writer = new BufferedWriter(
+                new OutputStreamWriter(Files.newOutputStream(output.toPath()), StandardCharsets.UTF_8), 1 << 20)) {
+            for (int from = 0; from < queries.length; from += queryBlock) {
+                int to = Math.min(queries.length, from + queryBlock);
+                int blockStart = from;
+                window.add(executor.submit(() -> block(searcher, vocab, queries, blockStart, to)));
+                // keep a bounded number of blocks in flight, writing them out in submission order
+                while (window.size() > threads * 2)
+                    writer.write(await(window.poll()));
+                written = to;
+            }
+            while (!window.isEmpty())
+                writer.write(await(window.poll()));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        logger.debug(String.format("Neighbours of %d words written to %s in %d ms (%.0f words/s)", written, output,
+                elapsed, written / (elapsed / 1000.0)));
+    }
+
+    private String block(NearestSearcher searcher, VocabCache<VocabWord> vocab, int[] queries, int from, int to) {
+        int[] ids = new int[to - from];
+        float[][] vectors = new float[ids.length][];
+        int[][] excluded = new int[to - from][];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = queries[from + i];
+            vectors[i] = searcher.row(ids[i]);
+            excluded[i] = new int[]{ids[i]};
+        }
+        float[][] scores = new float[ids.length][];
+        int[][] neighbours = searcher.search(vectors, k, excluded, scores);
+
+        StringBuilder builder = new StringBuilder(ids.length * k * 24);
+        for (int i = 0; i < ids.length; i++) {
+            builder.append(vocab.wordAtIndex(ids[i]));
+            for (int j = 0; j < neighbours[i].length; j++) {
+                builder.append('\t').append(vocab.wordAtIndex(neighbours[i][j])).append(':').append(scores[i][j]);
+            }
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+
+    private int[] queries(VocabCache<VocabWord> vocab, File wordList) throws IOException {
+        if (wordList == null) {
+            int[] all = new int[vocab.numWords()];
+            for (int i = 0; i < all.length; i++)
+                all[i] = i;
+            return all;
+        }
+
+        List<Integer> ids = new ArrayList<>();
+        int unknown = 0;
+        try (BufferedReader reader = Files.newBufferedReader(wordList.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                for (String word : line.trim().split("\\s+")) {
+                    if (word.isEmpty())
+                        continue;
+                    if (vocab.containsWord(word))
+                        ids.add(vocab.indexOf(word));
+                    else
+                        unknown++;
+                }
+            }
+        }
+        if (unknown > 0)
+            logger.debug(unknown + " words of " + wordList + " are not in the vocabulary and were skipped");
+        int[] result = new int[ids.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = ids.get(i);
+        return result;
+    }
+
+    private static String await(Future<String> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while computing neighbours", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Neighbour computation failed", e.getCause());
+        }
+    }
+}
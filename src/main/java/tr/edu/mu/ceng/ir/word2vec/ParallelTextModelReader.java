@@ -0,0 +1,447 @@
+package tr.edu.mu.ceng.ir.word2vec;
+
+import org.deeplearning4j.models.embeddings.loader.VectorsConfiguration;
+import org.deeplearning4j.models.embeddings.loader.WordVectorSerializer;
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.deeplearning4j.models.word2vec.Word2Vec;
+import org.deeplearning4j.models.word2vec.wordstore.inmemory.AbstractCache;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Multi-threaded reader for the uncompressed text model written by {@code Word2VecExample.writeUnCompressed}
+ * (syn0.txt, syn1.txt, syn1Neg.txt, codes.txt, huffman.txt, frequencies.txt and config.json).
+ * Every file is split into byte ranges at line boundaries; the ranges are first counted to learn the row each
+ * one starts at and then parsed concurrently, writing floats straight into a single preallocated matrix.
+ */
+public class ParallelTextModelReader {
+
+    private static Logger logger = LoggerFactory.getLogger(ParallelTextModelReader.class);
+
+    private static final int READ_BUFFER_SIZE = 1 << 23;
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++)
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+
+    private final int threads;
+
+    public ParallelTextModelReader() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelTextModelReader(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Receives one line of a chunk, as the byte range [start, end) of {@code data}, excluding the line terminator.
+     */
+    interface LineHandler {
+        void line(byte[] data, int start, int end, long lineNumber) throws IOException;
+    }
+
+    public Word2Vec read(String folder) throws IOException {
+        long start = System.currentTimeMillis();
+        File fileSyn0 = new File(folder, "syn0.txt");
+        File fileSyn1 = new File(folder, "syn1.txt");
+        File fileSyn1Neg = new File(folder, "syn1Neg.txt");
+        File fileCodes = new File(folder, "codes.txt");
+        File fileHuffman = new File(folder, "huffman.txt");
+        File fileFreq = new File(folder, "frequencies.txt");
+
+        VectorsConfiguration configuration = VectorsConfiguration.fromJson(
+                new String(Files.readAllBytes(new File(folder, "config.json").toPath()), StandardCharsets.UTF_8).trim());
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            // syn0.txt starts with a "words layerSize docs" header, followed by one labelled row per word
+            long[] header = readHeader(fileSyn0);
+            int numWords = (int) header[0];
+            int layerSize = (int) header[1];
+
+            String[] labels = new String[numWords];
+            INDArray syn0 = readMatrix(executor, fileSyn0, 1, numWords, layerSize, labels);
+            INDArray syn1 = fileSyn1.exists() ? readMatrix(executor, fileSyn1, 0, -1, layerSize, null) : null;
+            INDArray syn1Neg = fileSyn1Neg.exists() ? readMatrix(executor, fileSyn1Neg, 0, -1, layerSize, null) : null;
+
+            AbstractCache<VocabWord> vocab = new AbstractCache.Builder<VocabWord>().build();
+            for (int i = 0; i < numWords; i++) {
+                VocabWord word = new VocabWord(1.0, labels[i]);
+                word.setIndex(i);
+                vocab.addToken(word);
+                vocab.addWordToIndex(i, labels[i]);
+            }
+            vocab.setTotalDocCount(header[2]);
+
+            if (fileCodes.exists())
+                readCodes(executor, fileCodes, vocab, false);
+            if (fileHuffman.exists())
+                readCodes(executor, fileHuffman, vocab, true);
+            if (fileFreq.exists())
+                readFrequencies(executor, fileFreq, vocab);
+            vocab.updateWordsOccurrences();
+
+            logger.debug("Text model " + folder + " loaded in " + (System.currentTimeMillis() - start) + " ms using "
+                    + threads + " threads");
+            return BinaryModelSerializer.assemble(configuration, vocab, syn0, syn1, syn1Neg);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private INDArray readMatrix(ExecutorService executor, File file, int skipLines, int rows, int columns,
+                                String[] labels) throws IOException {
+        long start = System.currentTimeMillis();
+        long[] bounds = chunkBounds(file);
+        long[] firstLines = firstLines(executor, file, bounds);
+        long lines = firstLines[firstLines.length - 1];
+        if (rows < 0)
+            rows = (int) (lines - skipLines);
+        if (rows == 0)
+            return null;
+
+        INDArray matrix = Nd4j.create(rows, columns);
+        DataBuffer data = matrix.data();
+        long rowCount = rows;
+        boolean labelled = labels != null;
+
+        parse(executor, file, bounds, firstLines, (bytes, from, to, lineNumber) -> {
+            long row = lineNumber - skipLines;
+            if (row < 0 || row >= rowCount)
+                return;
+            int position = from;
+            if (labelled) {
+                int space = position;
+                while (space < to && bytes[space] != ' ')
+                    space++;
+                labels[(int) row] = WordVectorSerializer.decodeB64(
+                        new String(bytes, position, space - position, StandardCharsets.UTF_8));
+                position = space;
+            }
+            long offset = row * columns;
+            for (int column = 0; column < columns; column++) {
+                while (position < to && bytes[position] == ' ')
+                    position++;
+                int end = position;
+                while (end < to && bytes[end] != ' ')
+                    end++;
+                if (end == position)
+                    throw new IOException("Row " + row + " of " + file + " has fewer than " + columns + " values");
+                data.put(offset + column, (float) parseDouble(bytes, position, end));
+                position = end;
+            }
+        });
+
+        logThroughput(file, rows, start);
+        return matrix;
+    }
+
+    private void readCodes(ExecutorService executor, File file, AbstractCache<VocabWord> vocab, boolean points)
+            throws IOException {
+        long start = System.currentTimeMillis();
+        long[] bounds = chunkBounds(file);
+        long[] firstLines = firstLines(executor, file, bounds);
+        parse(executor, file, bounds, firstLines, (bytes, from, to, lineNumber) -> {
+            List<String> split = split(bytes, from, to);
+            VocabWord word = vocab.tokenFor(WordVectorSerializer.decodeB64(split.get(0)));
+            if (word == null)
+                return;
+            if (points) {
+                List<Integer> values = new ArrayList<>(split.size() - 1);
+                for (int i = 1; i < split.size(); i++)
+                    values.add(Integer.parseInt(split.get(i)));
+                word.setPoints(values);
+            } else {
+                List<Byte> values = new ArrayList<>(split.size() - 1);
+                for (int i = 1; i < split.size(); i++)
+                    values.add(Byte.parseByte(split.get(i)));
+                word.setCodes(values);
+                word.setCodeLength((short) values.size());
+            }
+        });
+        logThroughput(file, firstLines[firstLines.length - 1], start);
+    }
+
+    private void readFrequencies(ExecutorService executor, File file, AbstractCache<VocabWord> vocab)
+            throws IOException {
+        long start = System.currentTimeMillis();
+        long[] bounds = chunkBounds(file);
+        long[] firstLines = firstLines(executor, file, bounds);
+        parse(executor, file, bounds, firstLines, (bytes, from, to, lineNumber) -> {
+            List<String> split = split(bytes, from, to);
+            VocabWord word = vocab.tokenFor(WordVectorSerializer.decodeB64(split.get(0)));
+            if (word == null)
+                return;
+            word.setElementFrequency((long) Double.parseDouble(split.get(1)));
+            word.setSequencesCount((long) Double.parseDouble(split.get(2)));
+        });
+        logThroughput(file, firstLines[firstLines.length - 1], start);
+    }
+
+    private long[] readHeader(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(256);
+            channel.read(buffer, 0);
+            String first = new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8).split("\n")[0];
+            String[] split = first.trim().split(" ");
+            if (split.length != 3)
+                throw new IOException("Missing \"words layerSize docs\" header in " + file);
+            return new long[]{Long.parseLong(split[0]), Long.parseLong(split[1]), Long.parseLong(split[2])};
+        }
+    }
+
+    /**
+     * Splits the file into roughly equal byte ranges, each starting right after a line terminator.
+     */
+    private long[] chunkBounds(File file) throws IOException {
+        long size = file.length();
+        int chunks = (int) Math.max(1, Math.min(threads * CHUNKS_PER_THREAD, size / (1 << 20)));
+        long[] bounds = new long[chunks + 1];
+        bounds[chunks] = size;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            for (int i = 1; i < chunks; i++) {
+                long position = Math.max(bounds[i - 1], size * i / chunks);
+                long boundary = size;
+                while (position < size && boundary == size) {
+                    buffer.clear();
+                    int read = channel.read(buffer, position);
+                    if (read <= 0)
+                        break;
+                    for (int b = 0; b < read; b++) {
+                        if (buffer.get(b) == '\n') {
+                            boundary = position + b + 1;
+                            break;
+                        }
+                    }
+                    position += read;
+                }
+                bounds[i] = boundary;
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * Counts the lines of every chunk in parallel, returning the number of the first line of each chunk
+     * (the last element holds the total line count).
+     */
+    private long[] firstLines(ExecutorService executor, File file, long[] bounds) throws IOException {
+        int chunks = bounds.length - 1;
+        List<Future<Long>> counts = new ArrayList<>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            long from = bounds[i];
+            long to = bounds[i + 1];
+            counts.add(executor.submit(() -> {
+                AtomicLong lines = new AtomicLong();
+                scan(file, from, to, 0, (bytes, start, end, lineNumber) -> lines.incrementAndGet());
+                return lines.get();
+            }));
+        }
+        long[] firstLines = new long[chunks + 1];
+        for (int i = 0; i < chunks; i++)
+            firstLines[i + 1] = firstLines[i] + await(counts.get(i));
+        return firstLines;
+    }
+
+    private void parse(ExecutorService executor, File file, long[] bounds, long[] firstLines, LineHandler handler)
+            throws IOException {
+        List<Future<Long>> tasks = new ArrayList<>();
+        for (int i = 0; i < bounds.length - 1; i++) {
+            long from = bounds[i];
+            long to = bounds[i + 1];
+            long firstLine = firstLines[i];
+            tasks.add(executor.submit(() -> {
+                scan(file, from, to, firstLine, handler);
+                return to - from;
+            }));
+        }
+        for (Future<Long> task : tasks)
+            await(task);
+    }
+
+    /**
+     * Reads the byte range [from, to) and hands every non-empty line to the handler.
+     */
+    static void scan(File file, long from, long to, long firstLine, LineHandler handler) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            byte[] bytes = new byte[(int) Math.min(READ_BUFFER_SIZE, Math.max(1, to - from))];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            long position = from;
+            long lineNumber = firstLine;
+            int filled = 0;
+            while (position < to || filled > 0) {
+                boolean eof = position >= to;
+                if (!eof) {
+                    if (filled == bytes.length) {
+                        // a single line longer than the buffer
+                        bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                        buffer = ByteBuffer.wrap(bytes);
+                    }
+                    buffer.limit((int) Math.min(bytes.length, filled + (to - position)));
+                    buffer.position(filled);
+                    int read = channel.read(buffer, position);
+                    if (read < 0)
+                        throw new IOException("Unexpected end of " + file);
+                    position += read;
+                    filled += read;
+                    eof = position >= to;
+                }
+
+                int lineStart = 0;
+                for (int i = 0; i < filled; i++) {
+                    if (bytes[i] == '\n') {
+                        if (emit(bytes, lineStart, i, lineNumber, handler))
+                            lineNumber++;
+                        lineStart = i + 1;
+                    }
+                }
+                if (eof && lineStart < filled) {
+                    // last line of the file without a terminator
+                    if (emit(bytes, lineStart, filled, lineNumber, handler))
+                        lineNumber++;
+                    lineStart = filled;
+                }
+                System.arraycopy(bytes, lineStart, bytes, 0, filled - lineStart);
+                filled -= lineStart;
+            }
+        }
+    }
+
+    private static boolean emit(byte[] bytes, int start, int end, long lineNumber, LineHandler handler)
+            throws IOException {
+        if (end > start && bytes[end - 1] == '\r')
+            end--;
+        while (end > start && bytes[end - 1] == ' ')
+            end--;
+        if (end == start)
+            return false;
+        handler.line(bytes, start, end, lineNumber);
+        return true;
+    }
+
+    /**
+     * Parses a decimal as written by {@link Double#toString(double)} without creating a String,
+     * falling back to {@link Double#parseDouble(String)} for anything unusual (NaN, Infinity, long mantissas).
+     */
+    static double parseDouble(byte[] bytes, int start, int end) {
+        int position = start;
+        boolean negative = false;
+        if (bytes[position] == '-' || bytes[position] == '+') {
+            negative = bytes[position] == '-';
+            position++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean fraction = false;
+        for (; position < end; position++) {
+            byte b = bytes[position];
+            if (b >= '0' && b <= '9') {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    if (mantissa != 0)
+                        digits++;
+                    if (fraction)
+                        exponent--;
+                } else if (!fraction) {
+                    exponent++;
+                }
+            } else if (b == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+        if (position < end) {
+            if (bytes[position] != 'E' && bytes[position] != 'e')
+                return Double.parseDouble(new String(bytes, start, end - start, StandardCharsets.US_ASCII));
+            position++;
+            boolean negativeExponent = false;
+            if (position < end && (bytes[position] == '-' || bytes[position] == '+')) {
+                negativeExponent = bytes[position] == '-';
+                position++;
+            }
+            int value = 0;
+            for (; position < end; position++) {
+                byte b = bytes[position];
+                if (b < '0' || b > '9')
+                    return Double.parseDouble(new String(bytes, start, end - start, StandardCharsets.US_ASCII));
+                value = value * 10 + (b - '0');
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+
+        double result;
+        if (exponent == 0)
+            result = mantissa;
+        else if (exponent < 0 && -exponent < POWERS_OF_TEN.length)
+            result = mantissa / POWERS_OF_TEN[-exponent];
+        else if (exponent > 0 && exponent < POWERS_OF_TEN.length)
+            result = mantissa * POWERS_OF_TEN[exponent];
+        else
+            result = Double.parseDouble(new String(bytes, start, end - start, StandardCharsets.US_ASCII));
+        return negative ? -result : result;
+    }
+
+    private static List<String> split(byte[] bytes, int from, int to) {
+        List<String> values = new ArrayList<>();
+        int position = from;
+        while (position < to) {
+            while (position < to && bytes[position] == ' ')
+                position++;
+            int end = position;
+            while (end < to && bytes[end] != ' ')
+                end++;
+            if (end > position)
+                values.add(new String(bytes, position, end - position, StandardCharsets.UTF_8));
+            position = end;
+        }
+        return values;
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading model", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static void logThroughput(File file, long rows, long start) {
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        logger.debug(String.format("Read %s: %d lines, %.1f MB in %d ms (%.1f MB/s, %.0f lines/s)",
+                file.getName(), rows, file.length() / 1024.0 / 1024.0, elapsed,
+                file.length() / 1024.0 / 1024.0 / (elapsed / 1000.0), rows / (elapsed / 1000.0)));
+    }
+}
@@ -0,0 +1,239 @@
+package tr.edu.mu.ceng.ir.word2vec;
+
+import org.deeplearning4j.models.embeddings.inmemory.InMemoryLookupTable;
+import org.deeplearning4j.models.embeddings.loader.WordVectorSerializer;
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.deeplearning4j.models.word2vec.Word2Vec;
+import org.deeplearning4j.models.word2vec.wordstore.VocabCache;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Multi-threaded writer of the uncompressed text model read by {@link ParallelTextModelReader} and
+ * {@code WordVectorSerializer.readWord2VecFromText}. The six text files are written concurrently; each one is cut
+ * into blocks of rows that are copied out of the matrix in one call, formatted into bytes on the shared formatting
+ * threads and appended to the file in order, a bounded number of blocks ahead of the writes.
+ * <p>
+ * The output is byte for byte the one of the former single-threaded writer: {@link Double#toString(double)} of every
+ * value, single spaces and the platform line separator.
+ */
+public class ParallelTextModelWriter {
+
+    private static Logger logger = LoggerFactory.getLogger(ParallelTextModelWriter.class);
+
+    private static final String NEWLINE = System.lineSeparator();
+    private static final int VALUES_PER_BLOCK = 1 << 16;
+    private static final int WORDS_PER_BLOCK = 4096;
+    private static final int FILES = 6;
+
+    private final int threads;
+
+    public ParallelTextModelWriter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelTextModelWriter(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Formats the lines [from, to) of a file.
+     */
+    interface BlockFormatter {
+        Callable<byte[]> block(int from, int to);
+    }
+
+    public void write(Word2Vec vec, String folder) throws IOException {
+        long start = System.currentTimeMillis();
+        File target = new File(folder);
+        if (!target.exists())
+            Files.createDirectory(target.toPath());
+
+        InMemoryLookupTable<VocabWord> table = (InMemoryLookupTable<VocabWord>) vec.getLookupTable();
+        VocabCache<VocabWord> vocab = vec.getVocab();
+        int numWords = vocab.numWords();
+
+        ExecutorService formatters = Executors.newFixedThreadPool(threads);
+        ExecutorService files = Executors.newFixedThreadPool(FILES);
+        try {
+            List<Future<Void>> tasks = new ArrayList<>();
+
+            // syn0.txt holds a "words layerSize docs" header and the label of every row
+            int[] ids = new int[numWords];
+            String[] labels = new String[numWords];
+            for (int i = 0; i < numWords; i++) {
+                String label = vocab.elementAtIndex(i).getLabel();
+                ids[i] = vocab.indexOf(label);
+                labels[i] = WordVectorSerializer.encodeB64(label);
+            }
+            String header = numWords + " " + table.layerSize() + " " + vocab.totalNumberOfDocs() + NEWLINE;
+            tasks.add(files.submit(() -> writeMatrix(formatters, new File(target, "syn0.txt"), header,
+                    table.getSyn0(), ids, labels)));
+            if (table.getSyn1() != null)
+                tasks.add(files.submit(() -> writeMatrix(formatters, new File(target, "syn1.txt"), null,
+                        table.getSyn1(), null, null)));
+            if (table.getSyn1Neg() != null)
+                tasks.add(files.submit(() -> writeMatrix(formatters, new File(target, "syn1Neg.txt"), null,
+                        table.getSyn1Neg(), null, null)));
+
+            tasks.add(files.submit(() -> writeLines(formatters, new File(target, "codes.txt"), null, numWords,
+                    WORDS_PER_BLOCK, (from, to) -> () -> {
+                        StringBuilder builder = new StringBuilder();
+                        for (int i = from; i < to; i++) {
+                            builder.append(labels[i]);
+                            for (int code : vocab.elementAtIndex(i).getCodes())
+                                builder.append(' ').append(code);
+                            builder.append(NEWLINE);
+                        }
+                        return builder.toString().getBytes(StandardCharsets.UTF_8);
+                    })));
+            tasks.add(files.submit(() -> writeLines(formatters, new File(target, "huffman.txt"), null, numWords,
+                    WORDS_PER_BLOCK, (from, to) -> () -> {
+                        StringBuilder builder = new StringBuilder();
+                        for (int i = from; i < to; i++) {
+                            builder.append(labels[i]);
+                            for (int point : vocab.elementAtIndex(i).getPoints())
+                                builder.append(' ').append(point);
+                            builder.append(NEWLINE);
+                        }
+                        return builder.toString().getBytes(StandardCharsets.UTF_8);
+                    })));
+            tasks.add(files.submit(() -> writeLines(formatters, new File(target, "frequencies.txt"), null, numWords,
+                    WORDS_PER_BLOCK, (from, to) -> () -> {
+                        StringBuilder builder = new StringBuilder();
+                        for (int i = from; i < to; i++) {
+                            VocabWord word = vocab.elementAtIndex(i);
+                            builder.append(labels[i]).append(' ').append(word.getElementFrequency()).append(' ')
+                                    .append(vocab.docAppearedIn(word.getLabel())).append(NEWLINE);
+                        }
+                        return builder.toString().getBytes(StandardCharsets.UTF_8);
+                    })));
+
+            Files.write(new File(target, "config.json").toPath(),
+                    vec.getConfiguration().toJson().getBytes(StandardCharsets.UTF_8));
+            for (Future<Void> task : tasks)
+                await(task);
+        } finally {
+            files.shutdownNow();
+            formatters.shutdownNow();
+        }
+        logger.debug("Text model " + folder + " written in " + (System.currentTimeMillis() - start) + " ms using "
+                + threads + " threads");
+    }
+
+    /**
+     * Writes one line per row of the matrix, prefixed with its label when there are labels; {@code ids} picks the
+     * rows, in order, or is null for all of them.
+     */
+    private Void writeMatrix(ExecutorService formatters, File file, String header, INDArray matrix, int[] ids,
+                             String[] labels) throws IOException {
+        int rows = ids != null ? ids.length : matrix.rows();
+        int columns = matrix.columns();
+        return writeLines(formatters, file, header, rows, Math.max(1, VALUES_PER_BLOCK / Math.max(1, columns)),
+                (from, to) -> {
+                    int[] block = new int[to - from];
+                    for (int i = 0; i < block.length; i++)
+                        block[i] = ids != null ? ids[from + i] : from + i;
+                    // the copy runs on the file thread, the formatting on the pool
+                    INDArray copy = Nd4j.pullRows(matrix, 1, block, 'c');
+                    return () -> {
+                        double[] values = values(copy.data());
+                        StringBuilder builder = new StringBuilder(values.length * 22);
+                        for (int r = 0; r < block.length; r++) {
+                            if (labels != null)
+                                builder.append(labels[from + r]).append(' ');
+                            int offset = r * columns;
+                            for (int c = 0; c < columns; c++) {
+                                if (c > 0)
+                                    builder.append(' ');
+                                builder.append(values[offset + c]);
+                            }
+                            builder.append(NEWLINE);
+                        }
+                        return builder.toString().getBytes(StandardCharsets.UTF_8);
+                    };
+                });
+    }
+
+    private Void writeLines(ExecutorService formatters, File file, String header, int lines, int linesPerBlock,
+                            BlockFormatter formatter) throws IOException {
+        long start = System.currentTimeMillis();
+        long bytes = 0;
+        Deque<Future<byte[]>> pending = new ArrayDeque<>();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            if (header != null)
+                bytes += write(channel, header.getBytes(StandardCharsets.UTF_8));
+            for (int from = 0; from < lines; from += linesPerBlock) {
+                if (pending.size() > threads)
+                    bytes += write(channel, await(pending.removeFirst()));
+                pending.addLast(formatters.submit(formatter.block(from, Math.min(lines, from + linesPerBlock))));
+            }
+            while (!pending.isEmpty())
+                bytes += write(channel, await(pending.removeFirst()));
+        } finally {
+            for (Future<byte[]> block : pending)
+                block.cancel(true);
+        }
+        logThroughput(file, lines, bytes, start);
+        return null;
+    }
+
+    private static int write(FileChannel channel, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        return bytes.length;
+    }
+
+    // the values as getDouble reads them, floats widened
+    private static double[] values(DataBuffer data) {
+        if (data.dataType() == DataBuffer.Type.DOUBLE)
+            return data.asDouble();
+        float[] floats = data.asFloat();
+        double[] values = new double[floats.length];
+        for (int i = 0; i < floats.length; i++)
+            values[i] = floats[i];
+        return values;
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing model", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static void logThroughput(File file, long rows, long bytes, long start) {
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        logger.debug(String.format("Wrote %s: %d lines, %.1f MB in %d ms (%.1f MB/s, %.0f lines/s)",
+                file.getName(), rows, bytes / 1024.0 / 1024.0, elapsed,
+                bytes / 1024.0 / 1024.0 / (elapsed / 1000.0), rows / (elapsed / 1000.0)));
+    }
+}
@@ -0,0 +1,221 @@
+package tr.edu.mu.ceng.ir.word2vec;
+
+import org.apache.commons.io.FileUtils;
+import org.deeplearning4j.models.embeddings.inmemory.InMemoryLookupTable;
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.deeplearning4j.models.word2vec.Word2Vec;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Data-parallel training on one machine. The vocabulary and the initial weights are built once and saved into the
+ * job folder, the input files are split into one shard per worker JVM ({@link TrainingWorker}), and every worker
+ * trains its own copy of the model on its shard. After each of the {@code rounds} rounds of an epoch the workers
+ * publish their weights into memory-mapped files, this process averages them into a shared mapped file and the
+ * workers continue from the average.
+ * <p>
+ * Progress is exchanged through a small control file of longs: slot 0 holds the last averaged round (or
+ * {@link #ABORTED}), slot 1 + i the last round published by worker i.
+ */
+public class ParallelTraining {
+
+    private static Logger logger = LoggerFactory.getLogger(ParallelTraining.class);
+
+    static final String JOB_FILE = "job.properties";
+    static final String MODEL_FOLDER = "model";
+    static final String CONTROL_FILE = "control";
+    static final String AVERAGE_FILE = "average.bin";
+    static final long ABORTED = -1;
+
+    private static final long POLL_MILLIS = 5;
+
+    private final File folder;
+    private final int workers;
+    private final int rounds;
+    private final List<String> jvmOptions;
+
+    /**
+     * @param folder     job folder, emptied before and deleted after training
+     * @param workers    number of worker JVMs, at most one per input file
+     * @param rounds     weight averaging rounds per epoch
+     * @param jvmOptions options of the worker JVMs, e.g. their heap size
+     */
+    public ParallelTraining(File folder, int workers, int rounds, List<String> jvmOptions) {
+        this.folder = folder;
+        this.workers = workers;
+        this.rounds = Math.max(1, rounds);
+        this.jvmOptions = jvmOptions;
+    }
+
+    /**
+     * Trains {@code vec}, whose vocabulary and weights are already initialised, on the files under {@code source}
+     * and leaves the averaged weights in its lookup table.
+     */
+    public void train(Word2Vec vec, File source, boolean lowerCaseSentences, boolean fastTokenizer) throws IOException {
+        List<List<File>> shards = partition(source.isDirectory()
+                ? new ArrayList<>(FileUtils.listFiles(source, null, true)) : Arrays.asList(source), workers);
+        if (shards.size() < workers)
+            logger.warn("Only " + shards.size() + " input files, training with " + shards.size() + " workers");
+        int count = shards.size();
+        int epochs = Math.max(1, vec.getConfiguration().getEpochs());
+        long total = (long) epochs * rounds;
+
+        FileUtils.deleteDirectory(folder);
+        Files.createDirectories(folder.toPath());
+        BinaryModelSerializer.write(vec, new File(folder, MODEL_FOLDER).getPath());
+
+        Properties job = new Properties();
+        job.setProperty("workers", String.valueOf(count));
+        job.setProperty("rounds", String.valueOf(rounds));
+        job.setProperty("epochs", String.valueOf(epochs));
+        job.setProperty("threads", String.valueOf(Math.max(1, Runtime.getRuntime().availableProcessors() / count)));
+        job.setProperty("lowerCaseSentences", String.valueOf(lowerCaseSentences));
+        job.setProperty("fastTokenizer", String.valueOf(fastTokenizer));
+        for (int i = 0; i < count; i++)
+            job.setProperty("shard." + i, linkShard(i, shards.get(i)).getPath());
+        try (OutputStream output = new FileOutputStream(new File(folder, JOB_FILE))) {
+            job.store(output, "word2vec data-parallel training job");
+        }
+
+        InMemoryLookupTable<VocabWord> table = (InMemoryLookupTable<VocabWord>) vec.getLookupTable();
+        INDArray[] matrices = matrices(table);
+        long[] rows = SharedMatrices.rows(matrices);
+        SharedMatrices average = SharedMatrices.open(new File(folder, AVERAGE_FILE), rows, table.layerSize());
+        List<SharedMatrices> published = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            published.add(SharedMatrices.open(workerFile(folder, i), rows, table.layerSize()));
+        try (RandomAccessFile control = new RandomAccessFile(new File(folder, CONTROL_FILE), "rw")) {
+            control.setLength(8L * (count + 1));
+        }
+
+        logger.debug("=====Starting " + count + " training workers, " + epochs + " epochs of " + rounds
+                + " rounds=====");
+        List<Process> processes = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++)
+                processes.add(start(i));
+
+            for (long round = 1; round <= total; round++) {
+                for (int i = 0; i < count; i++)
+                    awaitWorker(processes, i, round);
+                long start = System.currentTimeMillis();
+                average.average(published);
+                write(folder, 0, round);
+                logger.debug("Round " + round + "/" + total + " averaged in " + (System.currentTimeMillis() - start)
+                        + " ms");
+            }
+            for (int i = 0; i < count; i++) {
+                if (processes.get(i).waitFor() != 0)
+                    throw new IOException("Training worker " + i + " failed, see " + logFile(i));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the training workers", e);
+        } finally {
+            if (read(folder, 0) != total)
+                write(folder, 0, ABORTED);
+            for (Process process : processes)
+                process.destroy();
+        }
+
+        average.read(matrices);
+        FileUtils.deleteDirectory(folder);
+    }
+
+    // largest files first, each to the shard with the fewest bytes so far
+    static List<List<File>> partition(List<File> files, int workers) {
+        List<File> sorted = new ArrayList<>(files);
+        sorted.sort(Comparator.comparingLong(File::length).reversed());
+        int count = Math.max(1, Math.min(workers, sorted.size()));
+        List<List<File>> shards = new ArrayList<>(count);
+        long[] bytes = new long[count];
+        for (int i = 0; i < count; i++)
+            shards.add(new ArrayList<>());
+        for (File file : sorted) {
+            int lightest = 0;
+            for (int i = 1; i < count; i++) {
+                if (bytes[i] < bytes[lightest])
+                    lightest = i;
+            }
+            shards.get(lightest).add(file);
+            bytes[lightest] += file.length();
+        }
+        return shards;
+    }
+
+    // a folder of links to the shard files, which FileSentenceIterator reads like the original folder
+    private File linkShard(int worker, Collection<File> files) throws IOException {
+        File shard = new File(folder, "shard-" + worker);
+        Files.createDirectories(shard.toPath());
+        int n = 0;
+        for (File file : files) {
+            Path link = shard.toPath().resolve(String.format("%06d-%s", n++, file.getName()));
+            Files.createSymbolicLink(link, file.getAbsoluteFile().toPath());
+        }
+        return shard;
+    }
+
+    private Process start(int worker) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin" + File.separator + "java").getPath());
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(TrainingWorker.class.getName());
+        command.add(folder.getPath());
+        command.add(String.valueOf(worker));
+        // the worker watches its standard input, which is closed when this process dies
+        return new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(logFile(worker)).start();
+    }
+
+    private void awaitWorker(List<Process> processes, int worker, long round) throws IOException, InterruptedException {
+        while (read(folder, worker + 1) < round) {
+            if (!processes.get(worker).isAlive())
+                throw new IOException("Training worker " + worker + " stopped, see " + logFile(worker));
+            Thread.sleep(POLL_MILLIS);
+        }
+    }
+
+    private File logFile(int worker) {
+        return new File(folder.getAbsoluteFile().getParentFile(), folder.getName() + "-worker-" + worker + ".log");
+    }
+
+    static File workerFile(File folder, int worker) {
+        return new File(folder, "worker-" + worker + ".bin");
+    }
+
+    static INDArray[] matrices(InMemoryLookupTable<VocabWord> table) {
+        return new INDArray[]{table.getSyn0(), table.getSyn1(), table.getSyn1Neg()};
+    }
+
+    // control slots go through the file system calls rather than a mapping, so their updates are ordered after the
+    // weights written before them
+    static void write(File folder, int slot, long value) throws IOException {
+        try (RandomAccessFile control = new RandomAccessFile(new File(folder, CONTROL_FILE), "rw")) {
+            control.seek(8L * slot);
+            control.writeLong(value);
+        }
+    }
+
+    static long read(File folder, int slot) throws IOException {
+        try (RandomAccessFile control = new RandomAccessFile(new File(folder, CONTROL_FILE), "r")) {
+            control.seek(8L * slot);
+            return control.readLong();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package tr.edu.mu.ceng.ir.word2vec;
+
+import org.deeplearning4j.models.embeddings.inmemory.InMemoryLookupTable;
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.deeplearning4j.models.word2vec.Word2Vec;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Exports the syn0 of a full model as a {@link QuantizedLookupTable} file and reports the memory saved and the
+ * recall lost against exact search on the full-precision vectors.
+ */
+public class QuantizedExporter {
+
+    private static Logger logger = LoggerFactory.getLogger(QuantizedExporter.class);
+
+    private static final int RECALL_AT = 10;
+
+    private final int sampleSize;
+    private final int rerankCandidates;
+
+    public QuantizedExporter(int sampleSize, int rerankCandidates) {
+        this.sampleSize = sampleSize;
+        this.rerankCandidates = rerankCandidates;
+    }
+
+    public void export(Word2Vec vec, File target, boolean rerankVectors) throws IOException {
+        if (!(vec.getLookupTable() instanceof InMemoryLookupTable))
+            throw new IOException("Only full models can be quantized, not quantized or compact exports");
+        InMemoryLookupTable<VocabWord> table = (InMemoryLookupTable<VocabWord>) vec.getLookupTable();
+        long start = System.currentTimeMillis();
+        QuantizedLookupTable.write(vec.getVocab(), table.getSyn0(), vec.getConfiguration(), rerankVectors, target);
+        logger.debug("Quantized model written to " + target + " in " + (System.currentTimeMillis() - start) + " ms");
+
+        long fullBytes = bytes(table.getSyn0()) + bytes(table.getSyn1()) + bytes(table.getSyn1Neg());
+        long codeBytes = (long) vec.getVocab().numWords() * table.layerSize() + table.layerSize() * 4L;
+        logger.debug(String.format("Lookup tables: %.1f MB full precision, %.1f MB int8 codes (%.1f%% saved)%s",
+                fullBytes / 1048576.0, codeBytes / 1048576.0, 100.0 * (fullBytes - codeBytes) / Math.max(1, fullBytes),
+                rerankVectors ? String.format(", plus %.1f MB of re-ranking rows paged in on demand",
+                        (long) vec.getVocab().numWords() * table.layerSize() * 4L / 1048576.0) : ""));
+
+        reportRecall(table.getSyn0(), QuantizedLookupTable.read(target));
+    }
+
+    private void reportRecall(INDArray syn0, QuantizedLookupTable quantized) {
+        int words = syn0.rows();
+        int samples = Math.min(sampleSize, words);
+        if (samples == 0)
+            return;
+
+        Random random = new Random(42);
+        int[] ids = new int[samples];
+        int[][] excluded = new int[samples][];
+        for (int i = 0; i < samples; i++) {
+            ids[i] = samples == words ? i : random.nextInt(words);
+            excluded[i] = new int[]{ids[i]};
+        }
+
+        BlockedSearcher exact = new BlockedSearcher(syn0);
+        int[][] expected = exact.search(exact.normalized().getRows(ids), RECALL_AT, excluded, null);
+
+        long hits = 0;
+        long rerankedHits = 0;
+        long total = 0;
+        for (int i = 0; i < samples; i++) {
+            float[] query = exact.row(ids[i]);
+            hits += overlap(expected[i], quantized.search(query, RECALL_AT, 0, excluded[i], null));
+            if (quantized.hasRerankVectors())
+                rerankedHits += overlap(expected[i],
+                        quantized.search(query, RECALL_AT, rerankCandidates, excluded[i], null));
+            total += expected[i].length;
+        }
+        logger.debug(String.format("Recall@%d over %d sampled words: %.4f on codes%s", RECALL_AT, samples,
+                hits / (double) Math.max(1, total), quantized.hasRerankVectors()
+                        ? String.format(", %.4f with %d re-ranked candidates",
+                        rerankedHits / (double) Math.max(1, total), rerankCandidates) : ""));
+    }
+
+    private static int overlap(int[] expected, int[] found) {
+        int hits = 0;
+        for (int id : found) {
+            for (int e : expected) {
+                if (e == id) {
+                    hits++;
+                    break;
+                }
+            }
+        }
+        return hits;
+    }
+
+    private static long bytes(INDArray matrix) {
+        return matrix == null ? 0 : matrix.length() * matrix.data().getElementSize();
+    }
+}
@@ -0,0 +1,234 @@
+package tr.edu.mu.ceng.ir.word2vec;
+
+import org.deeplearning4j.models.embeddings.loader.VectorsConfiguration;
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.deeplearning4j.models.word2vec.wordstore.VocabCache;
+import org.deeplearning4j.models.word2vec.wordstore.inmemory.AbstractCache;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Serving-only lookup table holding syn0 as int8 codes with one scale per dimension, memory-mapped from a single
+ * file. Vectors are L2-normalised before quantization, so nearest-word search is a dot product between the scaled
+ * query and the codes. The file can also carry the normalised float32 rows, which are only paged in to re-rank
+ * the best candidates exactly.
+ * <p>
+ * Layout (little-endian): magic, version, words, dimension, flags, total word occurrences, total documents,
+ * configuration JSON, vocabulary (label, frequency, documents), then 64-byte aligned scales, codes and optional rows.
+ */
+public class QuantizedLookupTable extends ServingLookupTable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final int MAGIC = 0x57325651; // "W2VQ"
+    static final int VERSION = 1;
+    static final int FLAG_RERANK_VECTORS = 1;
+
+    private static final int ROWS_PER_BLOCK = 4096;
+
+    private final float[] scales;
+    private final ByteBuffer[] codes;
+    private final ByteBuffer[] vectors;
+    private final int rowsPerRegion;
+
+    private QuantizedLookupTable(AbstractCache<VocabWord> vocab, VectorsConfiguration configuration, int dimension,
+                                 float[] scales, ByteBuffer[] codes, ByteBuffer[] vectors, int rowsPerRegion) {
+        super(vocab, configuration, dimension);
+        this.scales = scales;
+        this.codes = codes;
+        this.vectors = vectors;
+        this.rowsPerRegion = rowsPerRegion;
+    }
+
+    public static boolean isQuantized(String path) {
+        File file = new File(path);
+        if (!file.isFile() || file.length() < 4)
+            return false;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            return Integer.reverseBytes(in.readInt()) == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes syn0 of the given table as int8 codes, optionally followed by the normalised float rows for re-ranking.
+     */
+    public static void write(VocabCache<VocabWord> vocab, INDArray syn0, VectorsConfiguration configuration,
+                             boolean rerankVectors, File file) throws IOException {
+        int numWords = vocab.numWords();
+        int dimension = syn0.columns();
+
+        // first pass: per-dimension maximum magnitude of the normalised rows
+        float[] scales = new float[dimension];
+        for (int from = 0; from < numWords; from += ROWS_PER_BLOCK) {
+            float[] block = normalizedBlock(syn0, from, Math.min(numWords, from + ROWS_PER_BLOCK));
+            for (int i = 0; i < block.length; i++)
+                scales[i % dimension] = Math.max(scales[i % dimension], Math.abs(block[i]));
+        }
+        for (int d = 0; d < dimension; d++)
+            scales[d] = scales[d] == 0 ? 1 : scales[d] / 127f;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 22).order(ByteOrder.LITTLE_ENDIAN);
+            byte[] config = configuration.toJson().getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(numWords).putInt(dimension)
+                    .putInt(rerankVectors ? FLAG_RERANK_VECTORS : 0)
+                    .putLong(vocab.totalWordOccurrences()).putLong(vocab.totalNumberOfDocs())
+                    .putInt(config.length);
+            put(channel, buffer, config);
+            List<VocabWord> words = new ArrayList<>(numWords);
+            for (int i = 0; i < numWords; i++)
+                words.add(vocab.elementAtIndex(i));
+            writeVocabulary(channel, buffer, words);
+
+            pad(channel, buffer);
+            for (float scale : scales) {
+                ensure(channel, buffer, 4);
+                buffer.putFloat(scale);
+            }
+
+            pad(channel, buffer);
+            for (int from = 0; from < numWords; from += ROWS_PER_BLOCK) {
+                float[] block = normalizedBlock(syn0, from, Math.min(numWords, from + ROWS_PER_BLOCK));
+                for (int i = 0; i < block.length; i++) {
+                    ensure(channel, buffer, 1);
+                    buffer.put((byte) Math.max(-127, Math.min(127, Math.round(block[i] / scales[i % dimension]))));
+                }
+            }
+
+            if (rerankVectors) {
+                pad(channel, buffer);
+                for (int from = 0; from < numWords; from += ROWS_PER_BLOCK) {
+                    for (float value : normalizedBlock(syn0, from, Math.min(numWords, from + ROWS_PER_BLOCK))) {
+                        ensure(channel, buffer, 4);
+                        buffer.putFloat(value);
+                    }
+                }
+            }
+            flush(channel, buffer);
+        }
+    }
+
+    public static QuantizedLookupTable read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            // the header and vocabulary are parsed from a window that slides over the file
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 22).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.flip();
+            long[] position = {0};
+
+            require(channel, buffer, position, 40);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+                throw new IOException(file + " is not a quantized word2vec model");
+            int numWords = buffer.getInt();
+            int dimension = buffer.getInt();
+            int flags = buffer.getInt();
+            long totalWordOccurrences = buffer.getLong();
+            long totalDocs = buffer.getLong();
+            int configLength = buffer.getInt();
+            VectorsConfiguration configuration = VectorsConfiguration.fromJson(
+                    new String(bytes(channel, buffer, position, configLength), StandardCharsets.UTF_8).trim());
+
+            AbstractCache<VocabWord> vocab = readVocabulary(channel, buffer, position, numWords);
+            vocab.setTotalWordOccurences(totalWordOccurrences);
+            vocab.setTotalDocCount(totalDocs);
+
+            long offset = align(position[0] - buffer.remaining());
+            ByteBuffer scaleBuffer = ByteBuffer.allocate(dimension * 4).order(ByteOrder.LITTLE_ENDIAN);
+            while (scaleBuffer.hasRemaining()) {
+                if (channel.read(scaleBuffer, offset + scaleBuffer.position()) < 0)
+                    throw new IOException("Unexpected end of " + file);
+            }
+            scaleBuffer.flip();
+            float[] scales = new float[dimension];
+            scaleBuffer.asFloatBuffer().get(scales);
+
+            int rowsPerRegion = Math.max(1, Integer.MAX_VALUE / (dimension * 4));
+            offset = align(offset + dimension * 4L);
+            ByteBuffer[] codes = map(channel, offset, numWords, dimension, 1, rowsPerRegion);
+            ByteBuffer[] vectors = null;
+            if ((flags & FLAG_RERANK_VECTORS) != 0) {
+                offset = align(offset + (long) numWords * dimension);
+                if (offset + (long) numWords * dimension * 4 > size)
+                    throw new IOException("Unexpected end of " + file);
+                vectors = map(channel, offset, numWords, dimension, 4, rowsPerRegion);
+            }
+            return new QuantizedLookupTable(vocab, configuration, dimension, scales, codes, vectors, rowsPerRegion);
+        }
+    }
+
+    @Override
+    public boolean hasRerankVectors() {
+        return vectors != null;
+    }
+
+    // the codes are scored against the query scaled per dimension
+    @Override
+    float[] prepare(float[] unit) {
+        float[] scaled = new float[dimension];
+        for (int d = 0; d < dimension; d++)
+            scaled[d] = unit[d] * scales[d];
+        return scaled;
+    }
+
+    @Override
+    float score(float[] scaled, int id) {
+        ByteBuffer region = codes[id / rowsPerRegion];
+        int base = (id % rowsPerRegion) * dimension;
+        float score = 0;
+        for (int d = 0; d < dimension; d++)
+            score += scaled[d] * region.get(base + d);
+        return score;
+    }
+
+    /**
+     * The normalised row of a word: exact if the file carries float rows, dequantized otherwise.
+     */
+    @Override
+    float[] row(int id) {
+        float[] row = new float[dimension];
+        if (vectors != null) {
+            ByteBuffer region = vectors[id / rowsPerRegion];
+            int base = (id % rowsPerRegion) * dimension * 4;
+            for (int d = 0; d < dimension; d++)
+                row[d] = region.getFloat(base + d * 4);
+        } else {
+            ByteBuffer region = codes[id / rowsPerRegion];
+            int base = (id % rowsPerRegion) * dimension;
+            for (int d = 0; d < dimension; d++)
+                row[d] = region.get(base + d) * scales[d];
+        }
+        return row;
+    }
+
+    @Override
+    protected UnsupportedOperationException unsupported() {
+        return new UnsupportedOperationException("Quantized models are serving-only");
+    }
+
+    private static float[] normalizedBlock(INDArray syn0, int from, int to) {
+        int dimension = syn0.columns();
+        float[] block = syn0.get(NDArrayIndex.interval(from, to), NDArrayIndex.all()).dup('c').data().asFloat();
+        float[] row = new float[dimension];
+        for (int r = 0; r < to - from; r++) {
+            System.arraycopy(block, r * dimension, row, 0, dimension);
+            BlockedSearcher.normalize(row);
+            System.arraycopy(row, 0, block, r * dimension, dimension);
+        }
+        return block;
+    }
+}
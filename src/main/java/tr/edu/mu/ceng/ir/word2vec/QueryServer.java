@@ -0,0 +1,371 @@
+package tr.edu.mu.ceng.ir.word2vec;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.deeplearning4j.models.word2vec.Word2Vec;
+import org.deeplearning4j.models.word2vec.wordstore.VocabCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-running HTTP query endpoint over one loaded model. Nearest-word and analogy requests arriving together are
+ * grouped into one batched search by a {@link NearestSearcher}; recent answers are kept in an LRU cache.
+ * <pre>
+ * GET /nearest?word=king&amp;n=10
+ * GET /analogy?positive=king,woman&amp;negative=man&amp;n=10
+ * GET /frequency?word=king
+ * GET /vector?word=king
+ * </pre>
+ * Responses are JSON; unknown words yield 404, malformed requests 400. The server listens on the loopback
+ * interface unless a host is given.
+ */
+public class QueryServer {
+
+    private static Logger logger = LoggerFactory.getLogger(QueryServer.class);
+
+    private final Word2Vec vec;
+    private final VocabCache<VocabWord> vocab;
+    private final NearestSearcher searcher;
+    private final String host;
+    private final int port;
+    private final int threads;
+    private final int batchSize;
+    private final long batchWaitMillis;
+    private final Map<String, String> cache;
+    private final BlockingQueue<Query> pending;
+
+    private HttpServer server;
+    private Thread dispatcher;
+
+    /**
+     * @param host interface to bind, e.g. 0.0.0.0 for all of them; null or empty binds the loopback interface only
+     */
+    public QueryServer(Word2Vec vec, String host, int port, int threads, int batchSize, long batchWaitMillis,
+                       int cacheSize) {
+        this.vec = vec;
+        this.vocab = vec.getVocab();
+        this.searcher = NearestSearcher.of(vec);
+        this.host = host == null ? "" : host.trim();
+        this.port = port;
+        this.threads = Math.max(1, threads);
+        this.batchSize = Math.max(1, batchSize);
+        this.batchWaitMillis = batchWaitMillis;
+        this.pending = new ArrayBlockingQueue<>(Math.max(1024, this.batchSize * this.threads * 4));
+        this.cache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * One pending nearest-word query, completed by the dispatcher thread.
+     */
+    private static class Query {
+        final float[] vector;
+        final int k;
+        final int[] excluded;
+        final CompletableFuture<String> result = new CompletableFuture<>();
+
+        Query(float[] vector, int k, int[] excluded) {
+            this.vector = vector;
+            this.k = k;
+            this.excluded = excluded;
+        }
+    }
+
+    public void start() throws IOException {
+        InetAddress address = host.isEmpty() ? InetAddress.getLoopbackAddress() : InetAddress.getByName(host);
+        server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        server.createContext("/nearest", exchange -> handle(exchange, this::nearest));
+        server.createContext("/analogy", exchange -> handle(exchange, this::analogy));
+        server.createContext("/frequency", exchange -> handle(exchange, this::frequency));
+        server.createContext("/vector", exchange -> handle(exchange, this::vector));
+        server.setExecutor(Executors.newFixedThreadPool(threads));
+
+        dispatcher = new Thread(this::dispatch, "query-batcher");
+        dispatcher.start();
+        server.start();
+        logger.debug("Query server listening on " + address.getHostAddress() + ":" + port + " (threads=" + threads
+                + ", batchSize=" + batchSize + ", vocabulary=" + vocab.numWords() + ")");
+    }
+
+    public void stop() {
+        if (server != null)
+            server.stop(0);
+        if (dispatcher != null)
+            dispatcher.interrupt();
+    }
+
+    private interface Handler {
+        String answer(Map<String, String> parameters) throws IOException;
+    }
+
+    private static class HttpError extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        HttpError(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private void handle(HttpExchange exchange, Handler handler) throws IOException {
+        int status = 200;
+        String body;
+        try {
+            body = handler.answer(parameters(exchange.getRequestURI().getRawQuery()));
+        } catch (HttpError e) {
+            status = e.status;
+            body = "{\"error\":" + quote(e.getMessage()) + "}";
+        } catch (Exception e) {
+            logger.error("Query " + exchange.getRequestURI() + " failed", e);
+            status = 500;
+            body = "{\"error\":" + quote(String.valueOf(e.getMessage())) + "}";
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private String nearest(Map<String, String> parameters) throws IOException {
+        String word = required(parameters, "word");
+        int n = count(parameters);
+        String key = "nearest|" + word + "|" + n;
+        String cached = cached(key);
+        if (cached != null)
+            return cached;
+
+        int id = id(word);
+        int[] positive = {id};
+        String answer = "{\"word\":" + quote(word) + ",\"nearest\":" + submit(searcher.query(positive, null), n, positive) + "}";
+        return cache(key, answer);
+    }
+
+    private String analogy(Map<String, String> parameters) throws IOException {
+        String[] positiveWords = list(required(parameters, "positive"));
+        String[] negativeWords = list(parameters.getOrDefault("negative", ""));
+        int n = count(parameters);
+        String key = "analogy|" + String.join(",", positiveWords) + "|" + String.join(",", negativeWords) + "|" + n;
+        String cached = cached(key);
+        if (cached != null)
+            return cached;
+
+        int[] positive = ids(positiveWords);
+        int[] negative = ids(negativeWords);
+        int[] excluded = new int[positive.length + negative.length];
+        System.arraycopy(positive, 0, excluded, 0, positive.length);
+        System.arraycopy(negative, 0, excluded, positive.length, negative.length);
+        String answer = "{\"nearest\":" + submit(searcher.query(positive, negative), n, excluded) + "}";
+        return cache(key, answer);
+    }
+
+    private String frequency(Map<String, String> parameters) throws IOException {
+        String word = required(parameters, "word");
+        id(word);
+        return "{\"word\":" + quote(word) + ",\"frequency\":" + vocab.wordFrequency(word)
+                + ",\"documents\":" + vocab.docAppearedIn(word) + "}";
+    }
+
+    private String vector(Map<String, String> parameters) throws IOException {
+        String word = required(parameters, "word");
+        id(word);
+        double[] vector = vec.getWordVector(word);
+        StringBuilder builder = new StringBuilder("{\"word\":").append(quote(word)).append(",\"vector\":[");
+        for (int i = 0; i < vector.length; i++) {
+            if (i > 0)
+                builder.append(',');
+            builder.append((float) vector[i]);
+        }
+        return builder.append("]}").toString();
+    }
+
+    private String submit(float[] vector, int k, int[] excluded) throws IOException {
+        Query query = new Query(vector, k, excluded);
+        try {
+            pending.put(query);
+            return query.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for query batch", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Collects queries for up to batchWaitMillis (or until batchSize are waiting) and answers them with one search.
+     */
+    private void dispatch() {
+        List<Query> batch = new ArrayList<>(batchSize);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(pending.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchWaitMillis);
+                while (batch.size() < batchSize) {
+                    Query next = pending.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            try {
+                float[][] vectors = new float[batch.size()][];
+                int[][] excluded = new int[batch.size()][];
+                int k = 0;
+                for (int i = 0; i < batch.size(); i++) {
+                    vectors[i] = batch.get(i).vector;
+                    excluded[i] = batch.get(i).excluded;
+                    k = Math.max(k, batch.get(i).k);
+                }
+                float[][] scores = new float[batch.size()][];
+                int[][] ids = searcher.search(vectors, k, excluded, scores);
+                for (int i = 0; i < batch.size(); i++) {
+                    Query query = batch.get(i);
+                    StringBuilder builder = new StringBuilder("[");
+                    for (int j = 0; j < Math.min(query.k, ids[i].length); j++) {
+                        if (j > 0)
+                            builder.append(',');
+                        builder.append("{\"word\":").append(quote(vocab.wordAtIndex(ids[i][j])))
+                                .append(",\"similarity\":").append(scores[i][j]).append('}');
+                    }
+                    query.result.complete(builder.append(']').toString());
+                }
+            } catch (Throwable e) {
+                // an Error must not end the dispatcher either, or every later query would wait forever
+                logger.error("Query batch of " + batch.size() + " failed", e);
+                for (Query query : batch)
+                    query.result.completeExceptionally(e);
+            }
+            batch.clear();
+        }
+    }
+
+    private String cached(String key) {
+        synchronized (cache) {
+            return cache.get(key);
+        }
+    }
+
+    private String cache(String key, String answer) {
+        synchronized (cache) {
+            cache.put(key, answer);
+        }
+        return answer;
+    }
+
+    private int id(String word) throws HttpError {
+        int id = vocab.indexOf(word);
+        if (id < 0 || !vocab.containsWord(word))
+            throw new HttpError(404, "Unknown word: " + word);
+        return id;
+    }
+
+    private int[] ids(String[] words) throws HttpError {
+        int[] ids = new int[words.length];
+        for (int i = 0; i < words.length; i++)
+            ids[i] = id(words[i]);
+        return ids;
+    }
+
+    private static String[] list(String value) {
+        List<String> words = new ArrayList<>();
+        for (String word : value.split("[,\\s]+")) {
+            if (!word.isEmpty())
+                words.add(word);
+        }
+        return words.toArray(new String[0]);
+    }
+
+    private static String required(Map<String, String> parameters, String name) throws HttpError {
+        String value = parameters.get(name);
+        if (value == null || value.trim().isEmpty())
+            throw new HttpError(400, "Missing parameter: " + name);
+        return value.trim();
+    }
+
+    private static int count(Map<String, String> parameters) throws HttpError {
+        try {
+            int n = Integer.parseInt(parameters.getOrDefault("n", "10"));
+            if (n <= 0)
+                throw new HttpError(400, "n must be positive");
+            return n;
+        } catch (NumberFormatException e) {
+            throw new HttpError(400, "n must be a number");
+        }
+    }
+
+    private static Map<String, String> parameters(String query) throws UnsupportedEncodingException {
+        Map<String, String> parameters = new LinkedHashMap<>();
+        if (query == null)
+            return parameters;
+        for (String pair : query.split("&")) {
+            int split = pair.indexOf('=');
+            if (split < 0)
+                parameters.put(URLDecoder.decode(pair, "UTF-8"), "");
+            else
+                parameters.put(URLDecoder.decode(pair.substring(0, split), "UTF-8"),
+                        URLDecoder.decode(pair.substring(split + 1), "UTF-8"));
+        }
+        return parameters;
+    }
+
+    static String quote(String value) {
+        StringBuilder builder = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                        builder.append(String.format("\\u%04x", (int) c));
+                    else
+                        builder.append(c);
+            }
+        }
+        return builder.append('"').toString();
+    }
+}
@@ -0,0 +1,150 @@
+package tr.edu.mu.ceng.ir.word2vec;
+
+import org.deeplearning4j.models.sequencevectors.interfaces.SequenceIterator;
+import org.deeplearning4j.models.sequencevectors.sequence.Sequence;
+import org.deeplearning4j.models.word2vec.VocabWord;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One sequence source read by several models trained at the same time. Every consumer iterator receives each
+ * sequence of a pass through its own bounded queue, and a pass over the source starts once every open consumer has
+ * asked for one with {@code reset()}, as {@code fit()} does at the start of each epoch. Models fitted together thus
+ * read and tokenize the corpus once per epoch, the slowest of them setting the pace.
+ * <p>
+ * The sequences are shared, so the consumers must only read them; {@code SequenceVectors} copies the elements it
+ * trains on.
+ */
+class SequenceBroadcast {
+
+    private static final Sequence<VocabWord> END = new Sequence<>();
+    private static final long POLL_MILLIS = 100;
+
+    private final SequenceIterator<VocabWord> source;
+    private final int capacity;
+    private final List<Consumer> consumers = new ArrayList<>();
+    private volatile Throwable failure;
+    private Thread reader;
+
+    SequenceBroadcast(SequenceIterator<VocabWord> source, int capacity) {
+        this.source = source;
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * A new consumer, to be created before {@link #start()}.
+     */
+    synchronized SequenceIterator<VocabWord> consumer() {
+        Consumer consumer = new Consumer();
+        consumers.add(consumer);
+        return consumer;
+    }
+
+    /**
+     * Detaches a consumer whose model stopped training, so that the others are not held back by it.
+     */
+    void close(SequenceIterator<VocabWord> consumer) {
+        synchronized (this) {
+            ((Consumer) consumer).open = false;
+            notifyAll();
+        }
+        ((Consumer) consumer).queue.clear();
+    }
+
+    void start() {
+        reader = new Thread(this::read, "sequence-broadcast");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void read() {
+        try {
+            List<Consumer> pass;
+            while (!(pass = awaitPass()).isEmpty()) {
+                source.reset();
+                while (source.hasMoreSequences()) {
+                    Sequence<VocabWord> sequence = source.nextSequence();
+                    if (sequence != null)
+                        deliver(pass, sequence);
+                }
+                deliver(pass, END);
+            }
+        } catch (Throwable e) {
+            failure = e;
+        }
+    }
+
+    // the consumers of the next pass, once every open one has asked for it; none when all are closed
+    private synchronized List<Consumer> awaitPass() throws InterruptedException {
+        while (true) {
+            List<Consumer> pass = new ArrayList<>();
+            boolean ready = true;
+            for (Consumer consumer : consumers) {
+                if (consumer.open) {
+                    pass.add(consumer);
+                    ready &= consumer.requested;
+                }
+            }
+            if (pass.isEmpty() || ready) {
+                for (Consumer consumer : pass)
+                    consumer.requested = false;
+                return pass;
+            }
+            wait();
+        }
+    }
+
+    private static void deliver(List<Consumer> pass, Sequence<VocabWord> sequence) throws InterruptedException {
+        for (Consumer consumer : pass) {
+            while (consumer.open && !consumer.queue.offer(sequence, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                // a full queue of a consumer that closes meanwhile is given up
+            }
+        }
+    }
+
+    private class Consumer implements SequenceIterator<VocabWord> {
+
+        private final BlockingQueue<Sequence<VocabWord>> queue = new ArrayBlockingQueue<>(capacity);
+        private volatile boolean open = true;
+        private boolean requested;
+        private volatile Sequence<VocabWord> next;
+
+        @Override
+        public boolean hasMoreSequences() {
+            try {
+                while (next == null) {
+                    next = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (next == null && failure != null)
+                        throw new IllegalStateException("Reading the shared corpus failed", failure);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the shared corpus", e);
+            }
+            return next != END;
+        }
+
+        @Override
+        public Sequence<VocabWord> nextSequence() {
+            if (!hasMoreSequences())
+                return null;
+            Sequence<VocabWord> sequence = next;
+            next = null;
+            return sequence;
+        }
+
+        // asks for the next pass, the current one must have been read to its end
+        @Override
+        public void reset() {
+            next = null;
+            synchronized (SequenceBroadcast.this) {
+                requested = true;
+                SequenceBroadcast.this.notifyAll();
+            }
+        }
+    }
+}
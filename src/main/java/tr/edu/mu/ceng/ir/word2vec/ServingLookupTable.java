@@ -0,0 +1,371 @@
+package tr.edu.mu.ceng.ir.word2vec;
+
+import org.deeplearning4j.models.embeddings.WeightLookupTable;
+import org.deeplearning4j.models.embeddings.loader.VectorsConfiguration;
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.deeplearning4j.models.word2vec.wordstore.VocabCache;
+import org.deeplearning4j.models.word2vec.wordstore.inmemory.AbstractCache;
+import org.deeplearning4j.plot.BarnesHutTsne;
+import org.deeplearning4j.ui.UiConnectionInfo;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Base of the lookup tables that serve queries straight from a mapped file: vectors are materialised row by row
+ * from {@link #row(int)}, nearest-word search is a parallel scan of {@link #score} over all rows, and everything that
+ * would train or modify the weights is rejected.
+ */
+public abstract class ServingLookupTable implements WeightLookupTable<VocabWord> {
+
+    private static final long serialVersionUID = 1L;
+
+    static final int ALIGNMENT = 64;
+    private static final int PARALLEL_THRESHOLD = 1 << 22;
+
+    protected final AbstractCache<VocabWord> vocab;
+    protected final VectorsConfiguration configuration;
+    protected final int dimension;
+    private Long tableId;
+
+    protected ServingLookupTable(AbstractCache<VocabWord> vocab, VectorsConfiguration configuration, int dimension) {
+        this.vocab = vocab;
+        this.configuration = configuration;
+        this.dimension = dimension;
+    }
+
+    /**
+     * The vector of the word with the given index, as a fresh array.
+     */
+    abstract float[] row(int id);
+
+    /**
+     * The similarity of the row of word {@code id} to a query made by {@link #prepare}.
+     */
+    abstract float score(float[] prepared, int id);
+
+    /**
+     * The form of the L2-normalised query that {@link #score} takes.
+     */
+    float[] prepare(float[] unit) {
+        return unit;
+    }
+
+    /**
+     * Whether the best candidates of {@link #score} can be re-ranked by their exact cosine on {@link #row}.
+     */
+    public boolean hasRerankVectors() {
+        return false;
+    }
+
+    /**
+     * Returns the ids of the {@code k} rows most similar to {@code query}, best first, skipping {@code excluded}.
+     * When {@code rerank} exceeds {@code k} and the table has re-ranking vectors, the best {@code rerank} candidates
+     * are re-scored by exact cosine.
+     */
+    public int[] search(float[] query, int k, int rerank, int[] excluded, float[] scoresOut) {
+        return search(query, vocab.numWords(), k, rerank, excluded, scoresOut);
+    }
+
+    /**
+     * As {@link #search(float[], int, int, int[], float[])}, over the first {@code words} rows only.
+     */
+    int[] search(float[] query, int words, int k, int rerank, int[] excluded, float[] scoresOut) {
+        float[] unit = query.clone();
+        BlockedSearcher.normalize(unit);
+        float[] prepared = prepare(unit);
+
+        boolean exact = hasRerankVectors() && rerank > k;
+        int candidates = exact ? rerank : k;
+        int parts = (long) words * dimension < PARALLEL_THRESHOLD ? 1 : Runtime.getRuntime().availableProcessors();
+        List<LongHeap> partial = IntStream.range(0, parts).parallel()
+                .mapToObj(p -> scan(prepared, words * (long) p / parts, words * (long) (p + 1) / parts, candidates,
+                        excluded))
+                .collect(Collectors.toList());
+        LongHeap heap = partial.get(0);
+        for (int p = 1; p < partial.size(); p++)
+            BlockedSearcher.merge(heap, partial.get(p), candidates);
+
+        if (exact) {
+            LongHeap reranked = new LongHeap(k + 1);
+            while (heap.size() > 0) {
+                int id = (int) heap.pop();
+                BlockedSearcher.offer(reranked, cosine(unit, id), id, k, null);
+            }
+            heap = reranked;
+        } else {
+            while (heap.size() > k)
+                heap.pop();
+        }
+
+        int[] ids = new int[heap.size()];
+        for (int i = ids.length - 1; i >= 0; i--) {
+            long key = heap.pop();
+            ids[i] = (int) key;
+            if (scoresOut != null && i < scoresOut.length)
+                scoresOut[i] = BlockedSearcher.score(key);
+        }
+        return ids;
+    }
+
+    private LongHeap scan(float[] prepared, long from, long to, int k, int[] excluded) {
+        LongHeap heap = new LongHeap(k + 1);
+        for (int id = (int) from; id < to; id++)
+            BlockedSearcher.offer(heap, score(prepared, id), id, k, excluded);
+        return heap;
+    }
+
+    private float cosine(float[] unit, int id) {
+        float[] row = row(id);
+        BlockedSearcher.normalize(row);
+        float dot = 0;
+        for (int d = 0; d < dimension; d++)
+            dot += unit[d] * row[d];
+        return dot;
+    }
+
+    public VectorsConfiguration getConfiguration() {
+        return configuration;
+    }
+
+    @Override
+    public INDArray vector(String word) {
+        int id = vocab.indexOf(word);
+        if (id < 0 || !vocab.containsWord(word))
+            return null;
+        return Nd4j.create(row(id));
+    }
+
+    @Override
+    public Iterator<INDArray> vectors() {
+        return new Iterator<INDArray>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < vocab.numWords();
+            }
+
+            @Override
+            public INDArray next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return Nd4j.create(row(next++));
+            }
+        };
+    }
+
+    @Override
+    public int layerSize() {
+        return dimension;
+    }
+
+    @Override
+    public VocabCache<VocabWord> getVocabCache() {
+        return vocab;
+    }
+
+    @Override
+    public Long getTableId() {
+        return tableId;
+    }
+
+    @Override
+    public void setTableId(Long tableId) {
+        this.tableId = tableId;
+    }
+
+    @Override
+    public INDArray getWeights() {
+        throw unsupported();
+    }
+
+    @Override
+    public double getGradient(int column, double gradient) {
+        throw unsupported();
+    }
+
+    @Override
+    public void resetWeights(boolean reset) {
+        throw unsupported();
+    }
+
+    @Override
+    public void resetWeights() {
+        throw unsupported();
+    }
+
+    @Override
+    public void plotVocab(BarnesHutTsne tsne, int numWords, UiConnectionInfo connectionInfo) {
+        throw unsupported();
+    }
+
+    @Override
+    public void plotVocab(BarnesHutTsne tsne, int numWords, File file) {
+        throw unsupported();
+    }
+
+    @Override
+    public void plotVocab(int numWords, UiConnectionInfo connectionInfo) {
+        throw unsupported();
+    }
+
+    @Override
+    public void plotVocab(int numWords, File file) {
+        throw unsupported();
+    }
+
+    @Override
+    public void putCode(int codeIndex, INDArray code) {
+        throw unsupported();
+    }
+
+    @Override
+    public INDArray loadCodes(int[] codes) {
+        throw unsupported();
+    }
+
+    @Override
+    @Deprecated
+    public void iterate(VocabWord w1, VocabWord w2) {
+        throw unsupported();
+    }
+
+    @Override
+    @Deprecated
+    public void iterateSample(VocabWord w1, VocabWord w2, AtomicLong nextRandom, double alpha) {
+        throw unsupported();
+    }
+
+    @Override
+    public void putVector(String word, INDArray vector) {
+        throw unsupported();
+    }
+
+    @Override
+    public void setLearningRate(double lr) {
+        throw unsupported();
+    }
+
+    // read-only mappings of at most rowsPerRegion rows each, so tables over 2GB can be mapped too
+    static ByteBuffer[] map(FileChannel channel, long offset, int rows, int dimension, int width,
+                            int rowsPerRegion) throws IOException {
+        int regions = Math.max(1, (rows + rowsPerRegion - 1) / rowsPerRegion);
+        ByteBuffer[] mapped = new ByteBuffer[regions];
+        for (int r = 0; r < regions; r++) {
+            int regionRows = Math.min(rowsPerRegion, rows - r * rowsPerRegion);
+            long start = offset + (long) r * rowsPerRegion * dimension * width;
+            MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                    (long) regionRows * dimension * width);
+            mapped[r] = region.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return mapped;
+    }
+
+    // label, frequency and document count of every word, in index order
+    static void writeVocabulary(FileChannel channel, ByteBuffer buffer, List<VocabWord> words) throws IOException {
+        for (VocabWord word : words) {
+            byte[] label = word.getLabel().getBytes(StandardCharsets.UTF_8);
+            ensure(channel, buffer, 4);
+            buffer.putInt(label.length);
+            put(channel, buffer, label);
+            ensure(channel, buffer, 16);
+            buffer.putLong((long) word.getElementFrequency()).putLong(word.getSequencesCount());
+        }
+    }
+
+    static AbstractCache<VocabWord> readVocabulary(FileChannel channel, ByteBuffer buffer, long[] position,
+                                                   int numWords) throws IOException {
+        AbstractCache<VocabWord> vocab = new AbstractCache.Builder<VocabWord>().build();
+        for (int i = 0; i < numWords; i++) {
+            require(channel, buffer, position, 4);
+            String label = new String(bytes(channel, buffer, position, buffer.getInt()), StandardCharsets.UTF_8);
+            require(channel, buffer, position, 16);
+            VocabWord word = new VocabWord(buffer.getLong(), label);
+            word.setSequencesCount(buffer.getLong());
+            word.setIndex(i);
+            vocab.addToken(word);
+            vocab.addWordToIndex(i, label);
+        }
+        return vocab;
+    }
+
+    // buffered writing and sliding-window reading of the serving file formats
+    static long align(long position) {
+        long remainder = position % ALIGNMENT;
+        return remainder == 0 ? position : position + ALIGNMENT - remainder;
+    }
+
+    static void pad(FileChannel channel, ByteBuffer buffer) throws IOException {
+        long position = channel.position() + buffer.position();
+        long aligned = align(position);
+        for (long i = position; i < aligned; i++) {
+            ensure(channel, buffer, 1);
+            buffer.put((byte) 0);
+        }
+    }
+
+    static void put(FileChannel channel, ByteBuffer buffer, byte[] bytes) throws IOException {
+        for (int offset = 0; offset < bytes.length; ) {
+            ensure(channel, buffer, 1);
+            int count = Math.min(bytes.length - offset, buffer.remaining());
+            buffer.put(bytes, offset, count);
+            offset += count;
+        }
+    }
+
+    static void ensure(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() < bytes)
+            flush(channel, buffer);
+    }
+
+    static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    static void require(FileChannel channel, ByteBuffer buffer, long[] position, int bytes)
+            throws IOException {
+        if (buffer.remaining() >= bytes)
+            return;
+        buffer.compact();
+        while (buffer.position() < bytes) {
+            int read = channel.read(buffer, position[0]);
+            if (read < 0)
+                throw new IOException("Unexpected end of model file");
+            position[0] += read;
+        }
+        buffer.flip();
+    }
+
+    static byte[] bytes(FileChannel channel, ByteBuffer buffer, long[] position, int length)
+            throws IOException {
+        byte[] bytes = new byte[length];
+        for (int offset = 0; offset < length; ) {
+            require(channel, buffer, position, 1);
+            int count = Math.min(length - offset, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            offset += count;
+        }
+        return bytes;
+    }
+
+    protected UnsupportedOperationException unsupported() {
+        return new UnsupportedOperationException("Serving-only models can not be trained or modified");
+    }
+}
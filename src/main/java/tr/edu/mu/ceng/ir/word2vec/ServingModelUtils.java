@@ -0,0 +1,81 @@
+package tr.edu.mu.ceng.ir.word2vec;
+
+import org.deeplearning4j.models.embeddings.WeightLookupTable;
+import org.deeplearning4j.models.embeddings.reader.impl.BasicModelUtils;
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Nearest-word queries answered on the mapped rows of a {@link ServingLookupTable}. Like BasicModelUtils the query
+ * is built from the positive vectors and the negated negative ones and the query words are left out, but words are
+ * ranked by their similarity to it, as in the other indexes of the application. Quantized tables carrying float rows
+ * re-rank their best {@code rerankCandidates} exactly.
+ */
+public class ServingModelUtils extends BasicModelUtils<VocabWord> {
+
+    private ServingLookupTable table;
+    private int rerankCandidates = 50;
+
+    @Override
+    public void init(WeightLookupTable<VocabWord> lookupTable) {
+        super.init(lookupTable);
+        this.table = (ServingLookupTable) lookupTable;
+    }
+
+    @Override
+    public Collection<String> wordsNearest(String label, int n) {
+        return wordsNearest(Collections.singletonList(label), Collections.<String>emptyList(), n);
+    }
+
+    @Override
+    public Collection<String> wordsNearest(Collection<String> positive, Collection<String> negative, int top) {
+        float[] query = new float[table.layerSize()];
+        List<Integer> excluded = new ArrayList<>();
+        accumulate(query, positive, 1, excluded);
+        accumulate(query, negative, -1, excluded);
+        if (excluded.isEmpty())
+            return new ArrayList<>();
+
+        int[] skip = new int[excluded.size()];
+        for (int i = 0; i < skip.length; i++)
+            skip[i] = excluded.get(i);
+        return labels(table.search(query, top, rerankCandidates, skip, null));
+    }
+
+    @Override
+    public Collection<String> wordsNearest(INDArray words, int top) {
+        return labels(table.search(words.dup().data().asFloat(), top, rerankCandidates, null, null));
+    }
+
+    private void accumulate(float[] query, Collection<String> labels, int sign, List<Integer> ids) {
+        for (String label : labels) {
+            int id = vocabCache.indexOf(label);
+            if (id < 0 || !vocabCache.containsWord(label))
+                continue;
+            float[] row = table.row(id);
+            for (int i = 0; i < query.length; i++)
+                query[i] += sign * row[i];
+            ids.add(id);
+        }
+    }
+
+    private List<String> labels(int[] ids) {
+        List<String> labels = new ArrayList<>(ids.length);
+        for (int id : ids)
+            labels.add(vocabCache.wordAtIndex(id));
+        return labels;
+    }
+
+    public int getRerankCandidates() {
+        return rerankCandidates;
+    }
+
+    public void setRerankCandidates(int rerankCandidates) {
+        this.rerankCandidates = rerankCandidates;
+    }
+}
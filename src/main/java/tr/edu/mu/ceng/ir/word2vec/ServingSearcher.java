@@ -0,0 +1,72 @@
+package tr.edu.mu.ceng.ir.word2vec;
+
+import java.util.Arrays;
+
+/**
+ * {@link NearestSearcher} over a {@link ServingLookupTable}: every query is one {@link ServingLookupTable#search} scan
+ * of the mapped or quantized rows, re-ranking the best {@code rerankCandidates} exactly when the table can.
+ */
+class ServingSearcher implements NearestSearcher {
+
+    private final ServingLookupTable table;
+    private final int rows;
+    private final int rerankCandidates;
+
+    ServingSearcher(ServingLookupTable table, int rerankCandidates) {
+        this(table, table.getVocabCache().numWords(), rerankCandidates);
+    }
+
+    private ServingSearcher(ServingLookupTable table, int rows, int rerankCandidates) {
+        this.table = table;
+        this.rows = rows;
+        this.rerankCandidates = rerankCandidates;
+    }
+
+    @Override
+    public int rows() {
+        return rows;
+    }
+
+    @Override
+    public int columns() {
+        return table.layerSize();
+    }
+
+    @Override
+    public float[] row(int id) {
+        float[] row = table.row(id);
+        BlockedSearcher.normalize(row);
+        return row;
+    }
+
+    @Override
+    public NearestSearcher limit(int rows) {
+        return new ServingSearcher(table, Math.min(rows, this.rows), rerankCandidates);
+    }
+
+    @Override
+    public int[][] search(float[][] queries, int k, int[][] excluded, float[][] scores) {
+        int[][] result = new int[queries.length][];
+        for (int q = 0; q < queries.length; q++) {
+            float[] found = new float[k];
+            result[q] = table.search(queries[q], rows, k, rerankCandidates, excluded == null ? null : excluded[q], found);
+            if (scores != null)
+                scores[q] = Arrays.copyOf(found, result[q].length);
+        }
+        return result;
+    }
+
+    @Override
+    public double[] cosines(int[] left, int[] right) {
+        double[] cosines = new double[left.length];
+        for (int i = 0; i < cosines.length; i++) {
+            float[] a = row(left[i]);
+            float[] b = row(right[i]);
+            double dot = 0;
+            for (int d = 0; d < a.length; d++)
+                dot += a[d] * b[d];
+            cosines[i] = dot;
+        }
+        return cosines;
+    }
+}
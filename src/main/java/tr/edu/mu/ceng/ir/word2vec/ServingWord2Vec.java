@@ -0,0 +1,66 @@
+package tr.edu.mu.ceng.ir.word2vec;
+
+import org.deeplearning4j.models.word2vec.Word2Vec;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Query-only {@link Word2Vec} over a {@link ServingLookupTable}: a binary model opened lazily by
+ * {@link BinaryModelSerializer#open}, a compact export opened by {@link CompactModelSerializer#open} or a quantized
+ * export opened by {@link #open}. Only the vocabulary is read up front; rows are paged in as queries use them and
+ * word vectors are materialised row by row instead of through the full weight matrix. Training is rejected, retrain
+ * reads a binary model in full.
+ */
+public class ServingWord2Vec extends Word2Vec {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ServingLookupTable table;
+
+    public ServingWord2Vec(ServingLookupTable table) {
+        this(table, 50);
+    }
+
+    public ServingWord2Vec(ServingLookupTable table, int rerankCandidates) {
+        this.table = table;
+        this.configuration = table.getConfiguration();
+        setVocab(table.getVocabCache());
+        setLookupTable(table);
+
+        ServingModelUtils modelUtils = new ServingModelUtils();
+        modelUtils.setRerankCandidates(rerankCandidates);
+        modelUtils.init(table);
+        setModelUtils(modelUtils);
+    }
+
+    /**
+     * Opens a quantized export.
+     */
+    public static ServingWord2Vec open(String file, int rerankCandidates) throws IOException {
+        return new ServingWord2Vec(QuantizedLookupTable.read(new File(file)), rerankCandidates);
+    }
+
+    @Override
+    public INDArray getWordVectors(Collection<String> labels) {
+        List<INDArray> rows = new ArrayList<>(labels.size());
+        for (String label : labels) {
+            INDArray row = lookupTable.vector(label);
+            if (row != null)
+                rows.add(row);
+        }
+        if (rows.isEmpty())
+            return Nd4j.empty();
+        return Nd4j.vstack(rows);
+    }
+
+    @Override
+    public void fit() {
+        throw table.unsupported();
+    }
+}
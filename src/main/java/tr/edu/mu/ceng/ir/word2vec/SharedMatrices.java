@@ -0,0 +1,154 @@
+package tr.edu.mu.ceng.ir.word2vec;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.LongStream;
+
+/**
+ * syn0, syn1 and syn1Neg as float32 matrices laid out back to back in one file that is mapped read-write, so that
+ * the training processes of one machine exchange their weights through the page cache. The file is mapped in
+ * regions of {@value #REGION_FLOATS} floats, so the matrices may exceed 2GB.
+ */
+class SharedMatrices {
+
+    private static final int REGION_FLOATS = 1 << 28;
+    private static final int ROWS_PER_BLOCK = 4096;
+    private static final int AVERAGE_CHUNK = 1 << 20;
+
+    private final long[] rows;
+    private final int columns;
+    private final long floats;
+    private final ByteBuffer[] regions;
+
+    private SharedMatrices(long[] rows, int columns, ByteBuffer[] regions) {
+        this.rows = rows;
+        this.columns = columns;
+        long total = 0;
+        for (long count : rows)
+            total += count * columns;
+        this.floats = total;
+        this.regions = regions;
+    }
+
+    /**
+     * Maps {@code file}, creating or resizing it, for matrices of the given row counts (0 for an absent matrix).
+     */
+    static SharedMatrices open(File file, long[] rows, int columns) throws IOException {
+        long floats = 0;
+        for (long count : rows)
+            floats += count * columns;
+        int count = (int) Math.max(1, (floats + REGION_FLOATS - 1) / REGION_FLOATS);
+        ByteBuffer[] regions = new ByteBuffer[count];
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            for (int r = 0; r < count; r++) {
+                long length = Math.min(REGION_FLOATS, floats - (long) r * REGION_FLOATS) * 4;
+                regions[r] = channel.map(FileChannel.MapMode.READ_WRITE, (long) r * REGION_FLOATS * 4, length)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+        return new SharedMatrices(rows, columns, regions);
+    }
+
+    static long[] rows(INDArray[] matrices) {
+        long[] rows = new long[matrices.length];
+        for (int m = 0; m < matrices.length; m++)
+            rows[m] = matrices[m] == null ? 0 : matrices[m].rows();
+        return rows;
+    }
+
+    /**
+     * Copies the matrices into the file, block by block.
+     */
+    void write(INDArray[] matrices) {
+        long base = 0;
+        for (int m = 0; m < rows.length; m++) {
+            for (long from = 0; from < rows[m]; from += ROWS_PER_BLOCK) {
+                long to = Math.min(rows[m], from + ROWS_PER_BLOCK);
+                float[] values = matrices[m].get(NDArrayIndex.interval(from, to), NDArrayIndex.all())
+                        .dup('c').data().asFloat();
+                put(base + from * columns, values, values.length);
+            }
+            base += rows[m] * columns;
+        }
+    }
+
+    /**
+     * Assigns the content of the file to the matrices, block by block.
+     */
+    void read(INDArray[] matrices) {
+        long base = 0;
+        float[] values = new float[ROWS_PER_BLOCK * columns];
+        for (int m = 0; m < rows.length; m++) {
+            for (long from = 0; from < rows[m]; from += ROWS_PER_BLOCK) {
+                int count = (int) Math.min(ROWS_PER_BLOCK, rows[m] - from);
+                get(base + from * columns, values, count * columns);
+                INDArray block = Nd4j.create(count == ROWS_PER_BLOCK ? values
+                        : Arrays.copyOf(values, count * columns), new int[]{count, columns});
+                matrices[m].get(NDArrayIndex.interval(from, from + count), NDArrayIndex.all()).assign(block);
+            }
+            base += rows[m] * columns;
+        }
+    }
+
+    /**
+     * Writes the element-wise mean of {@code sources} into this file, in parallel chunks.
+     */
+    void average(List<SharedMatrices> sources) {
+        float scale = 1f / sources.size();
+        long chunks = (floats + AVERAGE_CHUNK - 1) / AVERAGE_CHUNK;
+        LongStream.range(0, chunks).parallel().forEach(chunk -> {
+            long from = chunk * AVERAGE_CHUNK;
+            int count = (int) Math.min(AVERAGE_CHUNK, floats - from);
+            float[] sum = new float[count];
+            float[] values = new float[count];
+            for (SharedMatrices source : sources) {
+                source.get(from, values, count);
+                for (int i = 0; i < count; i++)
+                    sum[i] += values[i];
+            }
+            for (int i = 0; i < count; i++)
+                sum[i] *= scale;
+            put(from, sum, count);
+        });
+    }
+
+    private void put(long index, float[] values, int count) {
+        int offset = 0;
+        while (offset < count) {
+            FloatBuffer region = view(index + offset);
+            int length = Math.min(count - offset, region.remaining());
+            region.put(values, offset, length);
+            offset += length;
+        }
+    }
+
+    private void get(long index, float[] values, int count) {
+        int offset = 0;
+        while (offset < count) {
+            FloatBuffer region = view(index + offset);
+            int length = Math.min(count - offset, region.remaining());
+            region.get(values, offset, length);
+            offset += length;
+        }
+    }
+
+    // a private view positioned at the float, so concurrent callers do not share buffer positions
+    private FloatBuffer view(long index) {
+        FloatBuffer region = regions[(int) (index / REGION_FLOATS)].duplicate().order(ByteOrder.LITTLE_ENDIAN)
+                .asFloatBuffer();
+        region.position((int) (index % REGION_FLOATS));
+        return region;
+    }
+}
@@ -0,0 +1,399 @@
+package tr.edu.mu.ceng.ir.word2vec;
+
+import org.deeplearning4j.models.embeddings.inmemory.InMemoryLookupTable;
+import org.deeplearning4j.models.embeddings.loader.VectorsConfiguration;
+import org.deeplearning4j.models.sequencevectors.SequenceVectors;
+import org.deeplearning4j.models.sequencevectors.enums.ListenerEvent;
+import org.deeplearning4j.models.sequencevectors.interfaces.SequenceIterator;
+import org.deeplearning4j.models.sequencevectors.interfaces.VectorsListener;
+import org.deeplearning4j.models.sequencevectors.sequence.Sequence;
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.deeplearning4j.models.word2vec.Word2Vec;
+import org.deeplearning4j.models.word2vec.wordstore.VocabCache;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Periodic checkpoints of a running {@code fit()}, so a crashed train or retrain can be resumed.
+ *
+ * <p>Two model slots in the checkpoint folder are written alternately in the binary model format. The first write
+ * to a slot stores the whole model; later ones overwrite only the syn0/syn1/syn1Neg regions in place, since the
+ * vocabulary and the layout do not change during training. After a slot is synced, {@value #STATE_FILE} is replaced
+ * atomically to point at it together with the epoch, the position within the epoch and the learning rate, so a
+ * crash in the middle of a write still leaves the previous checkpoint intact.
+ *
+ * <p>Checkpoints are triggered from the training threads through {@link VectorsListener} events but written on a
+ * background thread while training goes on. The position is recorded as that thread starts copying the matrices,
+ * so every sequence counted before it is in the weights; the copy itself is not atomic, and the weights are a
+ * Hogwild-style snapshot in which rows copied later may also hold sequences trained during the copy. Resuming trains
+ * those again rather than skipping any.
+ */
+public class TrainingCheckpoint implements VectorsListener<VocabWord> {
+
+    private static Logger logger = LoggerFactory.getLogger(TrainingCheckpoint.class);
+
+    static final String STATE_FILE = "checkpoint.properties";
+    private static final String SLOT_FOLDER = "slot-";
+
+    private final File folder;
+    private final long intervalMillis;
+    private final State state;
+    private final long[][] offsets = new long[2][];
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "training-checkpoint");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private SequenceVectors<VocabWord> vectors;
+    private volatile long lastCheckpoint = System.currentTimeMillis();
+    private volatile int completedEpochs;
+    private volatile long epochOffset;
+    private volatile long lines;
+    private int nextSlot;
+
+    /**
+     * @param state the job being checkpointed; for a resumed job the state it was loaded from
+     */
+    public TrainingCheckpoint(File folder, long intervalSeconds, State state) {
+        this.folder = folder;
+        this.intervalMillis = intervalSeconds * 1000;
+        this.state = state;
+        this.completedEpochs = state.completedEpochs;
+        this.epochOffset = state.position;
+        // never overwrite the slot a resumed job was loaded from before another one is complete
+        this.nextSlot = state.slot < 0 ? 0 : 1 - state.slot;
+    }
+
+    /**
+     * Adds this checkpoint to the event listeners of {@code vec}, keeping the ones already registered.
+     */
+    public void attach(Word2Vec vec) throws IOException {
+        Files.createDirectories(folder.toPath());
+        this.vectors = vec;
+        Set<VectorsListener<VocabWord>> listeners = new HashSet<>(eventListeners(vec));
+        listeners.add(this);
+        vec.setEventListeners(listeners);
+    }
+
+    // SequenceVectors only has a setter for its listeners, which replaces them
+    @SuppressWarnings("unchecked")
+    private static Collection<VectorsListener<VocabWord>> eventListeners(Word2Vec vec) throws IOException {
+        try {
+            Field field = SequenceVectors.class.getDeclaredField("eventListeners");
+            field.setAccessible(true);
+            Collection<VectorsListener<VocabWord>> listeners = (Collection<VectorsListener<VocabWord>>) field.get(vec);
+            return listeners == null ? Collections.<VectorsListener<VocabWord>>emptySet() : listeners;
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("Unable to read the event listeners of the model", e);
+        }
+    }
+
+    @Override
+    public boolean validateEvent(ListenerEvent event, long argument) {
+        if (event == ListenerEvent.EPOCH)
+            return true;
+        if (event != ListenerEvent.LINE)
+            return false;
+        lines = argument;
+        return !writing.get() && System.currentTimeMillis() - lastCheckpoint >= intervalMillis;
+    }
+
+    @Override
+    public void processEvent(ListenerEvent event, SequenceVectors<VocabWord> sequenceVectors, long argument) {
+        if (event == ListenerEvent.EPOCH) {
+            completedEpochs++;
+            epochOffset = 0;
+            lines = 0;
+            return;
+        }
+        if (!writing.compareAndSet(false, true))
+            return;
+        writer.submit(() -> {
+            try {
+                write();
+            } catch (Throwable e) {
+                logger.warn("Checkpoint to " + folder + " failed: " + e);
+            } finally {
+                lastCheckpoint = System.currentTimeMillis();
+                writing.set(false);
+            }
+        });
+    }
+
+    private void write() throws IOException {
+        long start = System.currentTimeMillis();
+        // lines are counted per epoch and once per iteration of every sequence
+        long position = epochOffset + lines / Math.max(1, vectors.getConfiguration().getIterations());
+        State snapshot = state.at(completedEpochs, position, vectors.getVocab());
+        int slot = nextSlot;
+        Path slotFolder = new File(folder, SLOT_FOLDER + slot).toPath();
+        Path file = slotFolder.resolve(BinaryModelSerializer.MODEL_FILE);
+        if (offsets[slot] == null) {
+            Files.createDirectories(slotFolder);
+            offsets[slot] = BinaryModelSerializer.writeFile(vectors, file, true);
+        } else {
+            BinaryModelSerializer.overwriteMatrices(vectors, file, offsets[slot]);
+        }
+        snapshot.slot = slot;
+        snapshot.save(new File(folder, STATE_FILE));
+        nextSlot = 1 - slot;
+        logger.debug("Checkpoint at epoch " + (snapshot.completedEpochs + 1) + ", sequence " + snapshot.position
+                + " written to " + slotFolder + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Waits for a checkpoint in progress and removes the checkpoint files, once the model they protect is saved.
+     */
+    public void finish() throws IOException {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(1, TimeUnit.HOURS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Files.deleteIfExists(new File(folder, STATE_FILE).toPath());
+        for (int slot = 0; slot < 2; slot++) {
+            Path slotFolder = new File(folder, SLOT_FOLDER + slot).toPath();
+            Files.deleteIfExists(slotFolder.resolve(BinaryModelSerializer.MODEL_FILE));
+            Files.deleteIfExists(slotFolder);
+        }
+    }
+
+    public static boolean exists(File folder) {
+        return new File(folder, STATE_FILE).exists();
+    }
+
+    /**
+     * Restores the model of the last checkpoint in {@code folder}, set up to train the remaining epochs, starting
+     * from the learning rate the schedule had reached.
+     */
+    public static Word2Vec restore(File folder, State state) throws IOException {
+        Word2Vec saved = BinaryModelSerializer.read(new File(folder, SLOT_FOLDER + state.slot).getPath());
+        InMemoryLookupTable<VocabWord> table = (InMemoryLookupTable<VocabWord>) saved.getLookupTable();
+
+        VectorsConfiguration configuration = saved.getConfiguration();
+        configuration.setEpochs(state.epochs - state.completedEpochs);
+        configuration.setLearningRate(state.getLearningRate());
+
+        // the slot files are rewritten by the next checkpoints, so the weights must not stay mapped over them
+        return BinaryModelSerializer.assemble(configuration, saved.getVocab(), table.getSyn0().dup(),
+                dup(table.getSyn1()), dup(table.getSyn1Neg()));
+    }
+
+    private static INDArray dup(INDArray matrix) {
+        return matrix == null ? null : matrix.dup();
+    }
+
+    /**
+     * Skips the sequences a resumed job has already trained in its current epoch. Only sequences left non-empty by
+     * the filtering of {@code SequenceVectors} count, as only those are counted as trained lines.
+     */
+    public static SequenceIterator<VocabWord> skipTrained(final SequenceIterator<VocabWord> iterator, State state,
+                                                          final VocabCache<VocabWord> vocab,
+                                                          Collection<String> stopWords) {
+        if (state.position == 0)
+            return iterator;
+        final Collection<String> stop = stopWords == null ? Collections.<String>emptySet() : new HashSet<>(stopWords);
+        final long[] pending = {state.position};
+        return new SequenceIterator<VocabWord>() {
+            @Override
+            public boolean hasMoreSequences() {
+                skip();
+                return iterator.hasMoreSequences();
+            }
+
+            @Override
+            public Sequence<VocabWord> nextSequence() {
+                skip();
+                return iterator.nextSequence();
+            }
+
+            private void skip() {
+                while (pending[0] > 0 && iterator.hasMoreSequences()) {
+                    Sequence<VocabWord> sequence = iterator.nextSequence();
+                    if (sequence == null)
+                        continue;
+                    for (VocabWord word : sequence.getElements()) {
+                        if (!stop.contains(word.getLabel()) && vocab.containsWord(word.getLabel())) {
+                            pending[0]--;
+                            break;
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void reset() {
+                iterator.reset();
+            }
+        };
+    }
+
+    /**
+     * What is being trained and how far it got: the action with its corpus and target, the learning rate and epochs
+     * the job started with, and, for a written checkpoint, its slot, completed epochs and position in the epoch.
+     */
+    public static class State {
+
+        private String action;
+        private String source;
+        private String target;
+        private boolean lowerCaseSentences;
+        private double learningRate;
+        private double minLearningRate;
+        private int epochs;
+        private long sequencesPerEpoch;
+        private int completedEpochs;
+        private long position;
+        private int slot = -1;
+
+        private State() {
+        }
+
+        public static State start(String action, String source, String target, boolean lowerCaseSentences,
+                                  VectorsConfiguration configuration) {
+            State state = new State();
+            state.action = action;
+            state.source = source;
+            state.target = target;
+            state.lowerCaseSentences = lowerCaseSentences;
+            state.learningRate = configuration.getLearningRate();
+            state.minLearningRate = configuration.getMinLearningRate();
+            state.epochs = Math.max(1, configuration.getEpochs());
+            return state;
+        }
+
+        public static State load(File folder) throws IOException {
+            File file = new File(folder, STATE_FILE);
+            if (!file.exists())
+                throw new IOException("No checkpoint in " + folder);
+            Properties properties = new Properties();
+            try (InputStream input = Files.newInputStream(file.toPath())) {
+                properties.load(input);
+            }
+            State state = new State();
+            state.action = properties.getProperty("action");
+            state.source = properties.getProperty("source");
+            state.target = properties.getProperty("target");
+            state.lowerCaseSentences = Boolean.parseBoolean(properties.getProperty("lowerCaseSentences"));
+            state.learningRate = Double.parseDouble(properties.getProperty("learningRate"));
+            state.minLearningRate = Double.parseDouble(properties.getProperty("minLearningRate"));
+            state.epochs = Integer.parseInt(properties.getProperty("epochs"));
+            state.sequencesPerEpoch = Long.parseLong(properties.getProperty("sequencesPerEpoch"));
+            state.completedEpochs = Integer.parseInt(properties.getProperty("completedEpochs"));
+            state.position = Long.parseLong(properties.getProperty("position"));
+            state.slot = Integer.parseInt(properties.getProperty("slot"));
+            return state;
+        }
+
+        private State at(int completedEpochs, long position, VocabCache<VocabWord> vocab) {
+            State state = new State();
+            state.action = action;
+            state.source = source;
+            state.target = target;
+            state.lowerCaseSentences = lowerCaseSentences;
+            state.learningRate = learningRate;
+            state.minLearningRate = minLearningRate;
+            state.epochs = epochs;
+            state.sequencesPerEpoch = vocab.totalNumberOfDocs();
+            state.completedEpochs = completedEpochs;
+            state.position = position;
+            return state;
+        }
+
+        private void save(File file) throws IOException {
+            Properties properties = new Properties();
+            properties.setProperty("action", action);
+            properties.setProperty("source", source);
+            properties.setProperty("target", target);
+            properties.setProperty("lowerCaseSentences", String.valueOf(lowerCaseSentences));
+            properties.setProperty("learningRate", String.valueOf(learningRate));
+            properties.setProperty("minLearningRate", String.valueOf(minLearningRate));
+            properties.setProperty("epochs", String.valueOf(epochs));
+            properties.setProperty("sequencesPerEpoch", String.valueOf(sequencesPerEpoch));
+            properties.setProperty("completedEpochs", String.valueOf(completedEpochs));
+            properties.setProperty("position", String.valueOf(position));
+            properties.setProperty("slot", String.valueOf(slot));
+            properties.setProperty("currentLearningRate", String.valueOf(getLearningRate()));
+
+            File temporary = new File(file.getPath() + ".tmp");
+            try (OutputStream output = Files.newOutputStream(temporary.toPath())) {
+                properties.store(output, "word2vec training checkpoint");
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Share of all epochs done, counting sequences of the current epoch against the sentences of the vocabulary.
+         */
+        public double getProgress() {
+            double epoch = sequencesPerEpoch == 0 ? 0 : Math.min(1, (double) position / sequencesPerEpoch);
+            return Math.min(1, (completedEpochs + epoch) / epochs);
+        }
+
+        // the linear decay of SequenceVectors, continued from the progress reached
+        public double getLearningRate() {
+            return Math.max(minLearningRate, learningRate * (1 - getProgress()));
+        }
+
+        /**
+         * Puts back the learning rate and epochs the job started with into a resumed model's configuration, so the
+         * saved model looks like it was trained in one go.
+         */
+        public void restoreConfiguration(VectorsConfiguration configuration) {
+            configuration.setLearningRate(learningRate);
+            configuration.setEpochs(epochs);
+        }
+
+        public String getAction() {
+            return action;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        public boolean isLowerCaseSentences() {
+            return lowerCaseSentences;
+        }
+
+        // loaded from a written checkpoint rather than started
+        public boolean isResumed() {
+            return slot >= 0;
+        }
+
+        public int getCompletedEpochs() {
+            return completedEpochs;
+        }
+
+        public long getPosition() {
+            return position;
+        }
+    }
+}
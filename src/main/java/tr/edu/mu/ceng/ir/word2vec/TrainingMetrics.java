@@ -0,0 +1,294 @@
+package tr.edu.mu.ceng.ir.word2vec;
+
+import org.bytedeco.javacpp.Pointer;
+import org.deeplearning4j.models.embeddings.loader.VectorsConfiguration;
+import org.deeplearning4j.models.sequencevectors.interfaces.SequenceIterator;
+import org.deeplearning4j.models.sequencevectors.sequence.Sequence;
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.deeplearning4j.models.word2vec.wordstore.VocabCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress, phase timing and memory figures of a training job. Sentences and words are counted by wrapping the
+ * training {@link SequenceIterator}; a scheduled task turns the counts into rates, logs them and rewrites a
+ * Prometheus text file, and the same figures are exposed over JMX as {@link TrainingMetricsMBean}.
+ */
+public class TrainingMetrics implements TrainingMetricsMBean {
+
+    private static Logger logger = LoggerFactory.getLogger(TrainingMetrics.class);
+
+    static final String OBJECT_NAME = "tr.edu.mu.ceng.ir.word2vec:type=TrainingMetrics";
+
+    private final AtomicLong words = new AtomicLong();
+    private final AtomicLong sentences = new AtomicLong();
+    private final Map<String, Double> phaseSeconds = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    private volatile String phase = "idle";
+    private volatile long phaseStart = System.currentTimeMillis();
+    private volatile VocabCache<VocabWord> vocabulary;
+    private volatile VectorsConfiguration configuration;
+
+    private volatile double wordsPerSecond;
+    private volatile double sentencesPerSecond;
+    private long lastTick;
+    private long lastWords;
+    private long lastSentences;
+
+    private ScheduledExecutorService scheduler;
+    private ObjectName objectName;
+    private File prometheusFile;
+
+    /**
+     * Registers the MBean when {@code jmx} is set and starts reporting every {@code intervalSeconds}, rewriting
+     * {@code prometheusFile} when it is not null.
+     */
+    public void start(boolean jmx, File prometheusFile, long intervalSeconds) {
+        this.prometheusFile = prometheusFile;
+        if (jmx) {
+            try {
+                objectName = new ObjectName(OBJECT_NAME);
+                if (ManagementFactory.getPlatformMBeanServer().isRegistered(objectName))
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            } catch (Exception e) {
+                logger.warn("Training metrics are not available over JMX: " + e);
+                objectName = null;
+            }
+        }
+        lastTick = System.currentTimeMillis();
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "training-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                report();
+            } catch (Throwable e) {
+                // anything thrown would cancel the schedule
+                logger.warn("Training metrics report failed: " + e);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        phase("done");
+        if (scheduler != null)
+            scheduler.shutdownNow();
+        report();
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                logger.warn("Can not unregister training metrics: " + e);
+            }
+        }
+    }
+
+    /**
+     * Closes the current phase, recording its wall time, and starts {@code name}.
+     */
+    public void phase(String name) {
+        long now = System.currentTimeMillis();
+        if (!"idle".equals(phase)) {
+            double seconds = (now - phaseStart) / 1000.0;
+            phaseSeconds.merge(phase, seconds, Double::sum);
+            logger.debug("Phase " + phase + " took " + String.format("%.3f", seconds) + " s");
+        }
+        phase = name;
+        phaseStart = now;
+    }
+
+    /**
+     * Counts only the words of {@code vocabulary} from now on and uses {@code configuration} for the learning rate
+     * schedule and the expected corpus size.
+     */
+    public void training(VocabCache<VocabWord> vocabulary, VectorsConfiguration configuration) {
+        this.vocabulary = vocabulary;
+        this.configuration = configuration;
+        words.set(0);
+        sentences.set(0);
+    }
+
+    public SequenceIterator<VocabWord> monitor(final SequenceIterator<VocabWord> iterator) {
+        return new SequenceIterator<VocabWord>() {
+            @Override
+            public boolean hasMoreSequences() {
+                return iterator.hasMoreSequences();
+            }
+
+            @Override
+            public Sequence<VocabWord> nextSequence() {
+                Sequence<VocabWord> sequence = iterator.nextSequence();
+                if (sequence != null) {
+                    VocabCache<VocabWord> vocab = vocabulary;
+                    long count = 0;
+                    for (VocabWord word : sequence.getElements()) {
+                        if (vocab == null || vocab.containsWord(word.getLabel()))
+                            count++;
+                    }
+                    words.addAndGet(count);
+                    sentences.incrementAndGet();
+                }
+                return sequence;
+            }
+
+            @Override
+            public void reset() {
+                iterator.reset();
+            }
+        };
+    }
+
+    private synchronized void report() {
+        long now = System.currentTimeMillis();
+        long currentWords = words.get();
+        long currentSentences = sentences.get();
+        double seconds = Math.max(1, now - lastTick) / 1000.0;
+        wordsPerSecond = Math.max(0, currentWords - lastWords) / seconds;
+        sentencesPerSecond = Math.max(0, currentSentences - lastSentences) / seconds;
+        lastTick = now;
+        lastWords = currentWords;
+        lastSentences = currentSentences;
+
+        if ("training".equals(phase))
+            logger.debug(String.format("Training: %.1f%% of corpus, %d words, %.0f words/s, %.0f sentences/s, "
+                            + "learning rate %.6f, heap %d MB, off-heap %d MB", getProgress() * 100, currentWords,
+                    wordsPerSecond, sentencesPerSecond, getLearningRate(), getHeapUsedBytes() / 1024 / 1024,
+                    getOffHeapBytes() / 1024 / 1024));
+        if (prometheusFile != null) {
+            try {
+                writePrometheus(prometheusFile);
+            } catch (IOException e) {
+                logger.warn("Can not write metrics to " + prometheusFile + ": " + e);
+            }
+        }
+    }
+
+    void writePrometheus(File file) throws IOException {
+        File folder = file.getAbsoluteFile().getParentFile();
+        File temporary = new File(folder, file.getName() + ".tmp");
+        try (PrintWriter writer = new PrintWriter(temporary, "UTF-8")) {
+            metric(writer, "word2vec_words_processed_total", "counter", "Vocabulary words fed to training", getWordsProcessed());
+            metric(writer, "word2vec_sentences_processed_total", "counter", "Sentences fed to training", getSentencesProcessed());
+            metric(writer, "word2vec_words_per_second", "gauge", "Words per second over the last interval", wordsPerSecond);
+            metric(writer, "word2vec_sentences_per_second", "gauge", "Sentences per second over the last interval", sentencesPerSecond);
+            metric(writer, "word2vec_learning_rate", "gauge", "Current learning rate", getLearningRate());
+            metric(writer, "word2vec_progress_ratio", "gauge", "Share of the corpus processed over all epochs", getProgress());
+            metric(writer, "word2vec_heap_used_bytes", "gauge", "Used JVM heap", getHeapUsedBytes());
+            metric(writer, "word2vec_heap_max_bytes", "gauge", "Maximum JVM heap", getHeapMaxBytes());
+            metric(writer, "word2vec_offheap_bytes", "gauge", "Off-heap memory allocated through ND4J", getOffHeapBytes());
+            metric(writer, "word2vec_physical_bytes", "gauge", "Physical memory used by the process", getPhysicalBytes());
+
+            writer.println("# HELP word2vec_phase_seconds Wall time of the finished training phases");
+            writer.println("# TYPE word2vec_phase_seconds gauge");
+            for (Map.Entry<String, Double> entry : getPhaseSeconds().entrySet())
+                writer.println("word2vec_phase_seconds{phase=\"" + entry.getKey() + "\"} " + entry.getValue());
+            writer.println("# HELP word2vec_phase Current training phase");
+            writer.println("# TYPE word2vec_phase gauge");
+            writer.println("word2vec_phase{phase=\"" + phase + "\"} 1");
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void metric(PrintWriter writer, String name, String type, String help, double value) {
+        writer.println("# HELP " + name + " " + help);
+        writer.println("# TYPE " + name + " " + type);
+        writer.println(name + " " + (value == Math.rint(value) ? String.valueOf((long) value) : String.valueOf(value)));
+    }
+
+    @Override
+    public String getPhase() {
+        return phase;
+    }
+
+    @Override
+    public long getWordsProcessed() {
+        return words.get();
+    }
+
+    @Override
+    public long getSentencesProcessed() {
+        return sentences.get();
+    }
+
+    @Override
+    public double getWordsPerSecond() {
+        return wordsPerSecond;
+    }
+
+    @Override
+    public double getSentencesPerSecond() {
+        return sentencesPerSecond;
+    }
+
+    // the schedule of SequenceVectors: lr * (1 - words / (totalWords * epochs * iterations)), at least minLearningRate
+    @Override
+    public double getLearningRate() {
+        VectorsConfiguration config = configuration;
+        if (config == null)
+            return 0;
+        return Math.max(config.getMinLearningRate(), config.getLearningRate() * (1 - getProgress()));
+    }
+
+    @Override
+    public double getProgress() {
+        VectorsConfiguration config = configuration;
+        VocabCache<VocabWord> vocab = vocabulary;
+        if (config == null || vocab == null || vocab.totalWordOccurrences() == 0)
+            return 0;
+        double total = (double) vocab.totalWordOccurrences() * Math.max(1, config.getEpochs())
+                * Math.max(1, config.getIterations());
+        return Math.min(1, words.get() / total);
+    }
+
+    @Override
+    public Map<String, Double> getPhaseSeconds() {
+        synchronized (phaseSeconds) {
+            return new LinkedHashMap<>(phaseSeconds);
+        }
+    }
+
+    @Override
+    public long getHeapUsedBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Override
+    public long getHeapMaxBytes() {
+        return Runtime.getRuntime().maxMemory();
+    }
+
+    @Override
+    public long getOffHeapBytes() {
+        return Pointer.totalBytes();
+    }
+
+    @Override
+    public long getPhysicalBytes() {
+        try {
+            return Pointer.physicalBytes();
+        } catch (UnsatisfiedLinkError e) {
+            // the JavaCPP natives are loaded with the ND4J backend
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package tr.edu.mu.ceng.ir.word2vec;
+
+import java.util.Map;
+
+/**
+ * JMX view of a running training job, registered by {@link TrainingMetrics}.
+ */
+public interface TrainingMetricsMBean {
+
+    String getPhase();
+
+    long getWordsProcessed();
+
+    long getSentencesProcessed();
+
+    double getWordsPerSecond();
+
+    double getSentencesPerSecond();
+
+    double getLearningRate();
+
+    double getProgress();
+
+    Map<String, Double> getPhaseSeconds();
+
+    long getHeapUsedBytes();
+
+    long getHeapMaxBytes();
+
+    long getOffHeapBytes();
+
+    long getPhysicalBytes();
+}
@@ -0,0 +1,181 @@
+package tr.edu.mu.ceng.ir.word2vec;
+
+import org.deeplearning4j.models.embeddings.inmemory.InMemoryLookupTable;
+import org.deeplearning4j.models.embeddings.learning.impl.elements.CBOW;
+import org.deeplearning4j.models.embeddings.learning.impl.elements.SkipGram;
+import org.deeplearning4j.models.embeddings.loader.VectorsConfiguration;
+import org.deeplearning4j.models.sequencevectors.interfaces.SequenceIterator;
+import org.deeplearning4j.models.sequencevectors.iterators.AbstractSequenceIterator;
+import org.deeplearning4j.models.sequencevectors.sequence.Sequence;
+import org.deeplearning4j.models.sequencevectors.transformers.impl.SentenceTransformer;
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.deeplearning4j.models.word2vec.Word2Vec;
+import org.deeplearning4j.text.sentenceiterator.FileSentenceIterator;
+import org.deeplearning4j.text.sentenceiterator.SentenceIterator;
+import org.deeplearning4j.text.tokenization.tokenizer.preprocessor.CommonPreprocessor;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.DefaultTokenizerFactory;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.TokenizerFactory;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * One worker JVM of {@link ParallelTraining}: trains a copy of the shared model on its shard, one round at a time,
+ * publishing its weights after each round and continuing from the average of all workers.
+ */
+public class TrainingWorker {
+
+    private static Logger logger = LoggerFactory.getLogger(TrainingWorker.class);
+
+    private static final long POLL_MILLIS = 5;
+
+    public static void main(String... args) throws IOException {
+        watchParent();
+        File folder = new File(args[0]);
+        int worker = Integer.parseInt(args[1]);
+        try {
+            new TrainingWorker().run(folder, worker);
+        } catch (Throwable e) {
+            logger.error("Training worker " + worker + " failed", e);
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    // the coordinator never writes to the standard input of a worker, end of input means it is gone
+    private static void watchParent() {
+        Thread watcher = new Thread(() -> {
+            try {
+                while (System.in.read() >= 0) {
+                    // nothing is expected
+                }
+            } catch (IOException e) {
+                // treated as end of input
+            }
+            logger.warn("Training coordinator is gone, stopping");
+            System.exit(1);
+        }, "parent-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private void run(File folder, int worker) throws IOException, InterruptedException {
+        Properties job = new Properties();
+        try (InputStream input = new FileInputStream(new File(folder, ParallelTraining.JOB_FILE))) {
+            job.load(input);
+        }
+        int rounds = Integer.parseInt(job.getProperty("rounds"));
+        int epochs = Integer.parseInt(job.getProperty("epochs"));
+        int threads = Integer.parseInt(job.getProperty("threads"));
+        boolean lowerCaseSentences = Boolean.parseBoolean(job.getProperty("lowerCaseSentences"));
+        File shard = new File(job.getProperty("shard." + worker));
+
+        // the weights are copied out of the mapping, the model file is shared by all workers
+        Word2Vec saved = BinaryModelSerializer.read(new File(folder, ParallelTraining.MODEL_FOLDER).getPath());
+        InMemoryLookupTable<VocabWord> savedTable = (InMemoryLookupTable<VocabWord>) saved.getLookupTable();
+        VectorsConfiguration configuration = saved.getConfiguration();
+        Word2Vec model = BinaryModelSerializer.assemble(configuration, saved.getVocab(), savedTable.getSyn0().dup(),
+                dup(savedTable.getSyn1()), dup(savedTable.getSyn1Neg()));
+        InMemoryLookupTable<VocabWord> table = (InMemoryLookupTable<VocabWord>) model.getLookupTable();
+        INDArray[] matrices = ParallelTraining.matrices(table);
+        long[] rows = SharedMatrices.rows(matrices);
+        SharedMatrices published = SharedMatrices.open(ParallelTraining.workerFile(folder, worker), rows,
+                table.layerSize());
+        SharedMatrices average = SharedMatrices.open(new File(folder, ParallelTraining.AVERAGE_FILE), rows,
+                table.layerSize());
+
+        List<String> stopWords = saved.getStopWords() == null ? new ArrayList<String>()
+                : new ArrayList<>(saved.getStopWords());
+        SentenceIterator sentences = new FileSentenceIterator(shard);
+        TokenizerFactory tokenizerFactory;
+        if (Boolean.parseBoolean(job.getProperty("fastTokenizer"))) {
+            tokenizerFactory = new FastTokenizerFactory(stopWords, lowerCaseSentences);
+        } else {
+            if (lowerCaseSentences)
+                sentences.setPreProcessor(sentence -> sentence.toLowerCase());
+            tokenizerFactory = new DefaultTokenizerFactory();
+            tokenizerFactory.setTokenPreProcessor(new CommonPreprocessor());
+        }
+        long count = 0;
+        while (sentences.hasNext()) {
+            sentences.nextSentence();
+            count++;
+        }
+        long perRound = Math.max(1, (count + rounds - 1) / rounds);
+        logger.debug("Worker " + worker + ": " + count + " sentences, " + perRound + " per round");
+
+        SequenceIterator<VocabWord> iterator = new AbstractSequenceIterator.Builder<>(
+                new SentenceTransformer.Builder().iterator(sentences).tokenizerFactory(tokenizerFactory)
+                        .allowMultithreading(true).build()).build();
+        String algorithm = configuration.getElementsLearningAlgorithm();
+        double learningRate = configuration.getLearningRate();
+        long total = (long) epochs * rounds;
+        for (long round = 1; round <= total; round++) {
+            if ((round - 1) % rounds == 0)
+                iterator.reset();
+
+            // every round starts at the point of the linear decay of the whole job
+            configuration.setEpochs(1);
+            configuration.setLearningRate(Math.max(configuration.getMinLearningRate(),
+                    learningRate * (1 - (double) (round - 1) / total)));
+            Word2Vec vec = new Word2Vec.Builder(configuration)
+                    .vocabCache(model.getVocab())
+                    .lookupTable(table)
+                    .resetModel(false)
+                    .workers(threads)
+                    .stopWords(stopWords)
+                    .tokenizerFactory(tokenizerFactory)
+                    .iterate(limit(iterator, perRound))
+                    .elementsLearningAlgorithm(algorithm != null && algorithm.endsWith("CBOW")
+                            ? new CBOW<VocabWord>() : new SkipGram<VocabWord>())
+                    .build();
+            vec.fit();
+
+            published.write(matrices);
+            ParallelTraining.write(folder, worker + 1, round);
+            long averaged;
+            while ((averaged = ParallelTraining.read(folder, 0)) < round) {
+                if (averaged == ParallelTraining.ABORTED)
+                    throw new IOException("Training was aborted");
+                Thread.sleep(POLL_MILLIS);
+            }
+            average.read(matrices);
+        }
+        logger.debug("Worker " + worker + " finished " + total + " rounds");
+    }
+
+    // the next {@code limit} sequences of a shared iterator, the rounds of an epoch continue where the last stopped
+    private static SequenceIterator<VocabWord> limit(final SequenceIterator<VocabWord> iterator, final long limit) {
+        return new SequenceIterator<VocabWord>() {
+            private long served;
+
+            @Override
+            public boolean hasMoreSequences() {
+                return served < limit && iterator.hasMoreSequences();
+            }
+
+            @Override
+            public Sequence<VocabWord> nextSequence() {
+                served++;
+                return iterator.nextSequence();
+            }
+
+            @Override
+            public void reset() {
+                // fit() resets its iterator, the worker resets the shard at the start of an epoch itself
+            }
+        };
+    }
+
+    private static INDArray dup(INDArray matrix) {
+        return matrix == null ? null : matrix.dup();
+    }
+}
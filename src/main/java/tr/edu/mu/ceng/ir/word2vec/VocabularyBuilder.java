@@ -0,0 +1,350 @@
+package tr.edu.mu.ceng.ir.word2vec;
+
+import org.deeplearning4j.models.word2vec.Huffman;
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.deeplearning4j.models.word2vec.wordstore.inmemory.AbstractCache;
+import org.deeplearning4j.text.sentenceiterator.SentenceIterator;
+import org.deeplearning4j.text.tokenization.tokenizer.Tokenizer;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.TokenizerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds the pruned, Huffman-coded vocabulary before training, in place of the {@code VocabConstructor} pass of
+ * {@code Word2Vec.fit()}. The result is handed to {@code Word2Vec.Builder.vocabCache} with {@code resetModel(false)}.
+ *
+ * <p>Tokens are counted on all cores into sharded open-addressing maps keyed by a 64-bit token hash. When a sketch
+ * budget is configured, a count-min sketch pre-pass runs first and only tokens whose estimate reaches
+ * {@code minWordFrequency} enter the exact maps. The sketch never underestimates, so no surviving word is lost,
+ * and the long tail of rare tokens that dominates the distinct count of a huge corpus never takes heap space.
+ *
+ * <p>Memory is not bounded either way: as with {@code VocabConstructor}, the exact maps grow with every distinct
+ * token that gets into them, and the sketch only shrinks that set by the share of tokens it rules out. The parallel
+ * build is therefore opt-in for plain training ({@code word2vec.vocab.parallel}); the sweep, the update action and
+ * multi-JVM training use it because they need the vocabulary before the model is built.
+ */
+public class VocabularyBuilder {
+
+    private static Logger logger = LoggerFactory.getLogger(VocabularyBuilder.class);
+
+    private static final int SHARDS = 64;
+    private static final int BATCH_SIZE = 1024;
+    private static final int SKETCH_DEPTH = 4;
+
+    private final int minWordFrequency;
+    private final int threads;
+    private final long sketchBytes;
+    private TrainingMetrics metrics;
+
+    public VocabularyBuilder(int minWordFrequency, int threads, long sketchBytes) {
+        this.minWordFrequency = Math.max(1, minWordFrequency);
+        this.threads = Math.max(1, threads);
+        this.sketchBytes = sketchBytes;
+    }
+
+    // phase timing of the Huffman step goes to metrics when set
+    public void setMetrics(TrainingMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public AbstractCache<VocabWord> build(SentenceIterator sentences, TokenizerFactory tokenizerFactory,
+                                          Collection<String> stopWords) throws IOException {
+        long start = System.currentTimeMillis();
+        return huffman(count(sentences, tokenizerFactory, stopWords), start);
+    }
+
+    public AbstractCache<VocabWord> build(CorpusCache corpus) throws IOException {
+        long start = System.currentTimeMillis();
+        return huffman(count(corpus), start);
+    }
+
+    /**
+     * Counts the words reaching {@code minWordFrequency} with their document frequencies and the corpus totals,
+     * without Huffman codes or indexes.
+     */
+    AbstractCache<VocabWord> count(SentenceIterator sentences, TokenizerFactory tokenizerFactory,
+                                   Collection<String> stopWords) throws IOException {
+        long start = System.currentTimeMillis();
+        Set<String> stopSet = new HashSet<>(stopWords);
+
+        CountMinSketch sketch = null;
+        if (sketchBytes > 0) {
+            sketch = new CountMinSketch(sketchBytes);
+            final CountMinSketch target = sketch;
+            scan(sentences, tokenizerFactory, stopSet, (token, hash, first) -> target.add(hash));
+            logger.debug("Count-min sketch pre-pass done in " + (System.currentTimeMillis() - start) + " ms");
+        }
+
+        final ShardedCounter counter = new ShardedCounter();
+        final CountMinSketch filter = sketch;
+        long sentenceCount = scan(sentences, tokenizerFactory, stopSet, (token, hash, first) -> {
+            if (filter == null || filter.estimate(hash) >= minWordFrequency)
+                counter.add(token, hash, first);
+        });
+        logger.debug("Counted " + counter.size() + " candidate tokens in " + (System.currentTimeMillis() - start)
+                + " ms");
+
+        AbstractCache<VocabWord> vocabulary = new AbstractCache.Builder<VocabWord>().build();
+        for (Shard shard : counter.shards) {
+            for (int slot = 0; slot < shard.labels.length; slot++) {
+                if (shard.labels[slot] != null && shard.frequencies[slot] >= minWordFrequency)
+                    vocabulary.addToken(word(shard.labels[slot], shard.frequencies[slot], shard.documents[slot]));
+            }
+        }
+        return totals(vocabulary, sentenceCount);
+    }
+
+    AbstractCache<VocabWord> count(CorpusCache corpus) throws IOException {
+        long[][] counts = corpus.count(threads);
+        AbstractCache<VocabWord> vocabulary = new AbstractCache.Builder<VocabWord>().build();
+        for (int id = 0; id < counts[0].length; id++) {
+            if (counts[0][id] >= minWordFrequency)
+                vocabulary.addToken(word(corpus.label(id), counts[0][id], counts[1][id]));
+        }
+        return totals(vocabulary, corpus.getSentences());
+    }
+
+    /**
+     * The words of a {@link #count} result reaching {@code minWordFrequency}, as a vocabulary of their own with its
+     * Huffman tree, so that one counting pass serves several thresholds.
+     */
+    AbstractCache<VocabWord> prune(AbstractCache<VocabWord> counted, int minWordFrequency) {
+        long start = System.currentTimeMillis();
+        AbstractCache<VocabWord> vocabulary = new AbstractCache.Builder<VocabWord>().build();
+        for (VocabWord counter : counted.vocabWords()) {
+            if (counter.getElementFrequency() >= minWordFrequency)
+                vocabulary.addToken(word(counter.getLabel(), (long) counter.getElementFrequency(),
+                        counter.getSequencesCount()));
+        }
+        return huffman(totals(vocabulary, counted.totalNumberOfDocs()), start);
+    }
+
+    private static VocabWord word(String label, long frequency, long documents) {
+        VocabWord word = new VocabWord(frequency, label);
+        word.setSequencesCount(documents);
+        return word;
+    }
+
+    // the same closing steps as VocabConstructor: totals from the kept words, then Huffman codes and indexes
+    private static AbstractCache<VocabWord> totals(AbstractCache<VocabWord> vocabulary, long sentences) {
+        vocabulary.setTotalDocCount(sentences);
+        vocabulary.updateWordsOccurrences();
+        return vocabulary;
+    }
+
+    private AbstractCache<VocabWord> huffman(AbstractCache<VocabWord> vocabulary, long start) {
+        if (metrics != null)
+            metrics.phase("huffman");
+        Huffman huffman = new Huffman(vocabulary.vocabWords());
+        huffman.build();
+        huffman.applyIndexes(vocabulary);
+        logger.debug("Vocabulary: " + vocabulary.numWords() + " words, " + vocabulary.totalWordOccurrences()
+ + " occurrences, " + vocabulary.totalNumberOfDocs() + " sentences, built in " + (System.currentTimeMillis() - start)
+                + " ms");
+        return vocabulary;
+    }
+
+    // first is set for the first occurrence of the token in its sentence, which counts the sentence as a document
+    private interface TokenConsumer {
+        void accept(String token, long hash, boolean first);
+    }
+
+    /**
+     * Reads sentences on the calling thread and tokenizes and consumes them in batches on the worker threads.
+     * Returns the number of non-empty sentences.
+     */
+    private long scan(SentenceIterator sentences, TokenizerFactory tokenizerFactory, Set<String> stopWords,
+                      TokenConsumer consumer) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Semaphore inFlight = new Semaphore(threads * 2);
+        AtomicLong nonEmpty = new AtomicLong();
+        List<Future<?>> pending = new ArrayList<>();
+        try {
+            sentences.reset();
+            while (sentences.hasNext()) {
+                final List<String> batch = new ArrayList<>(BATCH_SIZE);
+                while (batch.size() < BATCH_SIZE && sentences.hasNext()) {
+                    String sentence = sentences.nextSentence();
+                    if (sentence != null)
+                        batch.add(sentence);
+                }
+
+                inFlight.acquire();
+                pending.add(executor.submit(() -> {
+                    try {
+                        Set<String> seen = new HashSet<>();
+                        for (int i = 0; i < batch.size(); i++) {
+                            Tokenizer tokenizer = tokenizerFactory.create(batch.get(i));
+                            boolean empty = true;
+                            seen.clear();
+                            while (tokenizer.hasMoreTokens()) {
+                                String token = tokenizer.nextToken();
+                                if (token == null || token.trim().isEmpty() || stopWords.contains(token))
+                                    continue;
+                                consumer.accept(token, hash(token), seen.add(token));
+                                empty = false;
+                            }
+                            if (!empty)
+                                nonEmpty.incrementAndGet();
+                        }
+                    } finally {
+                        inFlight.release();
+                    }
+                    return null;
+                }));
+                pending.removeIf(Future::isDone);
+            }
+            for (Future<?> future : pending)
+                future.get();
+            return nonEmpty.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Vocabulary construction failed", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    static long hash(String token) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < token.length(); i++) {
+            hash ^= token.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        // murmur3 finalizer, so both halves are usable as independent hashes
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static class ShardedCounter {
+
+        private final Shard[] shards = new Shard[SHARDS];
+
+        ShardedCounter() {
+            for (int i = 0; i < SHARDS; i++)
+                shards[i] = new Shard(1 << 10);
+        }
+
+        void add(String token, long hash, boolean first) {
+            Shard shard = shards[(int) (hash >>> 58)];
+            synchronized (shard) {
+                shard.add(token, hash, first);
+            }
+        }
+
+        long size() {
+            long size = 0;
+            for (Shard shard : shards)
+                size += shard.size;
+            return size;
+        }
+    }
+
+    // open-addressing map from a token (by hash, then by equality) to its counts
+    private static class Shard {
+
+        private long[] hashes;
+        private String[] labels;
+        private long[] frequencies;
+        private long[] documents;
+        private int size;
+
+        Shard(int capacity) {
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            hashes = new long[capacity];
+            labels = new String[capacity];
+            frequencies = new long[capacity];
+            documents = new long[capacity];
+        }
+
+        void add(String token, long hash, boolean first) {
+            int mask = labels.length - 1;
+            int slot = (int) hash & mask;
+            while (labels[slot] != null && (hashes[slot] != hash || !labels[slot].equals(token)))
+                slot = (slot + 1) & mask;
+
+            if (labels[slot] == null) {
+                if ((size + 1) * 2 > labels.length) {
+                    grow();
+                    add(token, hash, first);
+                    return;
+                }
+                hashes[slot] = hash;
+                labels[slot] = token;
+                size++;
+            }
+            frequencies[slot]++;
+            if (first)
+                documents[slot]++;
+        }
+
+        private void grow() {
+            long[] oldHashes = hashes;
+            String[] oldLabels = labels;
+            long[] oldFrequencies = frequencies;
+            long[] oldDocuments = documents;
+            allocate(oldLabels.length * 2);
+            int mask = labels.length - 1;
+            for (int i = 0; i < oldLabels.length; i++) {
+                if (oldLabels[i] == null)
+                    continue;
+                int slot = (int) oldHashes[i] & mask;
+                while (labels[slot] != null)
+                    slot = (slot + 1) & mask;
+                hashes[slot] = oldHashes[i];
+                labels[slot] = oldLabels[i];
+                frequencies[slot] = oldFrequencies[i];
+                documents[slot] = oldDocuments[i];
+            }
+        }
+    }
+
+    private static class CountMinSketch {
+
+        private final AtomicIntegerArray counts;
+        private final int width;
+
+        CountMinSketch(long bytes) {
+            this.width = (int) Math.max(1024, Math.min(Integer.MAX_VALUE / SKETCH_DEPTH, bytes / 4 / SKETCH_DEPTH));
+            this.counts = new AtomicIntegerArray(width * SKETCH_DEPTH);
+            logger.debug("Count-min sketch: " + SKETCH_DEPTH + " x " + width + " counters");
+        }
+
+        void add(long hash) {
+            for (int row = 0; row < SKETCH_DEPTH; row++)
+                counts.incrementAndGet(row * width + column(hash, row));
+        }
+
+        int estimate(long hash) {
+            int estimate = Integer.MAX_VALUE;
+            for (int row = 0; row < SKETCH_DEPTH; row++)
+                estimate = Math.min(estimate, counts.get(row * width + column(hash, row)));
+            return estimate;
+        }
+
+        private int column(long hash, int row) {
+            int combined = (int) hash + row * (int) (hash >>> 32);
+            return (combined & Integer.MAX_VALUE) % width;
+        }
+    }
+}
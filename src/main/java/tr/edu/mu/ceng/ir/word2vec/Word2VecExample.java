@@ -1,18 +1,17 @@
 package tr.edu.mu.ceng.ir.word2vec;
 
-import org.deeplearning4j.models.embeddings.inmemory.InMemoryLookupTable;
 import org.deeplearning4j.models.embeddings.learning.impl.elements.CBOW;
 import org.deeplearning4j.models.embeddings.learning.impl.elements.SkipGram;
 import org.deeplearning4j.models.embeddings.loader.VectorsConfiguration;
 import org.deeplearning4j.models.embeddings.loader.WordVectorSerializer;
 import org.deeplearning4j.models.word2vec.VocabWord;
 import org.deeplearning4j.models.word2vec.Word2Vec;
+import org.deeplearning4j.models.word2vec.wordstore.inmemory.AbstractCache;
 
 import org.deeplearning4j.text.sentenceiterator.FileSentenceIterator;
 import org.deeplearning4j.text.sentenceiterator.SentencePreProcessor;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -20,10 +19,14 @@ import java.util.*;
 
 
 import org.deeplearning4j.text.sentenceiterator.SentenceIterator;
+import org.deeplearning4j.models.sequencevectors.interfaces.SequenceIterator;
+import org.deeplearning4j.models.sequencevectors.iterators.AbstractSequenceIterator;
+import org.deeplearning4j.models.sequencevectors.transformers.impl.SentenceTransformer;
 
 
 import org.deeplearning4j.text.tokenization.tokenizer.preprocessor.CommonPreprocessor;
 import org.deeplearning4j.text.tokenization.tokenizerfactory.DefaultTokenizerFactory;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.TokenizerFactory;
 import org.nd4j.linalg.api.ndarray.INDArray;
 
 import org.nd4j.linalg.factory.Nd4j;
@@ -47,12 +50,28 @@ public class Word2VecExample {
         actionParamsMap.put("train", "file/directory targetmodelfile/folder");
         actionParamsMap.put("load", "sourcezipfile");
         actionParamsMap.put("retrain", "sourcezipfile file/directory targetmodelfile/folder");
+        actionParamsMap.put("serve", "sourcezipfile/folder [port]");
+        actionParamsMap.put("neighbors", "sourcezipfile/folder outputfile [wordlistfile]");
+        actionParamsMap.put("quantize", "sourcezipfile/folder targetquantizedfile");
+        actionParamsMap.put("resume", "[checkpointfolder]");
+        actionParamsMap.put("update", "sourcezipfile/folder file/directory");
+        actionParamsMap.put("sweep", "file/directory targetfolder");
+        actionParamsMap.put("evaluate", "sourcezipfile/folder questionfile [questionfile...]");
+        actionParamsMap.put("export", "sourcezipfile/folder targetfile");
 
         readProperties();
 
     }
 
 
+    public Word2Vec getVectors() {
+        return vec;
+    }
+
+    public void setVectors(Word2Vec vec) {
+        this.vec = vec;
+    }
+
     private  void usage() {
         System.out.println("Usage: " + CMD + " ACTION");
         System.out.println("where ACTION is one of:");
@@ -67,8 +86,8 @@ public class Word2VecExample {
 
     public static void main (String... args) throws IOException {
 
-        logger.debug( "Max Memory = " + Runtime.getRuntime().maxMemory() / 1024 / 1024 + " GB ");
-        logger.debug( "Total Memory = " + Runtime.getRuntime().totalMemory() / 1024 / 1024 + " GB ");
+        logger.debug( "Max Memory = " + Runtime.getRuntime().maxMemory() / 1024 / 1024 + " MB ");
+        logger.debug( "Total Memory = " + Runtime.getRuntime().totalMemory() / 1024 / 1024 + " MB ");
         logger.debug( "Number of processors = " + Runtime.getRuntime().availableProcessors());
         Word2VecExample wve = new Word2VecExample();
 
@@ -88,13 +107,15 @@ public class Word2VecExample {
                     System.exit(0);
                 }
                 wve.train(args[1], args[2]);
+                wve.prepareModelUtils(args[2]);
                 break;
             case "load" :
                 if (args.length<2){
                     wve.usage(args[0]);
                     System.exit(0);
                 }
-                wve.loadVectors(args[1]);
+                wve.openVectors(args[1]);
+                wve.prepareModelUtils(args[1]);
                 break;
             case "retrain":
                 if (args.length<4){
@@ -102,6 +123,65 @@ public class Word2VecExample {
                     System.exit(0);
                 }
                 wve.retrain(args[1], args[2], args[3]);
+                wve.prepareModelUtils(args[3]);
+                break;
+            case "serve":
+                if (args.length<2){
+                    wve.usage(args[0]);
+                    System.exit(0);
+                }
+                wve.loadVectors(args[1]);
+                wve.serve(args.length > 2 ? Integer.parseInt(args[2]) : -1);
+                return;
+            case "neighbors":
+                if (args.length<3){
+                    wve.usage(args[0]);
+                    System.exit(0);
+                }
+                wve.loadVectors(args[1]);
+                wve.neighbors(args[2], args.length > 3 ? args[3] : null);
+                return;
+            case "quantize":
+                if (args.length<3){
+                    wve.usage(args[0]);
+                    System.exit(0);
+                }
+                wve.loadVectors(args[1]);
+                wve.quantize(args[2]);
+                return;
+            case "update":
+                if (args.length<3){
+                    wve.usage(args[0]);
+                    System.exit(0);
+                }
+                wve.update(args[1], args[2]);
+                wve.prepareModelUtils(args[1]);
+                break;
+            case "sweep":
+                if (args.length<3){
+                    wve.usage(args[0]);
+                    System.exit(0);
+                }
+                wve.sweep(args[1], args[2]);
+                return;
+            case "evaluate":
+                if (args.length<3){
+                    wve.usage(args[0]);
+                    System.exit(0);
+                }
+                wve.loadVectors(args[1]);
+                wve.evaluate(Arrays.copyOfRange(args, 2, args.length));
+                return;
+            case "export":
+                if (args.length<3){
+                    wve.usage(args[0]);
+                    System.exit(0);
+                }
+                wve.loadVectors(args[1]);
+                wve.export(args[2]);
+                return;
+            case "resume":
+                wve.prepareModelUtils(wve.resume(args.length > 1 ? args[1] : null));
                 break;
             default:
                 wve.usage();
@@ -168,23 +248,150 @@ public class Word2VecExample {
     private void loadVectors(String targetFileFolder) throws IOException {
 
         logger.debug("=====Starting Reading Vectors  from " + targetFileFolder + " =====");
-        if (properties.getProperty("word2vec.modelCompressed","true").toLowerCase().equals("true")) {
+        if (QuantizedLookupTable.isQuantized(targetFileFolder)) {
+            vec = ServingWord2Vec.open(targetFileFolder,
+                    Integer.parseInt(properties.getProperty("word2vec.quantized.rerankCandidates","50")));
+        }else if (CompactModelSerializer.isCompact(targetFileFolder)) {
+            vec = CompactModelSerializer.open(targetFileFolder);
+        }else if (properties.getProperty("word2vec.modelCompressed","true").toLowerCase().equals("true")) {
             vec = WordVectorSerializer.readWord2VecModel(targetFileFolder, true);
+        }else if (BinaryModelSerializer.exists(targetFileFolder)){
+            vec = BinaryModelSerializer.read(targetFileFolder);
         }else{
             readUnCompressed(targetFileFolder);
         }
+        // incremental updates are kept as deltas next to the model
+        if (!(vec instanceof ServingWord2Vec))
+            ModelDelta.applyAll(vec, targetFileFolder);
         logger.debug("=====Reading Vectors Completed=====");
 
     }
 
 
 
+    /**
+     * Opens the model of the load action. With word2vec.load.lazy a binary model is opened for queries only: the
+     * vocabulary is read, syn0 is paged in on demand and the training tables stay on disk. Models in other formats,
+     * or with deltas to apply, are loaded in full.
+     */
+    private void openVectors(String targetFileFolder) throws IOException {
+        if (!properties.getProperty("word2vec.load.lazy","false").toLowerCase().equals("true")
+                || !BinaryModelSerializer.exists(targetFileFolder) || ModelDelta.deltas(targetFileFolder).length > 0) {
+            loadVectors(targetFileFolder);
+            return;
+        }
+        logger.debug("=====Opening Vectors lazily from " + targetFileFolder + " =====");
+        vec = BinaryModelSerializer.open(targetFileFolder);
+        logger.debug("=====Opening Vectors Completed=====");
+    }
+
+    /**
+     * Switches nearest-word queries to the HNSW index when it is selected by word2vec.modelUtils or by the
+     * modelUtils key of the model configuration, reusing the index persisted next to the model if it still matches.
+     */
+    private void prepareModelUtils(String modelLocation) throws IOException {
+        String modelUtils = properties.getProperty("word2vec.modelUtils", vec.getConfiguration().getModelUtils());
+        if (!HnswModelUtils.class.getName().equals(modelUtils))
+            return;
+        // building the index would read all of syn0, which a query-only model avoids
+        if (vec instanceof ServingWord2Vec) {
+            logger.warn("HNSW index skipped for the query-only model " + modelLocation
+                    + ", nearest words are found by scanning its rows");
+            return;
+        }
+
+        HnswModelUtils<VocabWord> hnsw = vec.getModelUtils() instanceof HnswModelUtils
+                ? (HnswModelUtils<VocabWord>) vec.getModelUtils() : new HnswModelUtils<>();
+        hnsw.setM(Integer.parseInt(properties.getProperty("word2vec.hnsw.m","16")));
+        hnsw.setEfConstruction(Integer.parseInt(properties.getProperty("word2vec.hnsw.efConstruction","200")));
+        hnsw.setEfSearch(Integer.parseInt(properties.getProperty("word2vec.hnsw.efSearch","100")));
+        hnsw.init(vec.getLookupTable());
+        vec.setModelUtils(hnsw);
+        vec.getConfiguration().setModelUtils(HnswModelUtils.class.getName());
+
+        File indexFile = HnswModelUtils.indexFile(modelLocation);
+        if (!hnsw.loadIndex(indexFile)) {
+            logger.debug("=====Building HNSW index=====");
+            hnsw.buildIndex();
+            hnsw.saveIndex(indexFile);
+        }
+    }
+
+    private void serve(int port) throws IOException {
+        if (port < 0)
+            port = Integer.parseInt(properties.getProperty("word2vec.serve.port","8080"));
+        QueryServer server = new QueryServer(vec, properties.getProperty("word2vec.serve.host",""), port,
+                Integer.parseInt(properties.getProperty("word2vec.serve.threads",
+                        String.valueOf(Runtime.getRuntime().availableProcessors()))),
+                Integer.parseInt(properties.getProperty("word2vec.serve.batchSize","64")),
+                Long.parseLong(properties.getProperty("word2vec.serve.batchWaitMillis","2")),
+                Integer.parseInt(properties.getProperty("word2vec.serve.cacheSize","10000")));
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+    }
+
+    private void neighbors(String outputFile, String wordListFile) throws IOException {
+        NeighborsJob job = new NeighborsJob(vec,
+                Integer.parseInt(properties.getProperty("word2vec.neighbors.k","10")),
+                Runtime.getRuntime().availableProcessors(),
+                Integer.parseInt(properties.getProperty("word2vec.neighbors.queryBlock","512")));
+        job.run(wordListFile == null ? null : new File(wordListFile), new File(outputFile));
+    }
+
+    private void evaluate(String[] questionFiles) throws IOException {
+        List<File> files = new ArrayList<>();
+        for (String questionFile : questionFiles)
+            files.add(new File(questionFile));
+        EvaluationJob job = new EvaluationJob(vec,
+                Runtime.getRuntime().availableProcessors(),
+                Integer.parseInt(properties.getProperty("word2vec.evaluate.batchSize","512")),
+                Integer.parseInt(properties.getProperty("word2vec.evaluate.vocabularyLimit","0")),
+                properties.getProperty("word2vec.evaluate.lowerCase",
+                        properties.getProperty("word2vec.preprocessor","true")).toLowerCase().equals("true"));
+        job.run(files, System.out);
+    }
+
+    private void quantize(String targetFile) throws IOException {
+        QuantizedExporter exporter = new QuantizedExporter(
+                Integer.parseInt(properties.getProperty("word2vec.quantized.recallSample","1000")),
+                Integer.parseInt(properties.getProperty("word2vec.quantized.rerankCandidates","50")));
+        exporter.export(vec, new File(targetFile),
+                properties.getProperty("word2vec.quantized.rerank","true").toLowerCase().equals("true"));
+    }
+
+    private void export(String targetFile) throws IOException {
+        CompactModelSerializer.write(vec, new File(targetFile),
+                Integer.parseInt(properties.getProperty("word2vec.export.topWords","0")),
+                Long.parseLong(properties.getProperty("word2vec.export.minFrequency","0")),
+                properties.getProperty("word2vec.export.float16","true").toLowerCase().equals("true"),
+                properties.getProperty("word2vec.export.normalize","true").toLowerCase().equals("true"));
+    }
+
+    private void saveVectors(String targetArchiveFile) throws IOException {
+
+        if (properties.getProperty("word2vec.modelCompressed","true").toLowerCase().equals("true")) {
+            WordVectorSerializer.writeWord2VecModel(vec, targetArchiveFile);
+        }else if (isBinaryFormat()){
+            BinaryModelSerializer.write(vec, targetArchiveFile);
+        }else {
+            writeUnCompressed(targetArchiveFile);
+        }
+
+    }
+
+    // uncompressed models are written as text dumps unless word2vec.modelFormat = binary, loading detects the format
+    private boolean isBinaryFormat() {
+        return properties.getProperty("word2vec.modelFormat","text").toLowerCase().equals("binary");
+    }
+
+
     private void train(String sourceFileFolder, String targetArchiveFile) throws IOException {
         logger.debug("=====Starting Word2Vec Training for " + sourceFileFolder + " =====");
+        TrainingMetrics metrics = startMetrics();
         SentenceIterator iter = new FileSentenceIterator((new File(sourceFileFolder)));
 
-        //Set preprocessor to lowercase tokens
-        if (properties.getProperty("word2vec.preprocessor","true").toLowerCase().equals("true")) {
+        //Set preprocessor to lowercase tokens, the fast tokenizer folds case itself
+        if (properties.getProperty("word2vec.preprocessor","true").toLowerCase().equals("true") && !isFastTokenizer()) {
             iter.setPreProcessor(new SentencePreProcessor() { //Preprocess input
                 @Override
                 public String preProcess(String sentence) {
@@ -201,20 +408,7 @@ public class Word2VecExample {
         logger.debug("Stop words: " + stopWords);
 
 
-        File confFile = new File("config.json");
-        VectorsConfiguration configuration = null;
-        if (confFile.exists()) {
-            InputStream stream = new FileInputStream(confFile);
-            StringBuilder builder = new StringBuilder();
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    builder.append(line);
-                }
-            }
-
-            configuration = VectorsConfiguration.fromJson(builder.toString().trim());
-        }
+        VectorsConfiguration configuration = readConfiguration();
         Word2Vec.Builder builder = null;
         if (configuration != null){
             builder = new Word2Vec.Builder(configuration);
@@ -228,31 +422,69 @@ public class Word2VecExample {
 
         }
 
-        DefaultTokenizerFactory tokenizerFactory = new DefaultTokenizerFactory();
-        tokenizerFactory.setTokenPreProcessor(new CommonPreprocessor());
+        boolean lowerCaseSentences = properties.getProperty("word2vec.preprocessor","true").toLowerCase().equals("true");
+        TokenizerFactory tokenizerFactory = createTokenizerFactory(stopWords, lowerCaseSentences);
+
+        metrics.phase("corpus");
+        CorpusCache cache = openCorpusCache(sourceFileFolder, iter, tokenizerFactory, stopWords);
+        builder.iterate(metrics.monitor(sequences(cache, iter, tokenizerFactory)));
+
+        // the worker JVMs share one vocabulary and one set of initial weights, so they are built up front
+        int workers = Integer.parseInt(properties.getProperty("word2vec.workers","1"));
+        boolean prebuiltVocabulary = workers > 1
+                || properties.getProperty("word2vec.vocab.parallel","false").toLowerCase().equals("true");
+        if (prebuiltVocabulary) {
+            metrics.phase("vocabulary");
+            int minWordFrequency = configuration != null ? configuration.getMinWordFrequency()
+                    : Integer.parseInt(properties.getProperty("word2vec.minWordFrequency","5"));
+            VocabularyBuilder vocabularyBuilder = new VocabularyBuilder(minWordFrequency,
+                    Runtime.getRuntime().availableProcessors(),
+                    Long.parseLong(properties.getProperty("word2vec.vocab.sketchMB","0")) * 1024 * 1024);
+            vocabularyBuilder.setMetrics(metrics);
+            logger.debug("=====Building vocabulary=====");
+            builder.vocabCache(cache != null ? vocabularyBuilder.build(cache)
+                    : vocabularyBuilder.build(iter, tokenizerFactory, stopWords)).resetModel(false);
+        }
 
-        vec = builder.stopWords(stopWords).iterate(iter).tokenizerFactory(tokenizerFactory).
+        vec = builder.stopWords(stopWords).tokenizerFactory(tokenizerFactory).
                 elementsLearningAlgorithm(properties.getProperty("word2vec.algorithm","SkipGram").equals("CBOW")
                     ? new CBOW<>() : new SkipGram<>()).   //SkipGram or CBOW algorithm
                 build();
 
+        if (prebuiltVocabulary) {
+            metrics.phase("weights");
+            vec.getLookupTable().resetWeights(false);
+        }
 
-        vec.fit(); //performs training
+        TrainingCheckpoint checkpoint = null;
+        metrics.training(vec.getVocab(), vec.getConfiguration());
+        metrics.phase("training");
+        if (workers > 1) {
+            // data-parallel training is not checkpointed, an interrupted job starts over
+            new ParallelTraining(new File(properties.getProperty("word2vec.workers.folder","workers")), workers,
+                    Integer.parseInt(properties.getProperty("word2vec.workers.rounds","10")),
+                    jvmOptions(properties.getProperty("word2vec.workers.jvmOptions","")))
+                    .train(vec, new File(sourceFileFolder), lowerCaseSentences, isFastTokenizer());
+        } else {
+            checkpoint = startCheckpoint(checkpointFolder(null), TrainingCheckpoint.State.start("train",
+                    sourceFileFolder, targetArchiveFile, lowerCaseSentences, vec.getConfiguration()));
+            vec.fit(); //performs training
+        }
         logger.debug("=====Training Completed=====");
         logger.debug("Vocabulary size: " + vec.getVocab().numWords());
         logger.debug("# of documents: " + vec.getVocab().totalNumberOfDocs());
         logger.debug("# of word occurrences: " + vec.getVocab().totalWordOccurrences());
 
-        logger.debug( "Max Memory = " + Runtime.getRuntime().maxMemory() / 1024 / 1024 + " GB ");
-        logger.debug( "Total Memory = " + Runtime.getRuntime().totalMemory() / 1024 / 1024 + " GB ");
-        logger.debug( "Free Memory = " + Runtime.getRuntime().freeMemory() / 1024 / 1024 + " GB ");
+        logger.debug( "Max Memory = " + Runtime.getRuntime().maxMemory() / 1024 / 1024 + " MB ");
+        logger.debug( "Total Memory = " + Runtime.getRuntime().totalMemory() / 1024 / 1024 + " MB ");
+        logger.debug( "Free Memory = " + Runtime.getRuntime().freeMemory() / 1024 / 1024 + " MB ");
+        logger.debug( "Off-heap Memory = " + metrics.getOffHeapBytes() / 1024 / 1024 + " MB ");
 
         logger.debug("=====Serializing word vectors to " + targetArchiveFile+" =====");
-        if (properties.getProperty("word2vec.modelCompressed","true").toLowerCase().equals("true")) {
-            WordVectorSerializer.writeWord2VecModel(vec, targetArchiveFile);
-        }else {
-            writeUnCompressed(targetArchiveFile);
-        }
+        metrics.phase("serialization");
+        saveVectors(targetArchiveFile);
+        finishCheckpoint(checkpoint);
+        metrics.stop();
 
         logger.debug("=====Serialization Completed=====");
 
@@ -261,37 +493,316 @@ public class Word2VecExample {
     private void retrain(String sourceArchiveFile, String sourceFileFolder, String targetArchiveFile) throws IOException {
         loadVectors(sourceArchiveFile);
         logger.debug("=====Starting Word2Vec Retraining for " + sourceFileFolder + " =====");
+        TrainingMetrics metrics = startMetrics();
         logger.debug("Stop words: " + vec.getStopWords());
         SentenceIterator iter = new FileSentenceIterator((new File(sourceFileFolder)));
-        iter.setPreProcessor(new SentencePreProcessor() { //Preprocess input
-            @Override
-            public String preProcess(String sentence) {
-                return sentence.toLowerCase();
-            }
-        });
-        vec.setSentenceIterator(iter);
+        if (isFastTokenizer()) {
+            vec.setTokenizerFactory(createTokenizerFactory(vec.getStopWords(), true));
+        } else {
+            iter.setPreProcessor(new SentencePreProcessor() { //Preprocess input
+                @Override
+                public String preProcess(String sentence) {
+                    return sentence.toLowerCase();
+                }
+            });
+        }
+        metrics.phase("corpus");
+        CorpusCache cache = openCorpusCache(sourceFileFolder, iter, vec.getTokenizerFactory(), vec.getStopWords());
+        vec.setSequenceIterator(metrics.monitor(sequences(cache, iter, vec.getTokenizerFactory())));
         vec.setElementsLearningAlgorithm(properties.getProperty("word2vec.algorithm","SkipGram").
                 equals("CBOW")? new CBOW<>() : new SkipGram<>());
 
         vec.getConfiguration().setWindow(Integer.parseInt(properties.getProperty("word2vec.window","5")));
 
-
+        TrainingCheckpoint checkpoint = startCheckpoint(checkpointFolder(null), TrainingCheckpoint.State.start("retrain",
+                sourceFileFolder, targetArchiveFile, true, vec.getConfiguration()));
+        metrics.training(vec.getVocab(), vec.getConfiguration());
+        metrics.phase("training");
         vec.fit();
         logger.debug("=====Training Completed=====");
 
         logger.debug("=====Serializing word vectors to "+ targetArchiveFile + " =====");
 
-        if (properties.getProperty("word2vec.modelCompressed","true").toLowerCase().equals("true")) {
-            WordVectorSerializer.writeWord2VecModel(vec, targetArchiveFile);
-        }else {
-            writeUnCompressed(targetArchiveFile);
+        metrics.phase("serialization");
+        saveVectors(targetArchiveFile);
+        finishCheckpoint(checkpoint);
+        metrics.stop();
+        logger.debug("=====Serialization Completed=====");
+
+
+    }
+
+    /**
+     * Trains the model at sourceArchiveFile on the new documents only. New words reaching word2vec.minWordFrequency
+     * join the vocabulary, training runs at word2vec.update.learningRate, and the changed rows are appended to the
+     * deltas of the model instead of rewriting it.
+     */
+    private void update(String sourceArchiveFile, String sourceFileFolder) throws IOException {
+        loadVectors(sourceArchiveFile);
+        logger.debug("=====Starting incremental Word2Vec training for " + sourceFileFolder + " =====");
+        TrainingMetrics metrics = startMetrics();
+        logger.debug("Stop words: " + vec.getStopWords());
+        SentenceIterator iter = new FileSentenceIterator((new File(sourceFileFolder)));
+        TokenizerFactory tokenizerFactory = vec.getTokenizerFactory();
+        if (isFastTokenizer()) {
+            tokenizerFactory = createTokenizerFactory(vec.getStopWords(), true);
+        } else {
+            iter.setPreProcessor(new SentencePreProcessor() { //Preprocess input
+                @Override
+                public String preProcess(String sentence) {
+                    return sentence.toLowerCase();
+                }
+            });
         }
+        metrics.phase("corpus");
+        CorpusCache cache = openCorpusCache(sourceFileFolder, iter, tokenizerFactory, vec.getStopWords());
+
+        metrics.phase("vocabulary");
+        // every word of the batch is counted, only the new ones have to reach minWordFrequency
+        VocabularyBuilder vocabularyBuilder = new VocabularyBuilder(1, Runtime.getRuntime().availableProcessors(), 0);
+        ModelDelta delta = ModelDelta.grow(vec, cache != null ? vocabularyBuilder.count(cache)
+                        : vocabularyBuilder.count(iter, tokenizerFactory, vec.getStopWords()),
+                Integer.parseInt(properties.getProperty("word2vec.minWordFrequency",
+                        String.valueOf(vec.getConfiguration().getMinWordFrequency()))),
+                Double.parseDouble(properties.getProperty("word2vec.update.learningRate","0.01")));
+        vec = delta.getModel();
+        vec.setTokenizerFactory(tokenizerFactory);
+        vec.setSequenceIterator(metrics.monitor(sequences(cache, iter, tokenizerFactory)));
+        vec.setElementsLearningAlgorithm(properties.getProperty("word2vec.algorithm","SkipGram").
+                equals("CBOW")? new CBOW<>() : new SkipGram<>());
+
+        metrics.training(vec.getVocab(), vec.getConfiguration());
+        metrics.phase("training");
+        vec.fit();
+        logger.debug("=====Training Completed=====");
+        logger.debug("Vocabulary size: " + vec.getVocab().numWords());
+
+        metrics.phase("serialization");
+        delta.write(sourceArchiveFile);
+        metrics.stop();
         logger.debug("=====Serialization Completed=====");
+    }
+
+    /**
+     * Continues the train or retrain job of the last checkpoint in checkpointFolder (word2vec.checkpoint.folder by
+     * default) and returns the target the model is saved to.
+     */
+    private String resume(String checkpointFolder) throws IOException {
+        File folder = checkpointFolder(checkpointFolder);
+        TrainingCheckpoint.State state = TrainingCheckpoint.State.load(folder);
+        logger.debug("=====Resuming " + state.getAction() + " of " + state.getSource() + " at epoch "
+                + (state.getCompletedEpochs() + 1) + ", sequence " + state.getPosition() + " =====");
+        vec = TrainingCheckpoint.restore(folder, state);
+        TrainingMetrics metrics = startMetrics();
+        logger.debug("Stop words: " + vec.getStopWords());
 
+        SentenceIterator iter = new FileSentenceIterator((new File(state.getSource())));
+        if (isFastTokenizer()) {
+            vec.setTokenizerFactory(createTokenizerFactory(vec.getStopWords(), state.isLowerCaseSentences()));
+        } else if (state.isLowerCaseSentences()) {
+            iter.setPreProcessor(new SentencePreProcessor() { //Preprocess input
+                @Override
+                public String preProcess(String sentence) {
+                    return sentence.toLowerCase();
+                }
+            });
+        }
+        metrics.phase("corpus");
+        CorpusCache cache = openCorpusCache(state.getSource(), iter, vec.getTokenizerFactory(), vec.getStopWords());
+        vec.setSequenceIterator(metrics.monitor(TrainingCheckpoint.skipTrained(
+                sequences(cache, iter, vec.getTokenizerFactory()), state, vec.getVocab(), vec.getStopWords())));
+        String algorithm = vec.getConfiguration().getElementsLearningAlgorithm();
+        vec.setElementsLearningAlgorithm(algorithm != null && algorithm.endsWith("CBOW") ? new CBOW<>() : new SkipGram<>());
+
+        TrainingCheckpoint checkpoint = startCheckpoint(folder, state);
+        metrics.training(vec.getVocab(), vec.getConfiguration());
+        metrics.phase("training");
+        vec.fit();
+        logger.debug("=====Training Completed=====");
+        state.restoreConfiguration(vec.getConfiguration());
 
+        logger.debug("=====Serializing word vectors to "+ state.getTarget() + " =====");
+        metrics.phase("serialization");
+        saveVectors(state.getTarget());
+        finishCheckpoint(checkpoint);
+        metrics.stop();
+        logger.debug("=====Serialization Completed=====");
+        return state.getTarget();
     }
 
+    /**
+     * Trains a model for every combination of the word2vec.sweep.* settings, sharing one vocabulary count and one
+     * corpus reader pass per epoch between the models trained at the same time.
+     */
+    private void sweep(String sourceFileFolder, String targetFolder) throws IOException {
+        logger.debug("=====Starting Word2Vec hyper-parameter sweep for " + sourceFileFolder + " =====");
+        TrainingMetrics metrics = startMetrics();
+        SentenceIterator iter = new FileSentenceIterator((new File(sourceFileFolder)));
+        boolean lowerCaseSentences = properties.getProperty("word2vec.preprocessor","true").toLowerCase().equals("true");
+        if (lowerCaseSentences && !isFastTokenizer()) {
+            iter.setPreProcessor(new SentencePreProcessor() {
+                @Override
+                public String preProcess(String sentence) {
+                    return sentence.toLowerCase();
+                }
+            });
+        }
+
+        String stopWordFile = (properties.getProperty("word2vec.stopWordFile",null));
+        if (stopWordFile != null){
+            readStopWords(stopWordFile);
+        }
 
+        VectorsConfiguration configuration = readConfiguration();
+        if (configuration == null)
+            configuration = new VectorsConfiguration();
+        List<HyperParameterSweep.Setting> grid = HyperParameterSweep.grid(
+                sweepValues("word2vec.sweep.algorithm", properties.getProperty("word2vec.algorithm","SkipGram")),
+                sweepIntegers("word2vec.sweep.dimension", properties.getProperty("word2vec.dimension","100")),
+                sweepIntegers("word2vec.sweep.window", properties.getProperty("word2vec.window","5")),
+                sweepIntegers("word2vec.sweep.minWordFrequency",
+                        properties.getProperty("word2vec.minWordFrequency","5")));
+        int cores = Integer.parseInt(properties.getProperty("word2vec.sweep.cores",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        HyperParameterSweep sweep = new HyperParameterSweep(configuration, grid, cores,
+                Long.parseLong(properties.getProperty("word2vec.sweep.memoryMB","0")) * 1024 * 1024);
+
+        TokenizerFactory tokenizerFactory = createTokenizerFactory(stopWords, lowerCaseSentences);
+        metrics.phase("corpus");
+        CorpusCache cache = openCorpusCache(sourceFileFolder, iter, tokenizerFactory, stopWords);
+
+        metrics.phase("vocabulary");
+        VocabularyBuilder vocabularyBuilder = new VocabularyBuilder(sweep.getMinWordFrequency(), cores,
+                Long.parseLong(properties.getProperty("word2vec.vocab.sketchMB","0")) * 1024 * 1024);
+        vocabularyBuilder.setMetrics(metrics);
+        AbstractCache<VocabWord> counted = cache != null ? vocabularyBuilder.count(cache)
+                : vocabularyBuilder.count(iter, tokenizerFactory, stopWords);
+        metrics.training(counted, configuration);
+
+        sweep.run(vocabularyBuilder, counted, metrics.monitor(sequences(cache, iter, tokenizerFactory)),
+                tokenizerFactory, stopWords, new File(targetFolder), (model, target) -> {
+                    vec = model;
+                    saveVectors(target.getPath());
+                }, metrics);
+        metrics.stop();
+        logger.debug("=====Sweep Completed=====");
+    }
+
+    private List<String> sweepValues(String key, String defaultValue) {
+        List<String> values = new ArrayList<>();
+        for (String value : properties.getProperty(key, defaultValue).split(",")) {
+            if (!value.trim().isEmpty())
+                values.add(value.trim());
+        }
+        return values;
+    }
+
+    private List<Integer> sweepIntegers(String key, String defaultValue) {
+        List<Integer> values = new ArrayList<>();
+        for (String value : sweepValues(key, defaultValue))
+            values.add(Integer.parseInt(value));
+        return values;
+    }
+
+    // config.json of the working directory, or null when training is configured by config.properties alone
+    private VectorsConfiguration readConfiguration() throws IOException {
+        File confFile = new File("config.json");
+        if (!confFile.exists())
+            return null;
+        InputStream stream = new FileInputStream(confFile);
+        StringBuilder builder = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                builder.append(line);
+            }
+        }
+        return VectorsConfiguration.fromJson(builder.toString().trim());
+    }
+
+    private File checkpointFolder(String folder) {
+        return new File(folder != null ? folder : properties.getProperty("word2vec.checkpoint.folder","checkpoint"));
+    }
+
+    // fit() is checkpointed every word2vec.checkpoint.interval seconds, 0 turns checkpoints off
+    private TrainingCheckpoint startCheckpoint(File folder, TrainingCheckpoint.State state) throws IOException {
+        long interval = Long.parseLong(properties.getProperty("word2vec.checkpoint.interval","0"));
+        if (interval <= 0)
+            return null;
+        if (TrainingCheckpoint.exists(folder) && !state.isResumed())
+            logger.warn("Replacing the checkpoint in " + folder);
+        TrainingCheckpoint checkpoint = new TrainingCheckpoint(folder, interval, state);
+        checkpoint.attach(vec);
+        return checkpoint;
+    }
+
+    private static List<String> jvmOptions(String options) {
+        List<String> list = new ArrayList<>();
+        for (String option : options.trim().split("\\s+")) {
+            if (!option.isEmpty())
+                list.add(option);
+        }
+        return list;
+    }
+
+    // the model is saved, its checkpoint is not needed any more
+    private void finishCheckpoint(TrainingCheckpoint checkpoint) throws IOException {
+        if (checkpoint != null)
+            checkpoint.finish();
+    }
+
+
+
+    // word2vec.tokenizer = fast opts in to the same tokens as the default chain below without its garbage
+    private boolean isFastTokenizer() {
+        return properties.getProperty("word2vec.tokenizer","default").toLowerCase().equals("fast");
+    }
+
+    private TokenizerFactory createTokenizerFactory(Collection<String> stopWords, boolean lowerCaseSentences) {
+        if (isFastTokenizer())
+            return new FastTokenizerFactory(stopWords == null ? Collections.<String>emptyList() : stopWords,
+                    lowerCaseSentences);
+        DefaultTokenizerFactory tokenizerFactory = new DefaultTokenizerFactory();
+        tokenizerFactory.setTokenPreProcessor(new CommonPreprocessor());
+        return tokenizerFactory;
+    }
+
+    // training sequences from the compiled corpus, or tokenized from the sentences as Word2Vec would do it itself
+    private SequenceIterator<VocabWord> sequences(CorpusCache cache, SentenceIterator iter,
+                                                  TokenizerFactory tokenizerFactory) {
+        if (cache != null)
+            return cache.iterator();
+        SentenceTransformer transformer = new SentenceTransformer.Builder().iterator(iter)
+                .tokenizerFactory(tokenizerFactory).allowMultithreading(true).build();
+        return new AbstractSequenceIterator.Builder<>(transformer).build();
+    }
+
+    // progress is logged and exported over JMX and, when word2vec.metrics.file is set, as a Prometheus text file
+    private TrainingMetrics startMetrics() {
+        TrainingMetrics metrics = new TrainingMetrics();
+        String file = properties.getProperty("word2vec.metrics.file", "");
+        metrics.start(properties.getProperty("word2vec.metrics.jmx","true").toLowerCase().equals("true"),
+                file.trim().isEmpty() ? null : new File(file.trim()),
+                Long.parseLong(properties.getProperty("word2vec.metrics.interval","10")));
+        return metrics;
+    }
+
+    // compiled corpus of word2vec.corpusCache, or null when caching is off and the sentences are tokenized directly
+    private CorpusCache openCorpusCache(String sourceFileFolder, SentenceIterator iter,
+                                        TokenizerFactory tokenizerFactory, Collection<String> stopWords) throws IOException {
+        String cacheFolder = properties.getProperty("word2vec.corpusCache", null);
+        if (cacheFolder == null || cacheFolder.trim().isEmpty())
+            return null;
+        boolean lowerCaseSentences = iter.getPreProcessor() != null || (tokenizerFactory instanceof FastTokenizerFactory
+                && ((FastTokenizerFactory) tokenizerFactory).isLowerCaseSentences());
+        String settings = "preprocessor=" + lowerCaseSentences
+                + "|tokenPreProcessor=" + (tokenizerFactory.getTokenPreProcessor() == null ? null
+                        : tokenizerFactory.getTokenPreProcessor().getClass().getName());
+        CorpusCache cache = CorpusCache.open(new File(sourceFileFolder), new File(cacheFolder.trim()), settings, iter,
+                tokenizerFactory, stopWords == null ? Collections.<String>emptyList() : stopWords);
+        logger.debug("Cached corpus: " + cache.getSentences() + " sentences, " + cache.getTokens() + " tokens");
+        return cache;
+    }
 
     private void readStopWords(String stopWordFile) throws IOException {
 
@@ -334,97 +845,14 @@ public class Word2VecExample {
     }
 
     public void writeUnCompressed(String targetFolder) throws IOException {
-        Path path  = Paths.get(targetFolder);
-        if (!Files.exists(path))
-            Files.createDirectory(path);
-        WordVectorSerializer.writeWordVectors(vec.lookupTable(), new File(targetFolder+"/syn0.txt"));
-
-        // writing out syn1
-        INDArray syn1 = ((InMemoryLookupTable<VocabWord>) vec.getLookupTable()).getSyn1();
-
-        if (syn1 != null)
-            try (PrintWriter writer = new PrintWriter(new FileWriter( new File(targetFolder+"/syn1.txt")))) {
-                for (int x = 0; x < syn1.rows(); x++) {
-                    INDArray row = syn1.getRow(x);
-                    StringBuilder builder = new StringBuilder();
-                    for (int i = 0; i < row.length(); i++) {
-                        builder.append(row.getDouble(i)).append(" ");
-                    }
-                    writer.println(builder.toString().trim());
-                }
-            }
-
-        // writing out syn1
-        INDArray syn1Neg = ((InMemoryLookupTable<VocabWord>) vec.getLookupTable()).getSyn1Neg();
-
-        if (syn1Neg != null)
-            try (PrintWriter writer = new PrintWriter(new FileWriter( new File(targetFolder+"/syn1Neg.txt")))) {
-                for (int x = 0; x < syn1Neg.rows(); x++) {
-                    INDArray row = syn1Neg.getRow(x);
-                    StringBuilder builder = new StringBuilder();
-                    for (int i = 0; i < row.length(); i++) {
-                        builder.append(row.getDouble(i)).append(" ");
-                    }
-                    writer.println(builder.toString().trim());
-                }
-            }
-
-        // writing out huffman codes
-        try (PrintWriter writer = new PrintWriter(new FileWriter(new File(targetFolder+"/codes.txt")))) {
-            for (int i = 0; i < vec.getVocab().numWords(); i++) {
-                VocabWord word = vec.getVocab().elementAtIndex(i);
-                StringBuilder builder = new StringBuilder(WordVectorSerializer.ReadHelper.encodeB64(word.getLabel())).append(" ");
-                for (int code : word.getCodes()) {
-                    builder.append(code).append(" ");
-                }
-
-                writer.println(builder.toString().trim());
-            }
-        }
-
-
-        // writing out huffman tree
-        try (PrintWriter writer = new PrintWriter(new File(targetFolder+"/huffman.txt"))) {
-            for (int i = 0; i < vec.getVocab().numWords(); i++) {
-                VocabWord word = vec.getVocab().elementAtIndex(i);
-                StringBuilder builder = new StringBuilder(WordVectorSerializer.ReadHelper.encodeB64(word.getLabel())).append(" ");
-                for (int point : word.getPoints()) {
-                    builder.append(point).append(" ");
-                }
-
-                writer.println(builder.toString().trim());
-            }
-        }
-
-        // writing out word frequencies
-        try (PrintWriter writer = new PrintWriter(new File(targetFolder+"/frequencies.txt"))) {
-            for (int i = 0; i < vec.getVocab().numWords(); i++) {
-                VocabWord word = vec.getVocab().elementAtIndex(i);
-                StringBuilder builder = new StringBuilder(WordVectorSerializer.ReadHelper.encodeB64(word.getLabel())).append(" ")
-                        .append(word.getElementFrequency()).append(" ")
-                        .append(vec.getVocab().docAppearedIn(word.getLabel()));
-
-                writer.println(builder.toString().trim());
-            }
-        }
-
-
-        try (FileOutputStream writer = new FileOutputStream((targetFolder+"/config.json"))){
-            writer.write(vec.getConfiguration().toJson().getBytes(StandardCharsets.UTF_8));
-        }
+        // rows are copied out in blocks, formatted on every core and the six files streamed out concurrently
+        new ParallelTextModelWriter().write(vec, targetFolder);
     }
 
-    private void readUnCompressed(String targetFileFolder) throws IOException {
+    public void readUnCompressed(String targetFileFolder) throws IOException {
         logger.debug("Trying full model restoration...");
 
 
-        File fileSyn0 = new File(targetFileFolder+"/syn0.txt");
-        File fileSyn1 = new File(targetFileFolder+"/syn1.txt");
-        File fileCodes = new File(targetFileFolder+"/codes.txt");
-        File fileHuffman = new File(targetFileFolder+"/huffman.txt");
-        File fileFreq = new File(targetFileFolder+"/frequencies.txt");
-
-
         int originalFreq = Nd4j.getMemoryManager().getOccasionalGcFrequency();
         boolean originalPeriodic = Nd4j.getMemoryManager().isPeriodicGcActive();
 
@@ -434,59 +862,8 @@ public class Word2VecExample {
         Nd4j.getMemoryManager().setOccasionalGcFrequency(50000);
 
         try {
-            InputStream stream = new FileInputStream(targetFileFolder+"/config.json");
-            StringBuilder builder = new StringBuilder();
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    builder.append(line);
-                }
-            }
-
-            VectorsConfiguration configuration = VectorsConfiguration.fromJson(builder.toString().trim());
-
-            // we read first 4 files as w2v model
-            vec = WordVectorSerializer.readWord2VecFromText(fileSyn0, fileSyn1, fileCodes, fileHuffman, configuration);
-
-            if (fileFreq.exists()) {
-                // we read frequencies from frequencies.txt, however it's possible that we might not have this file
-                stream = new FileInputStream(fileFreq);
-                try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream))) {
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        String[] split = line.split(" ");
-                        VocabWord word = vec.getVocab().tokenFor(WordVectorSerializer.ReadHelper.decodeB64(split[0]));
-                        word.setElementFrequency((long) Double.parseDouble(split[1]));
-                        word.setSequencesCount((long) Double.parseDouble(split[2]));
-                    }
-                }
-
-            }
-            if (fileSyn1.exists()) {
-                stream = new FileInputStream(fileSyn1);
-
-                try (InputStreamReader isr = new InputStreamReader(stream);
-                     BufferedReader reader = new BufferedReader(isr)) {
-                    String line = null;
-                    List<INDArray> rows = new ArrayList<>();
-                    while ((line = reader.readLine()) != null) {
-                        String[] split = line.split(" ");
-                        double array[] = new double[split.length];
-                        for (int i = 0; i < split.length; i++) {
-                            array[i] = Double.parseDouble(split[i]);
-                        }
-                        rows.add(Nd4j.create(array));
-                    }
-
-                    // it's possible to have full model without syn1Neg
-                    if (!rows.isEmpty()) {
-                        INDArray syn1Neg = Nd4j.vstack(rows);
-                        ((InMemoryLookupTable) vec.getLookupTable()).setSyn1Neg(syn1Neg);
-                    }
-                }
-
-            }
-
+            // all files are split at line boundaries and parsed on every core straight into the lookup tables
+            vec = new ParallelTextModelReader().read(targetFileFolder);
         } finally {
             if (originalPeriodic)
                 Nd4j.getMemoryManager().togglePeriodicGc(true);